@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import rs.ltt.cli.cache.MyInMemoryCache;
+import rs.ltt.cli.model.QueryViewItem;
+import rs.ltt.jmap.common.entity.Email;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CacheBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int emails;
+
+    private MyInMemoryCache cache;
+    private String query;
+    private String[] threadIds;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final SyntheticMailbox mailbox = SyntheticMailbox.generate(emails, 42);
+        cache = new MyInMemoryCache();
+        mailbox.populate(cache);
+        query = mailbox.query.toQueryString();
+        threadIds = new String[mailbox.threads.length];
+        for (int i = 0; i < threadIds.length; ++i) {
+            threadIds[i] = mailbox.threads[i].getId();
+        }
+    }
+
+    @Benchmark
+    public List<QueryViewItem> queryViewItems() {
+        return cache.getQueryViewItems(query);
+    }
+
+    @Benchmark
+    public Collection<Email> emailsOfThread() {
+        next = (next + 1) % threadIds.length;
+        return cache.getEmails(threadIds[next]);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import rs.ltt.cli.cache.MyInMemoryCache;
+import rs.ltt.cli.model.QueryViewItem;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.Keyword;
+import rs.ltt.jmap.common.entity.Thread;
+import rs.ltt.jmap.mua.cache.CacheConflictException;
+import rs.ltt.jmap.mua.cache.CacheWriteException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readers of the thread list and of single threads running against a writer that marks whole threads as read or
+ * unread, alternating between addEmails and updateEmails. All emails of a hot thread always share the same read
+ * state, so a reader that sees a thread or a row with mixed state has seen a torn snapshot and fails the benchmark.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConcurrentCacheBenchmark {
+
+    private static final int HOT_THREADS = 16;
+
+    @Param({"1000", "100000"})
+    public int emails;
+
+    private MyInMemoryCache cache;
+    private String query;
+    private Thread[] hotThreads;
+    private int[] hotPositions;
+    private Email[][] seen;
+    private Email[][] unseen;
+    private int state = 0;
+    private int write = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws CacheConflictException {
+        final SyntheticMailbox mailbox = SyntheticMailbox.generate(emails, 42);
+        cache = new MyInMemoryCache();
+        mailbox.populate(cache);
+        query = mailbox.query.toQueryString();
+        final List<QueryViewItem> items = cache.getQueryViewItems(query);
+        final List<Thread> threads = new ArrayList<>();
+        final List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < items.size() && threads.size() < HOT_THREADS; ++i) {
+            final QueryViewItem item = items.get(i);
+            if (item.count > 1) {
+                threads.add(thread(mailbox, item.threadId));
+                positions.add(i);
+            }
+        }
+        hotThreads = threads.toArray(new Thread[0]);
+        hotPositions = new int[hotThreads.length];
+        seen = new Email[hotThreads.length][];
+        unseen = new Email[hotThreads.length][];
+        for (int i = 0; i < hotThreads.length; ++i) {
+            hotPositions[i] = positions.get(i);
+            seen[i] = mailbox.threadWithSeen(hotThreads[i], true);
+            unseen[i] = mailbox.threadWithSeen(hotThreads[i], false);
+            //the generated read state is random. start from a consistent one
+            cache.addEmails(SyntheticMailbox.emailState("e0"), seen[i]);
+        }
+    }
+
+    private static Thread thread(SyntheticMailbox mailbox, String threadId) {
+        for (Thread thread : mailbox.threads) {
+            if (thread.getId().equals(threadId)) {
+                return thread;
+            }
+        }
+        throw new IllegalStateException("no thread " + threadId);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void markThread() throws CacheConflictException, CacheWriteException {
+        final int thread = write % hotThreads.length;
+        final Email[] emails = (write / hotThreads.length) % 2 == 0 ? unseen[thread] : seen[thread];
+        if (write % 2 == 0) {
+            cache.addEmails(SyntheticMailbox.emailState("e" + state), emails);
+        } else {
+            cache.updateEmails(SyntheticMailbox.emailUpdate("e" + state, "e" + (state + 1), emails), new String[]{"keywords"});
+            ++state;
+        }
+        ++write;
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(2)
+    public List<QueryViewItem> readQueryView() {
+        final List<QueryViewItem> items = cache.getQueryViewItems(query);
+        for (int i = 0; i < hotThreads.length; ++i) {
+            final QueryViewItem item = items.get(hotPositions[i]);
+            if (!item.threadId.equals(hotThreads[i].getId())) {
+                throw new IllegalStateException("row " + hotPositions[i] + " shows " + item.threadId + " instead of " + hotThreads[i].getId());
+            }
+            if (item.unread == isSeen(item.mostRecent)) {
+                throw new IllegalStateException("torn row for thread " + item.threadId);
+            }
+        }
+        return items;
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(2)
+    public Collection<Email> readThread() {
+        Collection<Email> emails = null;
+        for (Thread thread : hotThreads) {
+            emails = cache.getEmails(thread.getId());
+            if (emails.size() != thread.getEmailIds().size()) {
+                throw new IllegalStateException("thread " + thread.getId() + " has " + emails.size() + " emails");
+            }
+            Boolean threadSeen = null;
+            for (Email email : emails) {
+                final boolean emailSeen = isSeen(email);
+                if (threadSeen != null && threadSeen != emailSeen) {
+                    throw new IllegalStateException("torn thread " + thread.getId());
+                }
+                threadSeen = emailSeen;
+            }
+        }
+        return emails;
+    }
+
+    private static boolean isSeen(Email email) {
+        final Map<String, Boolean> keywords = email.getKeywords();
+        return keywords != null && keywords.containsKey(Keyword.SEEN);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import rs.ltt.cli.cache.MyInMemoryCache;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.Thread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retained heap per cached email with and without the compact form the cache stores emails in. Both variants are
+ * built from freshly generated emails, which like emails parsed from server responses carry their own copy of every
+ * mailbox id, keyword and address, and both are without body values so the difference is what interning saves. The
+ * result is the {@code bytesPerEmail} secondary metric; the time is that of generating and storing the mailbox.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class HeapBenchmark {
+
+    @Param({"1000", "100000"})
+    public int emails;
+
+    @Param({"true", "false"})
+    public boolean compact;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+        public long bytesPerEmail;
+    }
+
+    @Benchmark
+    public Email[] retained(Heap heap) {
+        final long before = usedHeapAfterGc();
+        final Email[] retained = compact ? compacted() : stripped();
+        heap.bytesPerEmail = (usedHeapAfterGc() - before) / retained.length;
+        return retained;
+    }
+
+    /**
+     * @return the emails the way the cache stores them
+     */
+    private Email[] compacted() {
+        final SyntheticMailbox mailbox = SyntheticMailbox.generate(emails, 42);
+        final MyInMemoryCache cache = new MyInMemoryCache();
+        mailbox.populate(cache);
+        final List<Email> compacted = new ArrayList<>(emails);
+        for (Thread thread : mailbox.threads) {
+            compacted.addAll(cache.getEmails(thread.getId()));
+        }
+        return compacted.toArray(new Email[0]);
+    }
+
+    /**
+     * @return the emails as parsed, only without body values
+     */
+    private Email[] stripped() {
+        final SyntheticMailbox mailbox = SyntheticMailbox.generate(emails, 42);
+        final Email[] stripped = new Email[mailbox.emails.length];
+        for (int i = 0; i < stripped.length; ++i) {
+            stripped[i] = mailbox.emails[i].toBuilder().clearBodyValues().build();
+        }
+        return stripped;
+    }
+
+    private static long usedHeapAfterGc() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
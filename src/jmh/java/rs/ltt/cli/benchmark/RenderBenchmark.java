@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.benchmark;
+
+import com.googlecode.lanterna.TerminalSize;
+import com.googlecode.lanterna.screen.TerminalScreen;
+import com.googlecode.lanterna.terminal.virtual.DefaultVirtualTerminal;
+import org.openjdk.jmh.annotations.*;
+import rs.ltt.cli.cache.MyInMemoryCache;
+import rs.ltt.cli.model.QueryViewItem;
+import rs.ltt.cli.ui.QueryViewRenderer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders the thread list onto a virtual terminal.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RenderBenchmark {
+
+    private static final TerminalSize TERMINAL_SIZE = new TerminalSize(160, 50);
+
+    @Param({"1000", "100000", "1000000"})
+    public int emails;
+
+    private List<QueryViewItem> items;
+    private TerminalScreen screen;
+    private QueryViewRenderer renderer;
+    private int cursorPosition = 0;
+    private int offset = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final SyntheticMailbox mailbox = SyntheticMailbox.generate(emails, 42);
+        final MyInMemoryCache cache = new MyInMemoryCache();
+        mailbox.populate(cache);
+        items = new ArrayList<>(cache.getQueryViewItems(mailbox.query.toQueryString()));
+        screen = new TerminalScreen(new DefaultVirtualTerminal(TERMINAL_SIZE));
+        screen.startScreen();
+        renderer = new QueryViewRenderer();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        screen.stopScreen();
+    }
+
+    @Benchmark
+    public void fullRedraw() throws IOException {
+        renderer.invalidate();
+        renderer.render(screen, TERMINAL_SIZE, items, 0, 0, null);
+    }
+
+    @Benchmark
+    public void moveCursor() throws IOException {
+        cursorPosition = (cursorPosition + 1) % TERMINAL_SIZE.getRows();
+        renderer.render(screen, TERMINAL_SIZE, items, 0, cursorPosition, null);
+    }
+
+    @Benchmark
+    public void scrollByOneRow() throws IOException {
+        offset = (offset + 1) % Math.max(1, items.size() - TERMINAL_SIZE.getRows());
+        renderer.render(screen, TERMINAL_SIZE, items, offset, offset, null);
+    }
+}
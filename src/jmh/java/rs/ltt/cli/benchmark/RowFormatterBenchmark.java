@@ -0,0 +1,65 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import rs.ltt.cli.cache.MyInMemoryCache;
+import rs.ltt.cli.model.QueryViewItem;
+import rs.ltt.cli.ui.RowFormatter;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats one row per operation. Run with the gc profiler (the default of the benchmark profile) to see the
+ * allocation per rendered row in gc.alloc.rate.norm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RowFormatterBenchmark {
+
+    private static final int WIDTH = 160;
+
+    private List<QueryViewItem> items;
+    private RowFormatter rowFormatter;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final SyntheticMailbox mailbox = SyntheticMailbox.generate(10000, 42);
+        final MyInMemoryCache cache = new MyInMemoryCache();
+        mailbox.populate(cache);
+        items = cache.getQueryViewItems(mailbox.query.toQueryString());
+        rowFormatter = new RowFormatter();
+    }
+
+    @Setup(Level.Iteration)
+    public void beginFrame() {
+        rowFormatter.beginFrame(System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public char[] formatRow() {
+        next = (next + 1) % items.size();
+        rowFormatter.format(items.get(next), WIDTH);
+        return rowFormatter.getBuffer();
+    }
+}
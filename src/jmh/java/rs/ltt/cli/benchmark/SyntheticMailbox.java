@@ -0,0 +1,249 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.benchmark;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import rs.ltt.cli.cache.MyInMemoryCache;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.Thread;
+import rs.ltt.jmap.common.entity.TypedState;
+import rs.ltt.jmap.common.entity.filter.EmailFilterCondition;
+import rs.ltt.jmap.common.entity.query.EmailQuery;
+import rs.ltt.jmap.gson.JmapAdapters;
+import rs.ltt.jmap.mua.cache.Update;
+import rs.ltt.jmap.mua.util.QueryResult;
+
+import java.lang.reflect.Type;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Generates a deterministic inbox with a thread size distribution that resembles a real mailbox: most threads
+ * consist of a single email, some are short conversations and a few are long mailing list threads. The entities are
+ * created from their JMAP representation, the same way the client creates them from server responses.
+ */
+public class SyntheticMailbox {
+
+    public static final String INBOX = "inbox";
+
+    private static final Gson GSON;
+
+    static {
+        final GsonBuilder builder = new GsonBuilder();
+        JmapAdapters.register(builder);
+        GSON = builder.create();
+    }
+
+    private static final Type EMAIL_STATE = new TypeToken<TypedState<Email>>() {
+    }.getType();
+    private static final Type THREAD_STATE = new TypeToken<TypedState<Thread>>() {
+    }.getType();
+    private static final Type EMAIL_UPDATE = new TypeToken<Update<Email>>() {
+    }.getType();
+
+    private static final String[] WORDS = ("lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod "
+            + "tempor incididunt ut labore et dolore magna aliqua jmap release meeting notes invoice build failed "
+            + "review request weekly newsletter reminder update").split(" ");
+
+    public final EmailQuery query = EmailQuery.of(EmailFilterCondition.builder().inMailbox(INBOX).build(), true);
+    public final Email[] emails;
+    public final Thread[] threads;
+    public final QueryResult queryResult;
+
+    private SyntheticMailbox(Email[] emails, Thread[] threads, QueryResult queryResult) {
+        this.emails = emails;
+        this.threads = threads;
+        this.queryResult = queryResult;
+    }
+
+    public static SyntheticMailbox generate(int numberOfEmails, long seed) {
+        final Random random = new Random(seed);
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final String[][] senders = new String[Math.max(1, numberOfEmails / 50)][];
+        for (int i = 0; i < senders.length; ++i) {
+            senders[i] = new String[]{word(random) + " " + word(random), "sender" + i + "@example.com"};
+        }
+        final List<Email> emails = new ArrayList<>(numberOfEmails);
+        final List<Thread> threads = new ArrayList<>();
+        //thread id and id of most recent email, ordered by date of the most recent email
+        final List<String[]> latest = new ArrayList<>();
+        long time = System.currentTimeMillis() - 730L * 24 * 60 * 60 * 1000;
+        int emailCounter = 0;
+        while (emailCounter < numberOfEmails) {
+            final int size = Math.min(threadSize(random), numberOfEmails - emailCounter);
+            final String threadId = "T" + threads.size();
+            final String subject = sentence(random, 3 + random.nextInt(8));
+            final JsonArray emailIds = new JsonArray();
+            String lastEmailId = null;
+            for (int i = 0; i < size; ++i) {
+                time += 1000 + random.nextInt(60 * 60 * 1000);
+                final String emailId = "M" + emailCounter++;
+                final String[] sender = senders[random.nextInt(senders.length)];
+                emails.add(GSON.fromJson(email(random, emailId, threadId, i == 0 ? subject : "Re: " + subject, sender, dateFormat.format(new Date(time))), Email.class));
+                emailIds.add(emailId);
+                lastEmailId = emailId;
+            }
+            final JsonObject thread = new JsonObject();
+            thread.addProperty("id", threadId);
+            thread.add("emailIds", emailIds);
+            threads.add(GSON.fromJson(thread, Thread.class));
+            latest.add(new String[]{threadId, lastEmailId});
+        }
+        Collections.reverse(latest);
+        final JsonArray items = new JsonArray();
+        for (String[] threadAndEmail : latest) {
+            final JsonObject item = new JsonObject();
+            item.addProperty("threadId", threadAndEmail[0]);
+            item.addProperty("emailId", threadAndEmail[1]);
+            items.add(item);
+        }
+        final JsonObject queryResult = new JsonObject();
+        queryResult.add("items", items);
+        queryResult.add("queryState", state("q0"));
+        queryResult.addProperty("canCalculateChanges", true);
+        queryResult.addProperty("position", 0);
+        return new SyntheticMailbox(
+                emails.toArray(new Email[0]),
+                threads.toArray(new Thread[0]),
+                GSON.fromJson(queryResult, QueryResult.class)
+        );
+    }
+
+    private static int threadSize(Random random) {
+        final double p = random.nextDouble();
+        if (p < 0.6) {
+            return 1;
+        } else if (p < 0.95) {
+            return 2 + random.nextInt(6);
+        } else if (p < 0.995) {
+            return 8 + random.nextInt(40);
+        } else {
+            return 50 + random.nextInt(450);
+        }
+    }
+
+    private static JsonObject email(Random random, String id, String threadId, String subject, String[] sender, String receivedAt) {
+        final JsonObject email = new JsonObject();
+        email.addProperty("id", id);
+        email.addProperty("threadId", threadId);
+        email.addProperty("subject", subject);
+        email.addProperty("receivedAt", receivedAt);
+        final JsonObject from = new JsonObject();
+        from.addProperty("name", sender[0]);
+        from.addProperty("email", sender[1]);
+        final JsonArray fromList = new JsonArray();
+        fromList.add(from);
+        email.add("from", fromList);
+        final JsonObject keywords = new JsonObject();
+        if (random.nextDouble() < 0.8) {
+            keywords.addProperty("$seen", true);
+        }
+        if (random.nextDouble() < 0.05) {
+            keywords.addProperty("$flagged", true);
+        }
+        email.add("keywords", keywords);
+        final JsonObject mailboxIds = new JsonObject();
+        mailboxIds.addProperty(INBOX, true);
+        email.add("mailboxIds", mailboxIds);
+        final JsonObject textBody = new JsonObject();
+        textBody.addProperty("partId", "1");
+        textBody.addProperty("type", "text/plain");
+        final JsonArray textBodies = new JsonArray();
+        textBodies.add(textBody);
+        email.add("textBody", textBodies);
+        final JsonObject bodyValue = new JsonObject();
+        bodyValue.addProperty("value", sentence(random, 20 + random.nextInt(200)));
+        final JsonObject bodyValues = new JsonObject();
+        bodyValues.add("1", bodyValue);
+        email.add("bodyValues", bodyValues);
+        return email;
+    }
+
+    private static String word(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private static String sentence(Random random, int words) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < words; ++i) {
+            if (i != 0) {
+                builder.append(random.nextInt(12) == 0 ? "\n\n" : " ");
+            }
+            builder.append(word(random));
+        }
+        return builder.toString();
+    }
+
+    private static JsonObject state(String state) {
+        final JsonObject typedState = new JsonObject();
+        typedState.addProperty("state", state);
+        return typedState;
+    }
+
+    /**
+     * @return copies of all emails of the thread that are either all read or all unread
+     */
+    public Email[] threadWithSeen(Thread thread, boolean seen) {
+        final Map<String, Email> emails = new HashMap<>();
+        for (Email email : this.emails) {
+            if (thread.getId().equals(email.getThreadId())) {
+                emails.put(email.getId(), email);
+            }
+        }
+        final List<Email> copies = new ArrayList<>();
+        for (String emailId : thread.getEmailIds()) {
+            final JsonObject email = GSON.toJsonTree(emails.get(emailId)).getAsJsonObject();
+            final JsonObject keywords = new JsonObject();
+            if (seen) {
+                keywords.addProperty("$seen", true);
+            }
+            email.add("keywords", keywords);
+            copies.add(GSON.fromJson(email, Email.class));
+        }
+        return copies.toArray(new Email[0]);
+    }
+
+    public static TypedState<Email> emailState(String state) {
+        return GSON.fromJson(state(state), EMAIL_STATE);
+    }
+
+    public static Update<Email> emailUpdate(String oldState, String newState, Email[] updated) {
+        final JsonObject update = new JsonObject();
+        update.add("oldTypedState", state(oldState));
+        update.add("newTypedState", state(newState));
+        update.add("created", new JsonArray());
+        update.add("updated", GSON.toJsonTree(updated));
+        update.add("destroyed", new JsonArray());
+        return GSON.fromJson(update, EMAIL_UPDATE);
+    }
+
+    /**
+     * Writes the mailbox to the cache. The query is acquired like the UI does for the list it shows, so it is never
+     * evicted no matter how large it is.
+     */
+    public void populate(MyInMemoryCache cache) {
+        cache.acquireQuery(query.toQueryString());
+        cache.setThreads(GSON.fromJson(state("t0"), THREAD_STATE), threads);
+        cache.setEmails(GSON.fromJson(state("e0"), EMAIL_STATE), emails);
+        cache.setQueryResult(query.toQueryString(), queryResult);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli;
+
+import okhttp3.HttpUrl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.cli.action.KeywordBatcher;
+import rs.ltt.cli.cache.MyInMemoryCache;
+import rs.ltt.cli.cache.PersistentCache;
+import rs.ltt.cli.sync.BodyLoader;
+import rs.ltt.cli.sync.EventSourceMonitor;
+import rs.ltt.cli.sync.PagePrefetcher;
+import rs.ltt.cli.sync.QueryCoordinator;
+import rs.ltt.cli.sync.RefreshScheduler;
+import rs.ltt.jmap.client.JmapClient;
+import rs.ltt.jmap.client.session.SessionCache;
+import rs.ltt.jmap.client.session.SessionFileCache;
+import rs.ltt.jmap.common.Session;
+import rs.ltt.jmap.common.entity.IdentifiableMailboxWithRole;
+import rs.ltt.jmap.common.entity.capability.MailAccountCapability;
+import rs.ltt.jmap.mua.Mua;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything that exists once per account: cache, {@link Mua}, pending keyword changes, prefetching and the refresh
+ * schedule. All accounts share the connection pool of the OkHttpClient in jmap-client.
+ */
+final class Account implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Account.class);
+
+    final String username;
+    final String password;
+    final HttpUrl sessionResource;
+    final String accountId;
+    final MyInMemoryCache cache;
+    final SessionCache sessionCache;
+    final RefreshScheduler refreshScheduler = new RefreshScheduler();
+
+    private Mua mua;
+    private KeywordBatcher keywordBatcher;
+    private QueryCoordinator queryCoordinator;
+    private PagePrefetcher pagePrefetcher;
+    private BodyLoader bodyLoader;
+    private EventSourceMonitor eventSourceMonitor;
+    private volatile IdentifiableMailboxWithRole inbox;
+
+    private Account(Login login, String accountId, MyInMemoryCache cache, SessionCache sessionCache) {
+        this.username = login.username;
+        this.password = login.password;
+        this.sessionResource = login.sessionResource;
+        this.accountId = accountId;
+        this.cache = cache;
+        this.sessionCache = sessionCache;
+    }
+
+    /**
+     * Looks up the primary mail account and opens its cache. Nothing else is started. The session is stored in the
+     * cache directory so neither the {@link Mua} of this run nor the next start have to fetch it again. The client
+     * fetches a new one once the server reports a different session state.
+     */
+    static Account open(Login login) throws Exception {
+        final SessionCache sessionCache = sessionCache();
+        final String accountId;
+        try (final JmapClient client = new JmapClient(login.username, login.password, login.sessionResource)) {
+            client.setSessionCache(sessionCache);
+            accountId = client.getSession().get().getPrimaryAccount(MailAccountCapability.class);
+        }
+        MyInMemoryCache cache;
+        try {
+            cache = PersistentCache.open(Main.journal(login.username, accountId));
+        } catch (IOException e) {
+            LOGGER.warn("unable to open persistent cache. falling back to in memory cache", e);
+            cache = new MyInMemoryCache();
+        }
+        return new Account(login, accountId, cache, sessionCache);
+    }
+
+    private static SessionCache sessionCache() {
+        if (!Boolean.parseBoolean(System.getProperty("lttrs.session.persist", "true"))) {
+            return new InMemorySessionCache();
+        }
+        final Path directory = Main.cacheDirectory();
+        try {
+            Files.createDirectories(directory);
+            return new SessionFileCache(directory.toFile());
+        } catch (IOException e) {
+            LOGGER.warn("unable to create cache directory. session will not be persisted", e);
+            return new InMemorySessionCache();
+        }
+    }
+
+    /**
+     * @param onLoaded called after a page of the list or missing bodies have been loaded in the background
+     */
+    void connect(int queryPageSize, int prefetchDistance, boolean push, Runnable onLoaded) {
+        this.mua = Mua.builder()
+                .username(username)
+                .password(password)
+                .sessionResource(sessionResource)
+                .accountId(accountId)
+                .sessionCache(sessionCache)
+                .cache(cache)
+                .queryPageSize(queryPageSize)
+                .build();
+        this.keywordBatcher = new KeywordBatcher(mua);
+        this.queryCoordinator = new QueryCoordinator(mua);
+        this.pagePrefetcher = new PagePrefetcher(queryCoordinator, prefetchDistance, onLoaded);
+        this.bodyLoader = new BodyLoader(mua, accountId, cache, onLoaded);
+        if (push) {
+            this.eventSourceMonitor = new EventSourceMonitor(mua.getJmapClient(), username, password, sessionResource, accountId, refreshScheduler);
+            this.eventSourceMonitor.start();
+        }
+    }
+
+    Mua getMua() {
+        return mua;
+    }
+
+    KeywordBatcher getKeywordBatcher() {
+        return keywordBatcher;
+    }
+
+    QueryCoordinator getQueryCoordinator() {
+        return queryCoordinator;
+    }
+
+    PagePrefetcher getPagePrefetcher() {
+        return pagePrefetcher;
+    }
+
+    BodyLoader getBodyLoader() {
+        return bodyLoader;
+    }
+
+    IdentifiableMailboxWithRole getInbox() {
+        return inbox;
+    }
+
+    void setInbox(IdentifiableMailboxWithRole inbox) {
+        this.inbox = inbox;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (keywordBatcher != null) {
+            keywordBatcher.close();
+        }
+        if (eventSourceMonitor != null) {
+            eventSourceMonitor.close();
+        }
+        if (mua != null) {
+            mua.close();
+        }
+        if (cache instanceof Closeable) {
+            ((Closeable) cache).close();
+        }
+    }
+
+    /**
+     * Keeps the session for the lifetime of the process only.
+     */
+    private static class InMemorySessionCache implements SessionCache {
+
+        private final Map<String, Session> sessions = new HashMap<>();
+
+        @Override
+        public synchronized void store(String username, HttpUrl sessionResource, Session session) {
+            sessions.put(username + '@' + sessionResource, session);
+        }
+
+        @Override
+        public synchronized Session load(String username, HttpUrl sessionResource) {
+            return sessions.get(username + '@' + sessionResource);
+        }
+    }
+
+    static class Login {
+        final HttpUrl sessionResource;
+        final String username;
+        final String password;
+
+        Login(HttpUrl sessionResource, String username, String password) {
+            this.sessionResource = sessionResource;
+            this.username = username;
+            this.password = password;
+        }
+
+        /**
+         * @return null unless arguments are either username and password or url, username and password
+         */
+        static Login of(List<String> arguments) {
+            if (arguments.size() == 2) {
+                return new Login(null, arguments.get(0), arguments.get(1));
+            } else if (arguments.size() == 3) {
+                return new Login(HttpUrl.get(arguments.get(0)), arguments.get(1), arguments.get(2));
+            } else {
+                return null;
+            }
+        }
+
+        /**
+         * Reads one account per line in the same format as on the command line. Empty lines and lines starting with #
+         * are ignored.
+         */
+        static List<Login> read(Path file) throws IOException {
+            final List<Login> logins = new ArrayList<>();
+            int number = 0;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                ++number;
+                final String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                final Login login = of(Arrays.asList(trimmed.split("\\s+")));
+                if (login == null) {
+                    throw new IOException(file + ":" + number + ": expected [url] username password");
+                }
+                logins.add(login);
+            }
+            return logins;
+        }
+    }
+}
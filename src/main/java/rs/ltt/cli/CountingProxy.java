@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal HTTP proxy on the loopback interface that counts the bytes exchanged with the server. The shared
+ * OkHttpClient used by jmap-client can't be instrumented after it has been built but it does honor the proxy system
+ * properties. For https the counters include the TLS overhead.
+ */
+class CountingProxy implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CountingProxy.class);
+
+    private final ServerSocket serverSocket;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "counting-proxy");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    CountingProxy() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    void install() {
+        final String host = serverSocket.getInetAddress().getHostAddress();
+        final String port = String.valueOf(serverSocket.getLocalPort());
+        System.setProperty("http.proxyHost", host);
+        System.setProperty("http.proxyPort", port);
+        System.setProperty("https.proxyHost", host);
+        System.setProperty("https.proxyPort", port);
+        //by default connections to localhost bypass the proxy. we want to measure a local server as well
+        System.setProperty("http.nonProxyHosts", "");
+        executor.execute(this::accept);
+    }
+
+    long getSent() {
+        return sent.get();
+    }
+
+    long getReceived() {
+        return received.get();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket client = serverSocket.accept();
+                executor.execute(() -> handle(client));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER.warn("unable to accept proxy connection", e);
+                }
+            }
+        }
+    }
+
+    private void handle(Socket client) {
+        try (final Socket c = client) {
+            final InputStream in = c.getInputStream();
+            final ByteArrayOutputStream head = new ByteArrayOutputStream();
+            final String requestLine = readLine(in, head);
+            String line;
+            do {
+                line = readLine(in, head);
+            } while (!line.isEmpty());
+            final String[] parts = requestLine.split(" ");
+            if (parts.length != 3) {
+                throw new IOException("malformed request line " + requestLine);
+            }
+            final String host;
+            final int port;
+            final boolean tunnel = "CONNECT".equals(parts[0]);
+            if (tunnel) {
+                final int colon = parts[1].lastIndexOf(':');
+                host = parts[1].substring(0, colon);
+                port = Integer.parseInt(parts[1].substring(colon + 1));
+            } else {
+                final URI uri = URI.create(parts[1]);
+                host = uri.getHost();
+                port = uri.getPort() == -1 ? 80 : uri.getPort();
+            }
+            try (final Socket upstream = new Socket(host, port)) {
+                if (tunnel) {
+                    c.getOutputStream().write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    c.getOutputStream().flush();
+                } else {
+                    upstream.getOutputStream().write(head.toByteArray());
+                    sent.addAndGet(head.size());
+                }
+                executor.execute(() -> pump(upstream, c, received));
+                pump(c, upstream, sent);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("proxy connection failed", e);
+        }
+    }
+
+    private static void pump(Socket from, Socket to, AtomicLong counter) {
+        final byte[] buffer = new byte[8192];
+        try {
+            final InputStream in = from.getInputStream();
+            final OutputStream out = to.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                out.flush();
+                counter.addAndGet(read);
+            }
+            to.shutdownOutput();
+        } catch (IOException e) {
+            //one side went away. the other direction will notice on its own
+        }
+    }
+
+    private static String readLine(InputStream in, ByteArrayOutputStream head) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            head.write(c);
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        if (c == -1) {
+            throw new IOException("connection closed before end of request head");
+        }
+        return line.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+}
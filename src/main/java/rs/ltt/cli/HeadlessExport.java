@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli;
+
+import rs.ltt.cli.export.Exporter;
+import rs.ltt.jmap.client.api.HttpJmapApiClient;
+
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Exports an account or a single mailbox to a Maildir or an mbox without a terminal. Progress goes to stdout as JSON
+ * lines, logging to stderr.
+ */
+final class HeadlessExport {
+
+    static final String USAGE = "java -jar lttrs-cli.jar export --to path [--format maildir|mbox] [--mailbox name|role] [--parallel n] [--page-size n] [url] username password";
+
+    private HeadlessExport() {
+
+    }
+
+    static int run(List<String> arguments) {
+        final String to = HeadlessSync.option(arguments, "--to", null);
+        final String format = HeadlessSync.option(arguments, "--format", "maildir");
+        final String mailbox = HeadlessSync.option(arguments, "--mailbox", null);
+        final int parallel = Integer.parseInt(HeadlessSync.option(arguments, "--parallel", "4"));
+        final int pageSize = Integer.parseInt(HeadlessSync.option(arguments, "--page-size", "256"));
+
+        final Account.Login login = to == null ? null : Account.Login.of(arguments);
+        if (login == null) {
+            System.err.println(USAGE);
+            return 1;
+        }
+
+        try {
+            final long failed = new Exporter(login.username, login.password, login.sessionResource, parallel, pageSize).export(format, Paths.get(to), mailbox);
+            if (failed > 0) {
+                System.err.println(failed + " emails could not be exported. run the export again to retry them");
+                return 1;
+            }
+            return 0;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 1;
+        } finally {
+            HttpJmapApiClient.OK_HTTP_CLIENT.connectionPool().evictAll();
+            HttpJmapApiClient.OK_HTTP_CLIENT.dispatcher().executorService().shutdownNow();
+        }
+    }
+}
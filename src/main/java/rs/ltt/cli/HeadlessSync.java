@@ -0,0 +1,209 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import rs.ltt.cli.cache.MyInMemoryCache;
+import rs.ltt.cli.cache.PersistentCache;
+import rs.ltt.jmap.client.JmapClient;
+import rs.ltt.jmap.client.api.HttpJmapApiClient;
+import rs.ltt.jmap.common.entity.IdentifiableMailboxWithRole;
+import rs.ltt.jmap.common.entity.Role;
+import rs.ltt.jmap.common.entity.capability.MailAccountCapability;
+import rs.ltt.jmap.common.entity.filter.EmailFilterCondition;
+import rs.ltt.jmap.common.entity.query.EmailQuery;
+import rs.ltt.jmap.mua.Mua;
+import rs.ltt.jmap.mua.Status;
+import rs.ltt.jmap.mua.util.MailboxUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs the refresh sequence of the TUI without a terminal and prints one JSON object per request followed by a
+ * summary to stdout. Logging goes to stderr so the output can be piped into other tools.
+ */
+final class HeadlessSync {
+
+    private static final Gson GSON = new Gson();
+
+    private final CountingProxy proxy;
+    private final long start = System.nanoTime();
+    private final long baselineHeap = usedHeapAfterGc();
+
+    private HeadlessSync(CountingProxy proxy) {
+        this.proxy = proxy;
+    }
+
+    static int run(List<String> arguments) {
+        final int pages = Integer.parseInt(option(arguments, "--pages", "5"));
+        final int pageSize = Integer.parseInt(option(arguments, "--page-size", "20"));
+        final String cacheBackend = option(arguments, "--cache", "memory");
+
+        final Account.Login login = Account.Login.of(arguments);
+        if (login == null) {
+            System.err.println("java -jar lttrs-cli.jar sync [--pages n] [--page-size n] [--cache memory|journal] [url] username password");
+            return 1;
+        }
+
+        resetPeakHeap();
+        try (final CountingProxy proxy = new CountingProxy()) {
+            proxy.install();
+            return new HeadlessSync(proxy).sync(login, pages, pageSize, cacheBackend);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 1;
+        } finally {
+            HttpJmapApiClient.OK_HTTP_CLIENT.connectionPool().evictAll();
+            HttpJmapApiClient.OK_HTTP_CLIENT.dispatcher().executorService().shutdownNow();
+        }
+    }
+
+    private int sync(Account.Login login, int pages, int pageSize, String cacheBackend) throws Exception {
+        final String accountId = timed("session", () -> {
+            try (final JmapClient client = new JmapClient(login.username, login.password, login.sessionResource)) {
+                return client.getSession().get().getPrimaryAccount(MailAccountCapability.class);
+            }
+        });
+        final MyInMemoryCache cache;
+        if ("journal".equals(cacheBackend)) {
+            cache = PersistentCache.open(Main.journal(login.username, accountId));
+        } else if ("memory".equals(cacheBackend)) {
+            cache = new MyInMemoryCache();
+        } else {
+            System.err.println("unknown cache backend " + cacheBackend);
+            return 1;
+        }
+        try (final Mua mua = Mua.builder()
+                .username(login.username)
+                .password(login.password)
+                .sessionResource(login.sessionResource)
+                .accountId(accountId)
+                .cache(cache)
+                .queryPageSize(pageSize)
+                .build()) {
+            timed("mailboxes", () -> mua.refreshMailboxes().get());
+            timed("identities", () -> mua.refreshIdentities().get());
+            final IdentifiableMailboxWithRole inbox = MailboxUtil.find(cache.getMailboxes(), Role.INBOX);
+            if (inbox == null) {
+                System.err.println("Inbox not found");
+                return 1;
+            }
+            final EmailQuery query = EmailQuery.of(EmailFilterCondition.builder().inMailbox(inbox.getId()).build(), true);
+            cache.acquireQuery(query.toQueryString());
+            timed("query", () -> mua.query(query).get());
+            for (int page = 1; page <= pages; ++page) {
+                final String afterEmailId = cache.getLastEmailId(query.toQueryString());
+                if (afterEmailId == null) {
+                    break;
+                }
+                final Status status = timed("page", () -> mua.query(query, afterEmailId).get());
+                if (status != Status.UPDATED) {
+                    break;
+                }
+            }
+            summary(cache.getEmailCount(), pageSize, cacheBackend);
+        } finally {
+            if (cache instanceof Closeable) {
+                ((Closeable) cache).close();
+            }
+        }
+        return 0;
+    }
+
+    private <T> T timed(String request, Callable<T> callable) throws Exception {
+        final long sent = proxy.getSent();
+        final long received = proxy.getReceived();
+        final long begin = System.nanoTime();
+        final T result = callable.call();
+        final JsonObject line = new JsonObject();
+        line.addProperty("request", request);
+        line.addProperty("millis", (System.nanoTime() - begin) / 1_000_000.0);
+        line.addProperty("bytesSent", proxy.getSent() - sent);
+        line.addProperty("bytesReceived", proxy.getReceived() - received);
+        if (result instanceof Status) {
+            line.addProperty("status", result.toString());
+        }
+        System.out.println(GSON.toJson(line));
+        return result;
+    }
+
+    private void summary(int emails, int pageSize, String cacheBackend) {
+        final double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        final JsonObject line = new JsonObject();
+        line.addProperty("request", "total");
+        line.addProperty("millis", seconds * 1000);
+        line.addProperty("bytesSent", proxy.getSent());
+        line.addProperty("bytesReceived", proxy.getReceived());
+        line.addProperty("emails", emails);
+        line.addProperty("emailsPerSecond", emails / seconds);
+        line.addProperty("peakHeapBytes", peakHeap());
+        //measured while the cache is still reachable
+        final long retainedHeap = usedHeapAfterGc() - baselineHeap;
+        line.addProperty("retainedHeapBytes", retainedHeap);
+        line.addProperty("heapBytesPerEmail", emails == 0 ? 0 : retainedHeap / emails);
+        line.addProperty("pageSize", pageSize);
+        line.addProperty("cache", cacheBackend);
+        System.out.println(GSON.toJson(line));
+    }
+
+    /**
+     * Heap in use after a full collection. {@link System#gc()} is only a hint but all common collectors honor it.
+     */
+    private static long usedHeapAfterGc() {
+        System.gc();
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Sum of the peaks of the individual heap pools. Those don't necessarily occur at the same time so this is an
+     * upper bound.
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    static String option(List<String> arguments, String name, String defaultValue) {
+        final int index = arguments.indexOf(name);
+        if (index < 0 || index + 1 >= arguments.size()) {
+            return defaultValue;
+        }
+        arguments.remove(index);
+        return arguments.remove(index);
+    }
+}
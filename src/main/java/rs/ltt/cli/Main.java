@@ -16,29 +16,36 @@
 
 package rs.ltt.cli;
 
-import com.google.common.base.Strings;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.googlecode.lanterna.SGR;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.googlecode.lanterna.TerminalSize;
-import com.googlecode.lanterna.TextColor;
 import com.googlecode.lanterna.graphics.TextGraphics;
 import com.googlecode.lanterna.input.KeyStroke;
 import com.googlecode.lanterna.input.KeyType;
 import com.googlecode.lanterna.screen.TerminalScreen;
 import com.googlecode.lanterna.terminal.DefaultTerminalFactory;
 import com.googlecode.lanterna.terminal.Terminal;
-import okhttp3.HttpUrl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import rs.ltt.cli.cache.MyInMemoryCache;
+import rs.ltt.cli.action.ActionExecutor;
+import rs.ltt.cli.action.BulkExecutor;
+import rs.ltt.cli.metrics.Counter;
+import rs.ltt.cli.metrics.Metrics;
+import rs.ltt.cli.metrics.Timer;
+import rs.ltt.cli.model.QueryViewDiff;
 import rs.ltt.cli.model.QueryViewItem;
-import rs.ltt.jmap.client.JmapClient;
+import rs.ltt.cli.sync.PagePrefetcher;
+import rs.ltt.cli.sync.SyncCoordinator;
+import rs.ltt.cli.ui.QueryViewRenderer;
+import rs.ltt.cli.ui.ThreadReader;
 import rs.ltt.jmap.client.api.HttpJmapApiClient;
 import rs.ltt.jmap.client.api.MethodErrorResponseException;
 import rs.ltt.jmap.client.api.UnauthorizedException;
 import rs.ltt.jmap.common.entity.*;
-import rs.ltt.jmap.common.entity.capability.MailAccountCapability;
 import rs.ltt.jmap.common.entity.filter.EmailFilterCondition;
 import rs.ltt.jmap.common.entity.query.EmailQuery;
 import rs.ltt.jmap.mua.Mua;
@@ -47,23 +54,52 @@ import rs.ltt.jmap.mua.Status;
 import rs.ltt.jmap.mua.util.MailboxUtil;
 
 import java.io.IOException;
-import java.lang.Thread;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class Main {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
 
-    private static final SimpleDateFormat TIME_FORMAT = new SimpleDateFormat("HH:mm");
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("MMM dd");
+    private static final long STATUS_DURATION = 5000;
 
-    private static final MyInMemoryCache myInMemoryCache = new MyInMemoryCache();
+    private static final int DEFAULT_PREFETCH_DISTANCE = 10;
 
-    private static boolean running = true;
+    private static final int SEARCH_LIMIT = 500;
 
-    private static List<QueryViewItem> items;
+    private static final int DEFAULT_SYNC_THREADS = 4;
+
+    private static final Timer REFRESH_MAILBOXES = Metrics.timer("jmap.refreshMailboxes");
+    private static final Timer REFRESH_IDENTITIES = Metrics.timer("jmap.refreshIdentities");
+    private static final Timer QUERY = Metrics.timer("jmap.query");
+    private static final Timer POLL = Metrics.timer("poll.cycle");
+    private static final Counter POLL_UPDATED = Metrics.counter("poll.updated");
+    private static final Counter POLL_FAILED = Metrics.counter("poll.failed");
+
+    private static final QueryViewRenderer queryViewRenderer = new QueryViewRenderer();
+
+    private static final List<Account> accounts = new ArrayList<>();
+
+    //the account that is shown
+    private static Account currentAccount;
+
+    private static SyncCoordinator syncCoordinator;
+
+    //the list that is shown. either the items of the current query or the search results. lists are replaced as a
+    //whole and never modified once they have been published
+    private static volatile List<QueryViewItem> items;
+
+    private static List<QueryViewItem> queryItems;
+
+    //null unless the list shows search results
+    private static String search;
+    private static boolean searchPrompt = false;
 
     private static int cursorPosition = 0;
     private static int offset = 0;
@@ -71,45 +107,76 @@ public class Main {
 
     private static EmailQuery currentQuery;
 
-    public static void main(String... args) {
+    private static ActionExecutor actionExecutor;
+
+    private static BulkExecutor bulkExecutor;
 
+    //thread ids of the multi-selection
+    private static final Set<String> selected = new HashSet<>();
 
-        final String username;
-        final String password;
-        final HttpUrl sessionResource;
+    private static String status;
+    private static long statusTimestamp;
 
-        if (args.length == 2) {
-            sessionResource = null;
-            username = args[0];
-            password = args[1];
-        } else if (args.length == 3) {
-            sessionResource = HttpUrl.get(args[0]);
-            username = args[1];
-            password = args[2];
+    private static boolean metricsOverlay = false;
+
+    //null unless a thread is open
+    private static ThreadReader threadReader;
+
+    public static void main(String... args) {
+
+        final List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.isEmpty() && "sync".equals(arguments.get(0))) {
+            arguments.remove(0);
+            System.exit(HeadlessSync.run(arguments));
+            return;
+        }
+        if (!arguments.isEmpty() && "export".equals(arguments.get(0))) {
+            arguments.remove(0);
+            System.exit(HeadlessExport.run(arguments));
+            return;
+        }
+        final boolean push = arguments.remove("--push");
+
+        final List<Account.Login> logins = new ArrayList<>();
+        final int accountsFile = arguments.indexOf("--accounts");
+        if (accountsFile >= 0 && accountsFile + 1 < arguments.size()) {
+            try {
+                logins.addAll(Account.Login.read(Paths.get(arguments.get(accountsFile + 1))));
+            } catch (IOException e) {
+                System.err.println("unable to read accounts: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
         } else {
-            System.err.println("java -jar lttrs-cli.jar [url] username password");
+            final Account.Login login = Account.Login.of(arguments);
+            if (login != null) {
+                logins.add(login);
+            }
+        }
+        if (logins.isEmpty()) {
+            System.err.println("java -jar lttrs-cli.jar [--push] [url] username password");
+            System.err.println("java -jar lttrs-cli.jar [--push] --accounts file");
+            System.err.println("java -jar lttrs-cli.jar sync [--pages n] [--page-size n] [--cache memory|journal] [url] username password");
+            System.err.println(HeadlessExport.USAGE);
             System.exit(1);
             return;
         }
 
-        final String accountId;
-        try (final JmapClient client = new JmapClient(username, password, sessionResource)) {
-            accountId = client.getSession().get().getPrimaryAccount(MailAccountCapability.class);
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("Could not find primary email account");
+        for (Account.Login login : logins) {
+            try {
+                accounts.add(Account.open(login));
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.err.println("Could not find primary email account of " + login.username);
+            }
+        }
+        if (accounts.isEmpty()) {
             System.exit(1);
             return;
         }
+        currentAccount = accounts.get(0);
 
-        final Mua mua = Mua.builder()
-                .username(username)
-                .password(password)
-                .sessionResource(sessionResource)
-                .accountId(accountId)
-                .cache(myInMemoryCache)
-                .queryPageSize(10)
-                .build();
+        Metrics.startReporting();
 
         DefaultTerminalFactory defaultTerminalFactory = new DefaultTerminalFactory();
         try {
@@ -119,63 +186,51 @@ public class Main {
             screen.setCursorPosition(null);
             screen.refresh();
 
-            final Thread refreshThread = new Thread(() -> {
-                final IdentifiableMailboxWithRole inbox;
-                try {
-                    loadingMessage(screen, "Loading mailboxes…");
-                    mua.refreshMailboxes().get();
-                    inbox = MailboxUtil.find(myInMemoryCache.getMailboxes(), Role.INBOX);
-                    loadingMessage(screen, "Loading identities…");
-                    mua.refreshIdentities().get();
-                } catch (Exception e) {
-                    if (e instanceof ExecutionException) {
-                        Throwable cause = e.getCause();
-                        if (cause instanceof UnauthorizedException) {
-                            loadingMessage(screen, "Unauthorized");
-                            return;
-                        } else if (cause instanceof MethodErrorResponseException) {
-                            loadingMessage(screen, ((MethodErrorResponseException) cause).getMethodErrorResponse().getClass().getName());
-                            return;
-                        }
+            final int queryPageSize = PagePrefetcher.pageSize(screen.getTerminalSize().getRows());
+            final int prefetchDistance = Integer.getInteger("lttrs.prefetch.distance", DEFAULT_PREFETCH_DISTANCE);
+            for (Account account : accounts) {
+                account.connect(queryPageSize, prefetchDistance, push, () -> {
+                    if (!isCurrent(account)) {
+                        return;
                     }
-                    loadingMessage(screen, e.getMessage());
-                    return;
-                }
-                if (inbox == null) {
-                    loadingMessage(screen, "Inbox not found");
-                    return;
-                }
-                while (running) {
+                    applyQueryViewDiff();
                     try {
-                        currentQuery = EmailQuery.of(EmailFilterCondition.builder().inMailbox(inbox.getId()).build(), true);
-                        if (items == null) {
-                            loadingMessage(screen, "Loading messages from inbox…");
-                        }
-                        Status status = mua.query(currentQuery).get();
-                        if (status != Status.UNCHANGED) {
-                            items = myInMemoryCache.getQueryViewItems(currentQuery.toQueryString());
-                            redrawCurrentList(screen);
-                        }
+                        redrawCurrentList(screen);
+                    } catch (IOException e) {
+                        LOGGER.error("unable to redraw after loading in the background", e);
+                    }
+                    prefetch();
+                });
+            }
+
+            actionExecutor = new ActionExecutor(message -> showStatus(screen, message));
+            bulkExecutor = new BulkExecutor(message -> showStatus(screen, message));
+
+            syncCoordinator = new SyncCoordinator(Math.min(accounts.size(), Integer.getInteger("lttrs.sync.threads", DEFAULT_SYNC_THREADS)));
+            for (Account account : accounts) {
+                syncCoordinator.register(account.username, account.refreshScheduler, () -> refresh(screen, account), status -> {
+                    if (status != Status.UNCHANGED && isCurrent(account)) {
+                        applyQueryViewDiff();
                         try {
-                            Thread.sleep(5000);
-                        } catch (InterruptedException e) {
-                            //goodbye
+                            redrawCurrentList(screen);
+                        } catch (IOException e) {
+                            LOGGER.error("unable to redraw after refresh", e);
                         }
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                        prefetch();
                     }
-                }
-            });
-            refreshThread.start();
+                });
+            }
 
             terminal.addResizeListener((terminal1, terminalSize) -> {
                 try {
-                    if (items != null) {
-                        int newAvailableRows = terminalSize.getRows();
-                        int maxPossibleOffset = Math.max(0, items.size() - newAvailableRows);
-                        int minPossibleOffset = cursorPosition;
-                        offset = Math.min(minPossibleOffset, maxPossibleOffset);
-                        redrawCurrentList(screen);
+                    synchronized (Main.class) {
+                        if (items != null) {
+                            int newAvailableRows = terminalSize.getRows();
+                            int maxPossibleOffset = Math.max(0, items.size() - newAvailableRows);
+                            int minPossibleOffset = cursorPosition;
+                            offset = Math.min(minPossibleOffset, maxPossibleOffset);
+                            redrawCurrentList(screen);
+                        }
                     }
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -184,48 +239,92 @@ public class Main {
 
             while (true) {
                 KeyStroke keyStroke = screen.readInput();
+                if (searchPrompt && keyStroke.getKeyType() != KeyType.EOF) {
+                    editSearch(screen, keyStroke);
+                    continue;
+                }
                 if (((keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'q') || keyStroke.getKeyType() == KeyType.EOF)) {
-                    exit(mua, screen, refreshThread);
+                    exit(screen);
                     break;
                 }
+                if (threadReader != null) {
+                    read(screen, keyStroke);
+                    continue;
+                }
                 if (keyStroke.getKeyType() == KeyType.ArrowDown) {
-                    moveCursorDown(screen, mua);
+                    moveCursorDown(screen);
                 }
                 if (keyStroke.getKeyType() == KeyType.ArrowUp) {
                     moveCursorUp(screen);
                 }
                 if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'n') {
-                    toggleSeen(mua);
+                    toggleSeen();
                 }
                 if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 's') {
-                    toggleFlagged(mua);
+                    toggleFlagged();
                 }
                 if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'a') {
-                    archive(mua);
+                    archive(screen, currentAccount);
                 }
                 if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'd') {
-                    delete(mua);
+                    delete(screen, currentAccount);
                 }
                 if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'j') {
-                    applyLabel(mua, "jmap");
+                    applyLabel(currentAccount, "jmap");
                 }
                 if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'x') {
-                    applyLabel(mua, "xmpp");
+                    applyLabel(currentAccount, "xmpp");
                 }
                 if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'm') {
-                    markImportant(mua);
+                    markImportant(currentAccount);
                 }
                 if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'w') {
-                    write(mua, false);
+                    write(currentAccount, false);
                 }
                 if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'W') {
-                    write(mua, true);
+                    write(currentAccount, true);
                 }
                 if (keyStroke.getKeyType() == KeyType.Enter) {
-                    send(mua);
+                    send(currentAccount);
                 }
                 if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'T') {
-                    emptyTrash(mua);
+                    emptyTrash(currentAccount);
+                }
+                if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'i') {
+                    final IdentifiableMailboxWithRole inbox = MailboxUtil.find(currentAccount.cache.getMailboxes(), Role.INBOX);
+                    if (inbox != null) {
+                        switchQuery(screen, mailboxQuery(inbox));
+                    }
+                }
+                if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'f') {
+                    switchQuery(screen, EmailQuery.of(EmailFilterCondition.builder().hasKeyword(Keyword.FLAGGED).build(), true));
+                }
+                if (keyStroke.getKeyType() == KeyType.Tab) {
+                    nextMailbox(screen);
+                }
+                if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'A') {
+                    nextAccount(screen);
+                }
+                if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'M' && Metrics.ENABLED) {
+                    metricsOverlay = !metricsOverlay;
+                    redrawCurrentList(screen);
+                }
+                if (keyStroke.getKeyType() == KeyType.ArrowRight || (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == 'o')) {
+                    openThread(screen);
+                }
+                if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == '/') {
+                    startSearch(screen);
+                }
+                if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == ' ') {
+                    toggleSelection(screen);
+                }
+                if (keyStroke.getKeyType() == KeyType.Character && keyStroke.getCharacter() == '*') {
+                    selectAll(screen);
+                }
+                if (keyStroke.getKeyType() == KeyType.Escape) {
+                    if (!clearSelection(screen) && search != null) {
+                        endSearch(screen);
+                    }
                 }
 
             }
@@ -235,75 +334,445 @@ public class Main {
 
     }
 
+    static Path cacheDirectory() {
+        final String directory = System.getProperty("lttrs.cache.dir");
+        if (directory != null) {
+            return Paths.get(directory);
+        } else {
+            return Paths.get(System.getProperty("user.home"), ".cache", "lttrs-cli");
+        }
+    }
+
+    static Path journal(String username, String accountId) {
+        final String name = Hashing.sha256().hashString(username + '/' + accountId, StandardCharsets.UTF_8).toString();
+        return cacheDirectory().resolve(name + ".journal");
+    }
+
+    private static synchronized boolean isCurrent(Account account) {
+        return account == currentAccount;
+    }
+
+    /**
+     * One refresh cycle of an account. The first cycle loads mailboxes and identities. Afterwards the current query
+     * is refreshed for the account that is shown and the inbox for all others.
+     */
+    private static Status refresh(TerminalScreen screen, Account account) throws Exception {
+        if (account.getInbox() == null) {
+            initialRefresh(screen, account);
+            return Status.UPDATED;
+        }
+        final EmailQuery query;
+        synchronized (Main.class) {
+            query = account == currentAccount ? currentQuery : mailboxQuery(account.getInbox());
+        }
+        if (query == null) {
+            return Status.UNCHANGED;
+        }
+        final long start = POLL.start();
+        try {
+            final Status status = account.getQueryCoordinator().query(query).get();
+            if (status != Status.UNCHANGED) {
+                POLL_UPDATED.increment();
+            }
+            return status;
+        } catch (Exception e) {
+            POLL_FAILED.increment();
+            throw e;
+        } finally {
+            POLL.stop(start);
+        }
+    }
+
+    /**
+     * Mailboxes, identities and the inbox query don’t depend on each other once the inbox is known, so they are
+     * requested at the same time. With a warm journal the cached inbox is shown right away and the first cycle takes
+     * a single round trip. Only on a cold start the query has to wait for the mailboxes.
+     */
+    private static void initialRefresh(TerminalScreen screen, Account account) throws Exception {
+        final Mua mua = account.getMua();
+        final IdentifiableMailboxWithRole cachedInbox = MailboxUtil.find(account.cache.getMailboxes(), Role.INBOX);
+        if (cachedInbox != null && isCurrent(account)) {
+            showQuery(screen, mailboxQuery(cachedInbox));
+        }
+        loadingMessage(screen, account, "Loading mailboxes…");
+        final ListenableFuture<Status> mailboxes = REFRESH_MAILBOXES.time(mua.refreshMailboxes());
+        final ListenableFuture<Status> identities = REFRESH_IDENTITIES.time(mua.refreshIdentities());
+        final ListenableFuture<Status> query = cachedInbox == null ? null : account.getQueryCoordinator().query(mailboxQuery(cachedInbox));
+        final IdentifiableMailboxWithRole inbox;
+        try {
+            mailboxes.get();
+            inbox = MailboxUtil.find(account.cache.getMailboxes(), Role.INBOX);
+            if (inbox == null) {
+                loadingMessage(screen, account, "Inbox not found");
+                throw new IllegalStateException("Inbox not found");
+            }
+            final boolean inboxChanged = cachedInbox == null || !cachedInbox.getId().equals(inbox.getId());
+            if (inboxChanged) {
+                loadingMessage(screen, account, "Loading messages…");
+                account.getQueryCoordinator().query(mailboxQuery(inbox)).get();
+            }
+            if (query != null) {
+                query.get();
+            }
+            identities.get();
+        } catch (ExecutionException e) {
+            loadingMessage(screen, account, describe(e));
+            throw e;
+        }
+        account.cache.acquireQuery(mailboxQuery(inbox).toQueryString());
+        account.setInbox(inbox);
+        final boolean showInbox;
+        synchronized (Main.class) {
+            //don’t pull the user back to the inbox if they moved on while this was loading
+            showInbox = account == currentAccount && (currentQuery == null || (cachedInbox != null && currentQuery.toQueryString().equals(mailboxQuery(cachedInbox).toQueryString())));
+        }
+        if (showInbox) {
+            showQuery(screen, mailboxQuery(inbox));
+        }
+    }
+
+    private static String describe(Exception e) {
+        if (e instanceof ExecutionException) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnauthorizedException) {
+                return "Unauthorized";
+            } else if (cause instanceof MethodErrorResponseException) {
+                return ((MethodErrorResponseException) cause).getMethodErrorResponse().getClass().getName();
+            }
+        }
+        return e.getMessage();
+    }
+
+    private static void nextAccount(TerminalScreen screen) throws IOException {
+        final Account account;
+        synchronized (Main.class) {
+            if (accounts.size() < 2) {
+                return;
+            }
+            if (currentQuery != null) {
+                currentAccount.cache.releaseQuery(currentQuery.toQueryString());
+            }
+            currentAccount = accounts.get((accounts.indexOf(currentAccount) + 1) % accounts.size());
+            account = currentAccount;
+            currentQuery = null;
+            queryItems = null;
+            items = null;
+            search = null;
+            searchPrompt = false;
+            selected.clear();
+        }
+        final IdentifiableMailboxWithRole inbox = account.getInbox();
+        if (inbox != null) {
+            switchQuery(screen, mailboxQuery(inbox));
+        } else {
+            loadingMessage(screen, "Loading mailboxes…");
+            account.refreshScheduler.trigger();
+        }
+        showStatus(screen, account.username);
+    }
+
+    private static EmailQuery mailboxQuery(IdentifiableMailboxWithRole mailbox) {
+        return EmailQuery.of(EmailFilterCondition.builder().inMailbox(mailbox.getId()).build(), true);
+    }
+
+    private static void nextMailbox(TerminalScreen screen) throws IOException {
+        final List<Mailbox> mailboxes = new ArrayList<>(currentAccount.cache.getMailboxes());
+        if (mailboxes.isEmpty()) {
+            return;
+        }
+        mailboxes.sort(Comparator.comparing(Mailbox::getName, String.CASE_INSENSITIVE_ORDER));
+        int next = 0;
+        for (int i = 0; i < mailboxes.size(); ++i) {
+            if (currentQuery != null && mailboxQuery(mailboxes.get(i)).toQueryString().equals(currentQuery.toQueryString())) {
+                next = (i + 1) % mailboxes.size();
+                break;
+            }
+        }
+        final Mailbox mailbox = mailboxes.get(next);
+        switchQuery(screen, mailboxQuery(mailbox));
+        showStatus(screen, mailbox.getName());
+    }
+
+    /**
+     * Shows whatever the cache still holds for the query right away and lets the refresh cycle fetch the rest.
+     */
+    private static void switchQuery(TerminalScreen screen, EmailQuery query) throws IOException {
+        if (showQuery(screen, query)) {
+            currentAccount.refreshScheduler.trigger();
+        }
+    }
+
+    /**
+     * @return false if the query was already shown
+     */
+    private static boolean showQuery(TerminalScreen screen, EmailQuery query) throws IOException {
+        synchronized (Main.class) {
+            if (currentQuery != null) {
+                if (currentQuery.toQueryString().equals(query.toQueryString())) {
+                    return false;
+                }
+                currentAccount.cache.releaseQuery(currentQuery.toQueryString());
+            }
+            currentAccount.cache.acquireQuery(query.toQueryString());
+            currentQuery = query;
+            queryItems = null;
+            search = null;
+            searchPrompt = false;
+            selected.clear();
+            cursorPosition = 0;
+            offset = 0;
+            applyQueryViewDiff();
+        }
+        if (items.isEmpty()) {
+            loadingMessage(screen, "Loading messages…");
+        } else {
+            redrawCurrentList(screen);
+        }
+        return true;
+    }
+
     private static void moveCursorUp(TerminalScreen screen) throws IOException {
-        if (cursorPosition > 0) {
+        synchronized (Main.class) {
+            if (cursorPosition <= 0) {
+                return;
+            }
             --cursorPosition;
             if (cursorPosition < offset) {
                 --offset;
             }
-            redrawCurrentList(screen);
         }
+        redrawCurrentList(screen);
+        prefetch();
     }
 
-    private static void moveCursorDown(TerminalScreen screen, Mua mua) throws IOException {
-        if (items != null && items.size() - 1 > cursorPosition) {
+    private static void moveCursorDown(TerminalScreen screen) throws IOException {
+        synchronized (Main.class) {
+            if (items == null || items.size() - 1 <= cursorPosition) {
+                return;
+            }
             ++cursorPosition;
             if (cursorPosition - offset == availableRows) {
                 ++offset;
             }
-            redrawCurrentList(screen);
-            if (cursorPosition == items.size() - 1) {
-                QueryViewItem last = Iterables.getLast(items, null);
-                try {
-                    Status status = mua.query(currentQuery, last.mostRecent.getId()).get();
-                    if (status == Status.UPDATED) {
-                        items = myInMemoryCache.getQueryViewItems(currentQuery.toQueryString());
-                        redrawCurrentList(screen);
+        }
+        redrawCurrentList(screen);
+        currentAccount.getPagePrefetcher().onCursorMoved();
+        prefetch();
+    }
+
+    /**
+     * @return the item under the cursor or null if the list is empty
+     */
+    private static synchronized QueryViewItem currentItem() {
+        final List<QueryViewItem> items = Main.items;
+        if (items == null || items.isEmpty()) {
+            return null;
+        }
+        return items.get(Math.min(cursorPosition, items.size() - 1));
+    }
+
+    private static synchronized void prefetch() {
+        if (search == null && currentQuery != null) {
+            final String afterEmailId = currentAccount.cache.getLastEmailId(currentQuery.toQueryString());
+            currentAccount.getPagePrefetcher().maybeFetch(currentQuery, afterEmailId, queryItems, cursorPosition);
+        }
+        if (items != null && offset < items.size()) {
+            currentAccount.getBodyLoader().loadMissing(new ArrayList<>(items.subList(offset, Math.min(items.size(), offset + availableRows))));
+        }
+    }
+
+    /**
+     * Keeps the items of the current query up to date even while search results are shown. Search results are
+     * recomputed from the local index which is cheap enough to do on every change.
+     * <p>
+     * The diff is applied to a copy that replaces the published list in one step, so a list that has been handed to
+     * the renderer, the prefetcher or an action is never seen half updated.
+     */
+    private static synchronized void applyQueryViewDiff() {
+        if (currentQuery == null) {
+            return;
+        }
+        final QueryViewDiff diff = currentAccount.cache.getQueryViewDiff(currentQuery.toQueryString());
+        if (queryItems == null || !diff.isEmpty()) {
+            final List<QueryViewItem> next = queryItems == null ? new ArrayList<>() : new ArrayList<>(queryItems);
+            diff.applyTo(next);
+            queryItems = Collections.unmodifiableList(next);
+        }
+        if (search == null) {
+            items = queryItems;
+        } else {
+            items = currentAccount.cache.search(search, SEARCH_LIMIT);
+        }
+        cursorPosition = Math.max(0, Math.min(cursorPosition, items.size() - 1));
+        offset = Math.max(0, Math.min(offset, cursorPosition));
+    }
+
+    private static void startSearch(TerminalScreen screen) throws IOException {
+        synchronized (Main.class) {
+            if (search == null) {
+                search = "";
+            }
+            searchPrompt = true;
+        }
+        redrawCurrentList(screen);
+    }
+
+    private static void editSearch(TerminalScreen screen, KeyStroke keyStroke) throws IOException {
+        switch (keyStroke.getKeyType()) {
+            case Escape:
+                endSearch(screen);
+                return;
+            case Enter:
+                synchronized (Main.class) {
+                    searchPrompt = false;
+                }
+                redrawCurrentList(screen);
+                return;
+            case Backspace:
+                synchronized (Main.class) {
+                    if (!search.isEmpty()) {
+                        search = search.substring(0, search.length() - 1);
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    ;
                 }
+                break;
+            case Character:
+                synchronized (Main.class) {
+                    search = search + keyStroke.getCharacter();
+                }
+                break;
+            default:
+                return;
+        }
+        synchronized (Main.class) {
+            cursorPosition = 0;
+            offset = 0;
+            applyQueryViewDiff();
+        }
+        redrawCurrentList(screen);
+    }
+
+    private static void endSearch(TerminalScreen screen) throws IOException {
+        synchronized (Main.class) {
+            search = null;
+            searchPrompt = false;
+            cursorPosition = 0;
+            offset = 0;
+            applyQueryViewDiff();
+        }
+        redrawCurrentList(screen);
+    }
+
+    private static void openThread(TerminalScreen screen) throws IOException {
+        synchronized (Main.class) {
+            if (items == null || items.isEmpty()) {
+                return;
+            }
+            final QueryViewItem item = items.get(cursorPosition);
+            threadReader = new ThreadReader(currentAccount.cache.getEmails(item.threadId), currentAccount.cache::getBodyValues);
+        }
+        redrawCurrentList(screen);
+    }
+
+    private static void read(TerminalScreen screen, KeyStroke keyStroke) throws IOException {
+        synchronized (Main.class) {
+            final int page = Math.max(1, availableRows - 2);
+            switch (keyStroke.getKeyType()) {
+                case ArrowDown:
+                    threadReader.scrollDown(1);
+                    break;
+                case ArrowUp:
+                    threadReader.scrollUp(1);
+                    break;
+                case PageDown:
+                    threadReader.scrollDown(page);
+                    break;
+                case PageUp:
+                    threadReader.scrollUp(page);
+                    break;
+                case Character:
+                    if (keyStroke.getCharacter() == ' ') {
+                        threadReader.scrollDown(page);
+                    }
+                    break;
+                case Escape:
+                case ArrowLeft:
+                    threadReader = null;
+                    queryViewRenderer.invalidate();
+                    break;
+                default:
+                    return;
             }
         }
+        redrawCurrentList(screen);
     }
 
-    private static void exit(Mua mua, TerminalScreen screen, Thread refreshThread) throws IOException {
+    private static void exit(TerminalScreen screen) throws IOException {
         screen.stopScreen();
-        running = false;
-        refreshThread.interrupt();
-        mua.close();
+        syncCoordinator.close();
+        actionExecutor.shutdown();
+        bulkExecutor.shutdown();
+        for (Account account : accounts) {
+            account.close();
+        }
+        Metrics.stopReporting();
         HttpJmapApiClient.OK_HTTP_CLIENT.connectionPool().evictAll();
         HttpJmapApiClient.OK_HTTP_CLIENT.dispatcher().executorService().shutdownNow();
     }
 
-    private static void toggleSeen(Mua mua) {
-        QueryViewItem item = items.get(cursorPosition);
-        if (item.mostRecent.getKeywords().containsKey(Keyword.SEEN)) {
-            mua.removeKeyword(myInMemoryCache.getEmails(item.threadId), Keyword.SEEN);
-        } else {
-            mua.setKeyword(myInMemoryCache.getEmails(item.threadId), Keyword.SEEN);
+    private static void toggleSeen() {
+        final Map<String, Collection<Email>> selection = getSelection(currentAccount);
+        if (selection != null) {
+            //mark everything as read unless every selected thread is read already
+            boolean unread = false;
+            for (Collection<Email> thread : selection.values()) {
+                for (Email email : thread) {
+                    unread |= !hasKeyword(email, Keyword.SEEN);
+                }
+            }
+            toggleKeyword(currentAccount, selection, Keyword.SEEN, !unread, unread ? "Marking as read" : "Marking as unread");
+            return;
+        }
+        final QueryViewItem item = currentItem();
+        if (item == null) {
+            return;
         }
+        currentAccount.getKeywordBatcher().toggle(currentAccount.cache.getEmails(item.threadId), Keyword.SEEN, !item.unread);
     }
 
-    private static void toggleFlagged(Mua mua) {
-        QueryViewItem item = items.get(cursorPosition);
-        if (item.mostRecent.getKeywords().containsKey(Keyword.FLAGGED)) {
-            mua.removeKeyword(myInMemoryCache.getEmails(item.threadId), Keyword.FLAGGED);
-        } else {
-            mua.setKeyword(myInMemoryCache.getEmails(item.threadId), Keyword.FLAGGED);
+    private static void toggleFlagged() {
+        final Map<String, Collection<Email>> selection = getSelection(currentAccount);
+        if (selection != null) {
+            //flag everything unless every selected thread is flagged already
+            boolean flagged = true;
+            for (Collection<Email> thread : selection.values()) {
+                boolean threadFlagged = false;
+                for (Email email : thread) {
+                    threadFlagged |= hasKeyword(email, Keyword.FLAGGED);
+                }
+                flagged &= threadFlagged;
+            }
+            toggleKeyword(currentAccount, selection, Keyword.FLAGGED, flagged, flagged ? "Removing flag" : "Flagging");
+            return;
         }
+        final QueryViewItem item = currentItem();
+        if (item == null) {
+            return;
+        }
+        currentAccount.getKeywordBatcher().toggle(currentAccount.cache.getEmails(item.threadId), Keyword.FLAGGED, item.flagged);
     }
 
-    private static void send(Mua mua) {
-        QueryViewItem item = items.get(cursorPosition);
+    private static void send(Account account) {
+        final QueryViewItem item = currentItem();
+        if (item == null) {
+            return;
+        }
         if (!item.mostRecent.getKeywords().containsKey(Keyword.DRAFT)) {
             return;
         }
-        Identity identity = Iterables.getFirst(myInMemoryCache.getIdentities(), null);
+        Identity identity = Iterables.getFirst(account.cache.getIdentities(), null);
         if (identity != null) {
             try {
-                LOGGER.info("submitted email: " + mua.submit(item.mostRecent, identity).get());
+                LOGGER.info("submitted email: " + account.getMua().submit(item.mostRecent, identity).get());
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -313,33 +782,37 @@ public class Main {
 
     }
 
-    private static void applyLabel(Mua mua, String label) {
+    private static void applyLabel(Account account, String label) {
         Mailbox labelMailbox = null;
-        for (Mailbox mailbox : myInMemoryCache.getMailboxes()) {
+        for (Mailbox mailbox : account.cache.getMailboxes()) {
             if (label.equals(mailbox.getName()) && mailbox.getRole() == null) {
                 labelMailbox = mailbox;
             }
         }
-        if (labelMailbox == null) {
-            try {
-                mua.createMailbox(Mailbox.builder().name(label).build()).get();
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
-            }
-        } else {
-            QueryViewItem item = items.get(cursorPosition);
-            Collection<Email> emails = myInMemoryCache.getEmails(item.threadId);
-            try {
-                mua.copyToMailbox(emails, labelMailbox).get();
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
-            }
+        final Mailbox existing = labelMailbox;
+        final Map<String, Collection<Email>> selection = existing == null ? null : getSelection(account);
+        if (selection != null) {
+            bulkExecutor.submit("Applying label " + label, emailsOf(selection), chunk -> account.getMua().copyToMailbox(chunk, existing), catchUp(account), failed -> {
+            });
+            return;
         }
-
-
+        final QueryViewItem item = currentItem();
+        if (item == null) {
+            return;
+        }
+        final Collection<Email> emails = account.cache.getEmails(item.threadId);
+        actionExecutor.submit("Applying label " + label, () -> {
+            if (existing == null) {
+                return account.getMua().createMailbox(Mailbox.builder().name(label).build()).get();
+            } else {
+                return account.getMua().copyToMailbox(emails, existing).get();
+            }
+        }, () -> {
+        }, () -> {
+        });
     }
 
-    private static void write(Mua mua, boolean sendImmediately) {
+    private static void write(Account account, boolean sendImmediately) {
         EmailBodyValue emailBodyValue = EmailBodyValue.builder()
                 .value("This is a message from ltt.rs")
                 .build();
@@ -354,248 +827,359 @@ public class Main {
                         .name("Test Thetest")
                         .build())
                 .from(EmailAddress.builder()
-                        .email(mua.getJmapClient().getUsername())
+                        .email(account.getMua().getJmapClient().getUsername())
                         .build())
                 .subject("This is a test")
                 .bodyValue(partId, emailBodyValue)
                 .textBody(emailBodyPart)
-                .mailboxId(MailboxUtil.find(myInMemoryCache.getMailboxes(), Role.INBOX).getId(), true)
+                .mailboxId(MailboxUtil.find(account.cache.getMailboxes(), Role.INBOX).getId(), true)
                 .build();
-        ListenableFuture<String> future;
-        if (sendImmediately) {
-            Identity identity = Iterables.getFirst(myInMemoryCache.getIdentities(), null);
-            future = mua.send(email, identity);
-        } else {
-            future = mua.draft(email);
-        }
-        try {
-            future.get();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            Throwable cause = e.getCause();
-            if (cause instanceof SetEmailException) {
-                LOGGER.error(cause.toString());
+        actionExecutor.submit(sendImmediately ? "Sending" : "Saving draft", () -> {
+            ListenableFuture<String> future;
+            if (sendImmediately) {
+                Identity identity = Iterables.getFirst(account.cache.getIdentities(), null);
+                future = account.getMua().send(email, identity);
             } else {
-                LOGGER.error(e.getMessage(), e);
+                future = account.getMua().draft(email);
             }
-        }
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SetEmailException) {
+                    LOGGER.error(cause.toString());
+                }
+                throw e;
+            }
+        }, account.refreshScheduler::trigger, () -> {
+        });
     }
 
-    private static void delete(Mua mua) {
-        QueryViewItem item = items.get(cursorPosition);
-        mua.moveToTrash(myInMemoryCache.getEmails(item.threadId));
+    private static void delete(TerminalScreen screen, Account account) throws IOException {
+        final Map<String, Collection<Email>> selection = takeSelection(account);
+        if (selection != null) {
+            hideBulk(screen, account, "Moving to trash", selection, chunk -> account.getMua().moveToTrash(chunk));
+            return;
+        }
+        final QueryViewItem item = currentItem();
+        if (item == null) {
+            return;
+        }
+        final Collection<Email> emails = account.cache.getEmails(item.threadId);
+        hideOptimistically(screen, account, "Moving to trash", item.threadId, () -> account.getMua().moveToTrash(emails).get());
     }
 
-    private static void archive(Mua mua) {
-        QueryViewItem item = items.get(cursorPosition);
-        try {
-            mua.archive(myInMemoryCache.getEmails(item.threadId)).get();
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
+    private static void archive(TerminalScreen screen, Account account) throws IOException {
+        final Map<String, Collection<Email>> selection = takeSelection(account);
+        if (selection != null) {
+            hideBulk(screen, account, "Archiving", selection, chunk -> account.getMua().archive(chunk));
+            return;
+        }
+        final QueryViewItem item = currentItem();
+        if (item == null) {
+            return;
         }
+        final Collection<Email> emails = account.cache.getEmails(item.threadId);
+        hideOptimistically(screen, account, "Archiving", item.threadId, () -> account.getMua().archive(emails).get());
     }
 
-    private static void markImportant(Mua mua) {
-        QueryViewItem item = items.get(cursorPosition);
-        try {
-            mua.copyToImportant(myInMemoryCache.getEmails(item.threadId)).get();
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
-        }
+    private static void hideOptimistically(TerminalScreen screen, Account account, String description, String threadId, Callable<?> action) throws IOException {
+        account.cache.hideThread(threadId);
+        applyQueryViewDiff();
+        redrawCurrentList(screen);
+        actionExecutor.submit(description, action, () -> {
+            account.cache.confirmHiddenThread(threadId);
+            account.refreshScheduler.trigger();
+        }, () -> {
+            account.cache.showThread(threadId);
+            if (isCurrent(account)) {
+                applyQueryViewDiff();
+            }
+        });
     }
 
-    private static void emptyTrash(Mua mua) {
-        try {
-            mua.emptyTrash().get();
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Hides all threads right away and shows those again that contain emails the bulk operation failed on.
+     */
+    private static void hideBulk(TerminalScreen screen, Account account, String description, Map<String, Collection<Email>> threads, Function<Collection<Email>, ListenableFuture<?>> operation) throws IOException {
+        account.cache.hideThreads(threads.keySet());
+        applyQueryViewDiff();
+        redrawCurrentList(screen);
+        bulkExecutor.submit(description, emailsOf(threads), operation, catchUp(account), failed -> {
+            final Set<String> failedThreads = new HashSet<>();
+            for (Email email : failed) {
+                failedThreads.add(email.getThreadId());
+            }
+            for (String threadId : threads.keySet()) {
+                if (!failedThreads.contains(threadId)) {
+                    account.cache.confirmHiddenThread(threadId);
+                }
+            }
+            account.cache.showThreads(failedThreads);
+            if (isCurrent(account)) {
+                applyQueryViewDiff();
+            }
+            account.refreshScheduler.trigger();
+        });
     }
 
-    private static void loadingMessage(TerminalScreen screen, String message) {
-        screen.clear();
-        TerminalSize size = screen.getTerminalSize();
-        TextGraphics text = screen.newTextGraphics();
-        text.putString(0, size.getRows() - 1, message);
-        try {
-            screen.refresh();
-        } catch (IOException e) {
-            LOGGER.error("unable to refresh screen after printing loading message", e);
+    /**
+     * Refreshes the list the selection was made from, which also picks up the email changes of the previous chunk, so
+     * the next chunk of a bulk operation is based on the current email state.
+     */
+    private static Supplier<ListenableFuture<?>> catchUp(Account account) {
+        final EmailQuery query;
+        synchronized (Main.class) {
+            query = currentQuery;
+        }
+        if (query == null) {
+            return () -> Futures.immediateFuture(null);
         }
+        return () -> account.getQueryCoordinator().query(query);
     }
 
-    private static void redrawCurrentList(TerminalScreen screen) throws IOException {
-        TerminalSize terminalSize = screen.doResizeIfNecessary();
-        if (terminalSize == null) {
-            terminalSize = screen.getTerminalSize();
+    private static void toggleKeyword(Account account, Map<String, Collection<Email>> threads, String keyword, boolean currentlySet, String description) {
+        final Mua mua = account.getMua();
+        bulkExecutor.submit(description, emailsOf(threads), chunk -> currentlySet ? mua.removeKeyword(chunk, keyword) : mua.setKeyword(chunk, keyword), catchUp(account), failed -> {
+        });
+    }
+
+    private static void markImportant(Account account) {
+        final Map<String, Collection<Email>> selection = getSelection(account);
+        if (selection != null) {
+            bulkExecutor.submit("Marking as important", emailsOf(selection), chunk -> account.getMua().copyToImportant(chunk), catchUp(account), failed -> {
+            });
+            return;
         }
-        TextGraphics textGraphics = screen.newTextGraphics();
-        int availableWidth = terminalSize.getColumns();
-        availableRows = terminalSize.getRows();
-        int fromWidth = 20;
-        int dateWidth = 7;
-        int threadSizeWidth = 8;
-        int subjectPreviewWidth = availableWidth - fromWidth - dateWidth - threadSizeWidth;
-
-
-        int row = 0;
-        for (int i = offset; i < offset + availableRows; ++i) {
-            if (i >= items.size()) {
-                textGraphics.setForegroundColor(TextColor.ANSI.WHITE);
-                textGraphics.setBackgroundColor(TextColor.ANSI.BLACK);
-                textGraphics.putString(0, row, Strings.repeat(" ", availableWidth));
-                ++row;
-                continue;
-            }
-            QueryViewItem item = items.get(i);
-            final boolean seen = item.mostRecent.getKeywords().containsKey(Keyword.SEEN);
-            final boolean draft = item.mostRecent.getKeywords().containsKey(Keyword.DRAFT);
-            final SGR sgr;
-            if (draft) {
-                sgr = SGR.ITALIC;
-            } else if (seen) {
-                sgr = null;
-            } else {
-                sgr = SGR.BOLD;
-            }
-            final boolean flagged = item.mostRecent.getKeywords().containsKey(Keyword.FLAGGED);
-            boolean selected = i == cursorPosition;
-            String from = from(item.from, fromWidth);
-            String subject = item.mostRecent.getSubject();
-            //String preview = item.mostRecent.getPreview().trim();
-            String preview = getPreviewFromBodyParts(item.mostRecent.getTextBody(), item.mostRecent.getBodyValues());
-            String date = receivedAt(item.mostRecent.getReceivedAt(), dateWidth);
-            textGraphics.setForegroundColor(selected ? TextColor.ANSI.BLACK : TextColor.ANSI.WHITE);
-            textGraphics.setBackgroundColor(selected ? TextColor.ANSI.CYAN : TextColor.ANSI.BLACK);
-            if (flagged) {
-                textGraphics.putString(0, row, "\u2605 ");
-            } else {
-                textGraphics.putString(0, row, "  ");
+        final QueryViewItem item = currentItem();
+        if (item == null) {
+            return;
+        }
+        final Collection<Email> emails = account.cache.getEmails(item.threadId);
+        actionExecutor.submit("Marking as important", () -> account.getMua().copyToImportant(emails).get(), () -> {
+        }, () -> {
+        });
+    }
+
+    private static void emptyTrash(Account account) {
+        actionExecutor.submit("Emptying trash", () -> account.getMua().emptyTrash().get(), () -> {
+        }, () -> {
+        });
+    }
+
+    private static void toggleSelection(TerminalScreen screen) throws IOException {
+        synchronized (Main.class) {
+            if (items == null || items.isEmpty()) {
+                return;
             }
-            if (sgr == null) {
-                textGraphics.putString(2, row, from);
-            } else {
-                textGraphics.putString(2, row, from, sgr);
+            final String threadId = items.get(cursorPosition).threadId;
+            if (!selected.remove(threadId)) {
+                selected.add(threadId);
             }
-            if (sgr == null) {
-                textGraphics.putString(2 + fromWidth, row, threadSize(item.count));
-            } else {
-                textGraphics.putString(2 + fromWidth, row, threadSize(item.count), sgr);
+        }
+        redrawCurrentList(screen);
+        moveCursorDown(screen);
+    }
+
+    /**
+     * Selects every thread matching the current query. Pages of the query are loaded in the background until the
+     * server has no more results; search results are selected as they are.
+     */
+    private static void selectAll(TerminalScreen screen) throws IOException {
+        final Account account;
+        final EmailQuery query;
+        synchronized (Main.class) {
+            if (items == null) {
+                return;
             }
-            if (subject.length() > subjectPreviewWidth) {
-                if (sgr == null) {
-                    textGraphics.putString(2 + fromWidth + threadSizeWidth, row, subject.substring(0, subjectPreviewWidth));
-                } else {
-                    textGraphics.putString(2 + fromWidth + threadSizeWidth, row, subject.substring(0, subjectPreviewWidth), sgr);
+            if (search != null) {
+                for (QueryViewItem item : items) {
+                    selected.add(item.threadId);
                 }
-            } else {
-                if (sgr == null) {
-                    textGraphics.putString(2 + fromWidth + threadSizeWidth, row, subject);
+                status = selected.size() + " threads selected";
+                statusTimestamp = System.currentTimeMillis();
+                redrawCurrentList(screen);
+                return;
+            }
+            account = currentAccount;
+            query = currentQuery;
+        }
+        showStatus(screen, "Selecting all…");
+        selectRemaining(screen, account, query, null);
+    }
+
+    /**
+     * Requests the next page through the query coordinator once the previous one has arrived and selects everything
+     * when there are no more pages. Nothing waits for the server in the meantime, so the action threads stay free for
+     * archiving, flagging and the like. Stops when the user has switched to a different query.
+     */
+    private static void selectRemaining(TerminalScreen screen, Account account, EmailQuery query, String last) {
+        synchronized (Main.class) {
+            if (account != currentAccount || query != currentQuery) {
+                return;
+            }
+        }
+        final String afterEmailId = account.cache.getLastEmailId(query.toQueryString());
+        //the last page did not add anything
+        if (afterEmailId == null || afterEmailId.equals(last)) {
+            selectLoaded(screen, account, query);
+            return;
+        }
+        Futures.addCallback(account.getQueryCoordinator().query(query, afterEmailId), new FutureCallback<Status>() {
+            @Override
+            public void onSuccess(Status status) {
+                if (status == Status.UPDATED) {
+                    selectRemaining(screen, account, query, afterEmailId);
                 } else {
-                    textGraphics.putString(2 + fromWidth + threadSizeWidth, row, subject, sgr);
-                }
-                int previewWidth = subjectPreviewWidth - subject.length() + 1;
-                if (previewWidth > 1) {
-                    textGraphics.setForegroundColor(selected ? TextColor.ANSI.BLACK : TextColor.ANSI.CYAN);
-                    if (sgr == null) {
-                        textGraphics.putString(2 + fromWidth + threadSizeWidth + subject.length(), row, " ");
-                        textGraphics.putString(2 + fromWidth + threadSizeWidth + subject.length() + 1, row, preview(preview, previewWidth));
-                    } else {
-                        textGraphics.putString(2 + fromWidth + threadSizeWidth + subject.length(), row, " ", sgr);
-                        textGraphics.putString(2 + fromWidth + threadSizeWidth + subject.length() + 1, row, preview(preview, previewWidth), sgr);
-                    }
+                    selectLoaded(screen, account, query);
                 }
             }
 
-            textGraphics.setForegroundColor(selected ? TextColor.ANSI.BLACK : TextColor.ANSI.WHITE);
-
-            if (sgr == null) {
-                textGraphics.putString(availableWidth - dateWidth, row, date);
-            } else {
-                textGraphics.putString(availableWidth - dateWidth, row, date, sgr);
+            @Override
+            public void onFailure(Throwable throwable) {
+                LOGGER.warn("unable to load page after {}", afterEmailId, throwable);
+                showStatus(screen, "Selecting all failed: " + throwable.getMessage());
             }
-            ++row;
-        }
-        screen.refresh();
+        }, MoreExecutors.directExecutor());
     }
 
-    private static String getPreviewFromBodyParts(List<EmailBodyPart> textBodies, Map<String, EmailBodyValue> bodyValues) {
-        StringBuilder builder = new StringBuilder();
-        for (EmailBodyPart bodyPart : textBodies) {
-            EmailBodyValue foo = bodyValues.get(bodyPart.getPartId());
-            if (foo != null) {
-                String body = foo.getValue().replaceAll("\\s+", " ");
-                builder.append(body, 0, Math.min(256, body.length()));
+    private static void selectLoaded(TerminalScreen screen, Account account, EmailQuery query) {
+        final int count;
+        synchronized (Main.class) {
+            if (account != currentAccount || query != currentQuery) {
+                return;
             }
+            applyQueryViewDiff();
+            for (QueryViewItem item : queryItems) {
+                selected.add(item.threadId);
+            }
+            count = selected.size();
         }
-        return builder.toString();
+        showStatus(screen, count + " threads selected");
     }
 
-
-    private static String from(Set<EmailAddress> from, int width) {
-        final boolean multiple = from.size() > 1;
-        StringBuilder builder = new StringBuilder();
-        for (EmailAddress emailAddress : from) {
-            if (builder.length() != 0) {
-                builder.append(", ");
-            }
-            if (emailAddress.getName() != null) {
-                String name = emailAddress.getName();
-                if (multiple) {
-                    builder.append(name.split("\\s+")[0]);
-                } else {
-                    builder.append(name);
-                }
-            } else if (emailAddress.getEmail() != null) {
-                builder.append(emailAddress.getEmail().split("@")[0]);
+    /**
+     * @return false if nothing was selected
+     */
+    private static boolean clearSelection(TerminalScreen screen) throws IOException {
+        synchronized (Main.class) {
+            if (selected.isEmpty()) {
+                return false;
             }
+            selected.clear();
         }
-        while (builder.length() < width) {
-            builder.append(' ');
-        }
-        return builder.toString();
+        redrawCurrentList(screen);
+        return true;
     }
 
-    private static String receivedAt(Date date, int width) {
-        StringBuilder builder = new StringBuilder();
-        if (isToday(date)) {
-            builder.append(TIME_FORMAT.format(date));
-        } else {
-            builder.append(DATE_FORMAT.format(date));
+    /**
+     * @return the emails of every selected thread by thread id or null if nothing is selected
+     */
+    private static synchronized Map<String, Collection<Email>> getSelection(Account account) {
+        if (selected.isEmpty()) {
+            return null;
         }
-        while (builder.length() < width) {
-            builder.insert(0, ' ');
+        final Map<String, Collection<Email>> selection = new LinkedHashMap<>();
+        for (String threadId : selected) {
+            selection.put(threadId, account.cache.getEmails(threadId));
         }
-        return builder.toString();
+        return selection;
     }
 
-    private static String threadSize(int threadSize) {
-        return threadSize > 1 ? " " +
-                '(' +
-                Strings.padStart(String.valueOf(Math.min(threadSize, 999)), 3, ' ') +
-                ')' +
-                "  " : "        ";
+    /**
+     * Like {@link #getSelection(Account)} but also clears the selection. Used by actions that remove the threads from
+     * the view.
+     */
+    private static synchronized Map<String, Collection<Email>> takeSelection(Account account) {
+        final Map<String, Collection<Email>> selection = getSelection(account);
+        selected.clear();
+        return selection;
     }
 
-    private static String preview(String preview, int width) {
-        StringBuilder builder = new StringBuilder();
-        builder.append(preview, 0, Math.min(width, preview.length()));
-        while (builder.length() < width) {
-            builder.append(' ');
+    private static List<Email> emailsOf(Map<String, Collection<Email>> threads) {
+        final List<Email> emails = new ArrayList<>();
+        for (Collection<Email> thread : threads.values()) {
+            emails.addAll(thread);
         }
-        return builder.toString();
+        return emails;
     }
 
-    private static boolean isToday(Date date) {
-        Calendar today = Calendar.getInstance();
-        Calendar specifiedDate = Calendar.getInstance();
-        specifiedDate.setTime(date);
+    private static boolean hasKeyword(Email email, String keyword) {
+        return email.getKeywords() != null && Boolean.TRUE.equals(email.getKeywords().get(keyword));
+    }
 
-        return today.get(Calendar.DAY_OF_MONTH) == specifiedDate.get(Calendar.DAY_OF_MONTH)
-                && today.get(Calendar.MONTH) == specifiedDate.get(Calendar.MONTH)
-                && today.get(Calendar.YEAR) == specifiedDate.get(Calendar.YEAR);
+    private static void showStatus(TerminalScreen screen, String message) {
+        synchronized (Main.class) {
+            status = message;
+            statusTimestamp = System.currentTimeMillis();
+        }
+        try {
+            if (items != null) {
+                redrawCurrentList(screen);
+            } else {
+                loadingMessage(screen, message);
+            }
+        } catch (IOException e) {
+            LOGGER.error("unable to refresh screen after printing status message", e);
+        }
     }
 
+    private static void loadingMessage(TerminalScreen screen, Account account, String message) {
+        synchronized (Main.class) {
+            if (account != currentAccount || items != null) {
+                return;
+            }
+            loadingMessage(screen, message);
+        }
+    }
 
+    private static synchronized void loadingMessage(TerminalScreen screen, String message) {
+        queryViewRenderer.invalidate();
+        screen.clear();
+        TerminalSize size = screen.getTerminalSize();
+        TextGraphics text = screen.newTextGraphics();
+        text.putString(0, size.getRows() - 1, message);
+        try {
+            screen.refresh();
+        } catch (IOException e) {
+            LOGGER.error("unable to refresh screen after printing loading message", e);
+        }
+    }
+
+    private static synchronized void redrawCurrentList(TerminalScreen screen) throws IOException {
+        TerminalSize terminalSize = screen.doResizeIfNecessary();
+        if (terminalSize == null) {
+            terminalSize = screen.getTerminalSize();
+        }
+        availableRows = terminalSize.getRows();
+        final String visibleStatus;
+        if (searchPrompt) {
+            visibleStatus = "/" + search;
+        } else if (status != null && System.currentTimeMillis() - statusTimestamp < STATUS_DURATION) {
+            visibleStatus = status;
+        } else if (!selected.isEmpty()) {
+            visibleStatus = selected.size() + " selected";
+        } else if (metricsOverlay) {
+            final Timer frame = Metrics.timer("render.frame");
+            visibleStatus = String.format(Locale.ROOT, "frame %.1fms (p99 %.1fms)  query %.0fms (p99 %.0fms)  page %.0fms",
+                    frame.getLastMillis(), frame.get99thPercentileMillis(),
+                    QUERY.getLastMillis(), QUERY.get99thPercentileMillis(),
+                    Metrics.timer("jmap.queryPage").getLastMillis());
+        } else {
+            visibleStatus = null;
+        }
+        if (threadReader != null) {
+            threadReader.render(screen, terminalSize, visibleStatus);
+            currentAccount.getBodyLoader().load(threadReader.getMissingBodies());
+            return;
+        }
+        if (items == null) {
+            //nothing loaded yet. the loading message stays unless the search prompt or the metrics are shown
+            if (searchPrompt || (metricsOverlay && visibleStatus != null)) {
+                loadingMessage(screen, visibleStatus);
+            }
+            return;
+        }
+        queryViewRenderer.render(screen, terminalSize, items, offset, cursorPosition, selected, visibleStatus);
+    }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.action;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.cli.metrics.Counter;
+import rs.ltt.cli.metrics.Metrics;
+import rs.ltt.cli.metrics.Timer;
+
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Runs actions off the input thread on a small pool with a bounded queue. The caller applies the action optimistically
+ * before submitting it; if the action fails the rollback is run and the failure is reported to the status consumer.
+ */
+public class ActionExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ActionExecutor.class);
+
+    private static final int THREADS = 2;
+    private static final int QUEUE_SIZE = 64;
+
+    private static final Timer ACTION = Metrics.timer("action");
+    private static final Counter ACTION_FAILED = Metrics.counter("action.failed");
+    private static final Counter ACTION_REJECTED = Metrics.counter("action.rejected");
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            THREADS,
+            THREADS,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE_SIZE),
+            runnable -> {
+                final Thread thread = new Thread(runnable, "action");
+                thread.setDaemon(true);
+                return thread;
+            }
+    );
+
+    private final Consumer<String> status;
+
+    public ActionExecutor(Consumer<String> status) {
+        this.status = status;
+    }
+
+    /**
+     * @return false if too many actions are pending. The action is rolled back right away in that case.
+     */
+    public boolean submit(String description, Callable<?> action, Runnable onSuccess, Runnable rollback) {
+        try {
+            executor.execute(() -> {
+                final long start = ACTION.start();
+                try {
+                    action.call();
+                    ACTION.stop(start);
+                    onSuccess.run();
+                } catch (Exception e) {
+                    ACTION_FAILED.increment();
+                    final Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+                    LOGGER.warn("{} failed", description, cause);
+                    rollback.run();
+                    status.accept(description + " failed: " + cause.getMessage());
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            ACTION_REJECTED.increment();
+            rollback.run();
+            status.accept("Too many pending actions. " + description + " not sent");
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOGGER.warn("{} actions have not been completed", executor.getQueue().size() + executor.getActiveCount());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+    }
+}
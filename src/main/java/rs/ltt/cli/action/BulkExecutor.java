@@ -0,0 +1,246 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.action;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.cli.metrics.Counter;
+import rs.ltt.cli.metrics.Metrics;
+import rs.ltt.cli.metrics.Timer;
+import rs.ltt.jmap.common.entity.Email;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Applies an operation to a large number of emails. The emails are split into chunks that each become one Email/set.
+ * Every Email/set is conditional on the email state it was built from, so chunks are sent one after another and the
+ * cached state is brought up to date in between; operations that are submitted while another one is running wait for
+ * it. A chunk that fails is retried with an increasing delay, again after catching up, before its emails are given up
+ * on. Progress is reported to the status consumer whenever a chunk completes.
+ */
+public class BulkExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkExecutor.class);
+
+    private static final int DEFAULT_CHUNK_SIZE = 100;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 500;
+
+    private static final Timer CHUNK = Metrics.timer("bulk.chunk");
+    private static final Counter CHUNK_RETRIED = Metrics.counter("bulk.retried");
+    private static final Counter CHUNK_FAILED = Metrics.counter("bulk.failed");
+
+    private final int chunkSize;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "bulk");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Consumer<String> status;
+
+    //the first operation is running
+    private final Deque<Operation> operations = new ArrayDeque<>();
+
+    public BulkExecutor(Consumer<String> status) {
+        this(status, Integer.getInteger("lttrs.bulk.chunk", DEFAULT_CHUNK_SIZE));
+    }
+
+    public BulkExecutor(Consumer<String> status, int chunkSize) {
+        this.status = status;
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * @param operation called once per chunk and attempt. usually a method of Mua
+     * @param catchUp   brings the cached email state up to date, usually by refreshing the query the emails were
+     *                  selected from. called after every chunk and before every retry
+     * @param onDone    called with the emails that could not be changed, which is empty if everything succeeded
+     */
+    public void submit(String description, List<Email> emails, Function<Collection<Email>, ListenableFuture<?>> operation, Supplier<ListenableFuture<?>> catchUp, Consumer<List<Email>> onDone) {
+        final Operation next = new Operation(description, emails, operation, catchUp, onDone);
+        final boolean idle;
+        synchronized (operations) {
+            idle = operations.isEmpty();
+            operations.add(next);
+        }
+        if (idle) {
+            next.next();
+        }
+    }
+
+    private void onFinished(Operation operation) {
+        final Operation next;
+        synchronized (operations) {
+            operations.remove(operation);
+            next = operations.peek();
+        }
+        if (next != null) {
+            next.next();
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private class Operation {
+
+        private final String description;
+        private final int total;
+        private final Function<Collection<Email>, ListenableFuture<?>> operation;
+        private final Supplier<ListenableFuture<?>> catchUp;
+        private final Consumer<List<Email>> onDone;
+        private final Deque<Chunk> queue = new ArrayDeque<>();
+        private final List<Email> failed = new ArrayList<>();
+
+        private int done = 0;
+
+        private Operation(String description, List<Email> emails, Function<Collection<Email>, ListenableFuture<?>> operation, Supplier<ListenableFuture<?>> catchUp, Consumer<List<Email>> onDone) {
+            this.description = description;
+            this.total = emails.size();
+            this.operation = operation;
+            this.catchUp = catchUp;
+            this.onDone = onDone;
+            for (List<Email> chunk : Lists.partition(emails, chunkSize)) {
+                queue.add(new Chunk(chunk));
+            }
+        }
+
+        private void next() {
+            final Chunk chunk;
+            synchronized (this) {
+                chunk = queue.poll();
+            }
+            if (chunk == null) {
+                finish();
+                onFinished(this);
+            } else {
+                send(chunk);
+            }
+        }
+
+        private void send(Chunk chunk) {
+            ++chunk.attempts;
+            final ListenableFuture<?> future;
+            try {
+                future = CHUNK.time(operation.apply(chunk.emails));
+            } catch (RuntimeException e) {
+                onChunkFailed(chunk, e);
+                return;
+            }
+            Futures.addCallback(future, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(Object result) {
+                    synchronized (Operation.this) {
+                        done += chunk.emails.size();
+                    }
+                    progress();
+                    catchUp(Operation.this::next);
+                }
+
+                @Override
+                public void onFailure(Throwable throwable) {
+                    onChunkFailed(chunk, throwable);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        private void onChunkFailed(Chunk chunk, Throwable throwable) {
+            if (chunk.attempts < MAX_ATTEMPTS && !scheduler.isShutdown()) {
+                CHUNK_RETRIED.increment();
+                final long delay = RETRY_DELAY << (chunk.attempts - 1);
+                LOGGER.info("{}: chunk of {} emails failed. retrying in {}ms", description, chunk.emails.size(), delay, throwable);
+                try {
+                    //usually the email state changed in the meantime
+                    scheduler.schedule(() -> catchUp(() -> send(chunk)), delay, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    LOGGER.debug("not retrying after shutdown");
+                }
+            }
+            CHUNK_FAILED.increment();
+            LOGGER.warn("{}: giving up on chunk of {} emails", description, chunk.emails.size(), throwable);
+            synchronized (this) {
+                done += chunk.emails.size();
+                failed.addAll(chunk.emails);
+            }
+            progress();
+            next();
+        }
+
+        private void catchUp(Runnable then) {
+            final ListenableFuture<?> future;
+            try {
+                future = catchUp.get();
+            } catch (RuntimeException e) {
+                LOGGER.warn("{}: unable to catch up with the email state", description, e);
+                then.run();
+                return;
+            }
+            //a failed catch up shows in the next chunk which then gets retried
+            future.addListener(then, MoreExecutors.directExecutor());
+        }
+
+        private void progress() {
+            final int done;
+            final int failed;
+            synchronized (this) {
+                done = this.done;
+                failed = this.failed.size();
+            }
+            if (done < total) {
+                status.accept(String.format(Locale.ROOT, "%s %d/%d%s", description, done, total, failed > 0 ? " (" + failed + " failed)" : ""));
+            }
+        }
+
+        private void finish() {
+            final List<Email> failed;
+            synchronized (this) {
+                failed = new ArrayList<>(this.failed);
+            }
+            onDone.accept(failed);
+            if (failed.isEmpty()) {
+                status.accept(String.format(Locale.ROOT, "%s %d emails done", description, total));
+            } else {
+                status.accept(String.format(Locale.ROOT, "%s failed for %d of %d emails", description, failed.size(), total));
+            }
+        }
+    }
+
+    private static class Chunk {
+        private final List<Email> emails;
+        private int attempts = 0;
+
+        private Chunk(List<Email> emails) {
+            this.emails = emails;
+        }
+    }
+}
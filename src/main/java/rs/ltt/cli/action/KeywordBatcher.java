@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.action;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.cli.metrics.Metrics;
+import rs.ltt.cli.metrics.Timer;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.mua.Mua;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Collects keyword toggles for a short window before sending them. Toggling the same emails twice within the window
+ * cancels out and sends nothing. All emails that get the same keyword set (or removed) are sent in one Email/set.
+ */
+public class KeywordBatcher implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeywordBatcher.class);
+
+    private static final long WINDOW = 500;
+
+    private static final Timer SET_KEYWORD = Metrics.timer("jmap.setKeyword");
+    private static final Timer REMOVE_KEYWORD = Metrics.timer("jmap.removeKeyword");
+
+    private final Mua mua;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "keyword-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //keyword -> email id -> pending change
+    private final Map<String, Map<String, PendingChange>> pending = new HashMap<>();
+
+    private final List<ListenableFuture<Boolean>> inFlight = new ArrayList<>();
+
+    private ScheduledFuture<?> scheduledFlush;
+
+    public KeywordBatcher(Mua mua) {
+        this.mua = mua;
+    }
+
+    /**
+     * @param emails     the emails (usually of one thread) to toggle the keyword on
+     * @param keyword    the keyword to toggle
+     * @param currentlySet whether the keyword is currently considered set on those emails
+     */
+    public synchronized void toggle(Collection<Email> emails, String keyword, boolean currentlySet) {
+        final Map<String, PendingChange> changes = pending.computeIfAbsent(keyword, k -> new HashMap<>());
+        boolean cancelled = false;
+        for (Email email : emails) {
+            if (changes.remove(email.getId()) != null) {
+                cancelled = true;
+            }
+        }
+        if (!cancelled) {
+            for (Email email : emails) {
+                changes.put(email.getId(), new PendingChange(email, !currentlySet));
+            }
+        }
+        if (scheduledFlush == null) {
+            scheduledFlush = scheduler.schedule(this::flush, WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void flush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        inFlight.removeIf(Future::isDone);
+        for (Map.Entry<String, Map<String, PendingChange>> entry : pending.entrySet()) {
+            final String keyword = entry.getKey();
+            final List<Email> set = new ArrayList<>();
+            final List<Email> remove = new ArrayList<>();
+            for (PendingChange change : entry.getValue().values()) {
+                (change.set ? set : remove).add(change.email);
+            }
+            if (!set.isEmpty()) {
+                inFlight.add(SET_KEYWORD.time(mua.setKeyword(set, keyword)));
+            }
+            if (!remove.isEmpty()) {
+                inFlight.add(REMOVE_KEYWORD.time(mua.removeKeyword(remove, keyword)));
+            }
+        }
+        pending.clear();
+    }
+
+    @Override
+    public void close() {
+        final List<ListenableFuture<Boolean>> futures;
+        synchronized (this) {
+            flush();
+            futures = new ArrayList<>(inFlight);
+        }
+        try {
+            Futures.successfulAsList(futures).get(5, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            LOGGER.warn("not all keyword changes have been confirmed by the server", e);
+        }
+        scheduler.shutdownNow();
+    }
+
+    private static class PendingChange {
+        private final Email email;
+        private final boolean set;
+
+        private PendingChange(Email email, boolean set) {
+            this.email = email;
+            this.set = set;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.cache;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.EmailAddress;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebuilds emails without body values and with the values that repeat across emails (addresses, mailbox ids,
+ * keywords and thread ids) replaced by a shared instance. Every email in a mailbox would otherwise carry its own copy
+ * of the id of that mailbox and of the addresses of everyone it was sent from and to.
+ */
+final class EmailCompactor {
+
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+    private static final Interner<EmailAddress> ADDRESSES = Interners.newWeakInterner();
+
+    private EmailCompactor() {
+
+    }
+
+    static Email compact(Email email) {
+        final Email.EmailBuilder builder = email.toBuilder().clearBodyValues();
+        if (email.getThreadId() != null) {
+            builder.threadId(STRINGS.intern(email.getThreadId()));
+        }
+        final Map<String, Boolean> mailboxIds = email.getMailboxIds();
+        if (mailboxIds != null) {
+            builder.clearMailboxIds();
+            for (Map.Entry<String, Boolean> entry : mailboxIds.entrySet()) {
+                builder.mailboxId(STRINGS.intern(entry.getKey()), entry.getValue());
+            }
+        }
+        final Map<String, Boolean> keywords = email.getKeywords();
+        if (keywords != null) {
+            builder.clearKeywords();
+            for (Map.Entry<String, Boolean> entry : keywords.entrySet()) {
+                builder.keyword(STRINGS.intern(entry.getKey()), entry.getValue());
+            }
+        }
+        final List<EmailAddress> from = email.getFrom();
+        if (from != null) {
+            builder.clearFrom();
+            for (EmailAddress address : from) {
+                builder.from(ADDRESSES.intern(address));
+            }
+        }
+        final List<EmailAddress> to = email.getTo();
+        if (to != null) {
+            builder.clearTo();
+            for (EmailAddress address : to) {
+                builder.to(ADDRESSES.intern(address));
+            }
+        }
+        final List<EmailAddress> cc = email.getCc();
+        if (cc != null) {
+            builder.clearCc();
+            for (EmailAddress address : cc) {
+                builder.cc(ADDRESSES.intern(address));
+            }
+        }
+        return builder.build();
+    }
+}
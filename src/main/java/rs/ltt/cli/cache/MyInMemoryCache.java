@@ -16,48 +16,702 @@
 
 package rs.ltt.cli.cache;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.cli.metrics.Metrics;
+import rs.ltt.cli.metrics.Timer;
+import rs.ltt.cli.model.QueryViewDiff;
 import rs.ltt.cli.model.QueryViewItem;
 import rs.ltt.jmap.common.entity.*;
 import rs.ltt.jmap.common.entity.Thread;
+import rs.ltt.jmap.mua.cache.CacheConflictException;
+import rs.ltt.jmap.mua.cache.CacheWriteException;
 import rs.ltt.jmap.mua.cache.InMemoryCache;
 import rs.ltt.jmap.mua.cache.NotSynchronizedException;
+import rs.ltt.jmap.mua.cache.Update;
+import rs.ltt.jmap.mua.util.QueryResult;
 import rs.ltt.jmap.mua.util.QueryResultItem;
+import rs.ltt.jmap.mua.util.QueryUpdate;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Writes coming from {@link rs.ltt.jmap.mua.Mua} are serialized and derive immutable per-thread snapshots that are
+ * published in concurrent maps. Reads from the UI ({@link #getEmails(String)}, building query views) never block on the
+ * monitors of the underlying {@link InMemoryCache}.
+ * <p>
+ * Query results are kept in least recently used order. Once the cached query results exceed the budget the least
+ * recently used ones that are not in use are evicted along with the threads and emails no other query references.
+ * <p>
+ * All cached emails are kept in a {@link SearchIndex} which allows searching without a round trip to the server.
+ * <p>
+ * Body values are not kept with the emails. They are used for previews and the search index on arrival and then moved
+ * to a cache that is bounded by size. Bodies that have been evicted from it have to be loaded again with
+ * {@link #addBodyValues(Email[])}. The emails themselves are stored in the compact form of {@link EmailCompactor}.
+ */
 public class MyInMemoryCache extends InMemoryCache {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(MyInMemoryCache.class);
+
+    private static final int PREVIEW_CACHE_SIZE = 16384;
+
+    //megabytes
+    private static final long DEFAULT_BODY_CACHE_SIZE = 16;
+
+    private static final int DEFAULT_QUERY_BUDGET = 10000;
+    private static final int MAX_QUERIES = 32;
+
+    private static final Timer SET_THREADS = Metrics.timer("cache.setThreads");
+    private static final Timer ADD_THREADS = Metrics.timer("cache.addThreads");
+    private static final Timer UPDATE_THREADS = Metrics.timer("cache.updateThreads");
+    private static final Timer SET_EMAILS = Metrics.timer("cache.setEmails");
+    private static final Timer ADD_EMAILS = Metrics.timer("cache.addEmails");
+    private static final Timer UPDATE_EMAILS = Metrics.timer("cache.updateEmails");
+    private static final Timer SET_QUERY_RESULT = Metrics.timer("cache.setQueryResult");
+    private static final Timer ADD_QUERY_RESULT = Metrics.timer("cache.addQueryResult");
+    private static final Timer UPDATE_QUERY_RESULTS = Metrics.timer("cache.updateQueryResults");
+    private static final Timer QUERY_VIEW_DIFF = Metrics.timer("cache.getQueryViewDiff");
+    private static final Timer SEARCH = Metrics.timer("cache.search");
+
+    //serializes all writes. subclasses that do more work per write (like journaling) take this lock as well so there
+    //is only one lock order
+    final Object writeLock = new Object();
+
+    //number of query result items that are kept across all queries
+    private final int queryBudget;
+
+    //query -> number of users currently showing it. access ordered so the first entry is the least recently used
+    private final LinkedHashMap<String, Integer> queryUsage = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Cache<String, String> previews = CacheBuilder.newBuilder()
+            .maximumSize(PREVIEW_CACHE_SIZE)
+            .build();
+
+    private final Cache<String, Map<String, EmailBodyValue>> bodyValues = CacheBuilder.newBuilder()
+            .maximumWeight(Long.getLong("lttrs.body.cache", DEFAULT_BODY_CACHE_SIZE) * 1024 * 1024)
+            .weigher(MyInMemoryCache::weigh)
+            .build();
+
+    private volatile SearchIndex searchIndex = new SearchIndex();
+
+    //indexing is suspended while a persisted search index is being restored
+    private boolean indexing = true;
+
+    private final Map<String, QueryView> queryViews = new ConcurrentHashMap<>();
+
+    private final Map<String, ThreadAggregate> threadAggregates = new ConcurrentHashMap<>();
+
+    //thread id -> whether the server has confirmed the action that hid the thread
+    private final Map<String, Boolean> hiddenThreads = new ConcurrentHashMap<>();
+
+    public MyInMemoryCache() {
+        this(DEFAULT_QUERY_BUDGET);
+    }
+
+    public MyInMemoryCache(int queryBudget) {
+        this.queryBudget = queryBudget;
+    }
+
+    /**
+     * Marks a query as in use. Query results that are in use are never evicted. The next call to
+     * {@link #getQueryViewDiff(String)} returns a reset with the items currently cached for that query.
+     */
+    public void acquireQuery(String query) {
+        synchronized (this.writeLock) {
+            final Integer users = this.queryUsage.get(query);
+            this.queryUsage.put(query, users == null ? 1 : users + 1);
+            final QueryView queryView = this.queryViews.get(query);
+            if (queryView != null) {
+                queryView.invalidate();
+            }
+        }
+    }
+
+    public void releaseQuery(String query) {
+        synchronized (this.writeLock) {
+            final Integer users = this.queryUsage.get(query);
+            if (users != null) {
+                this.queryUsage.put(query, Math.max(0, users - 1));
+            }
+            trimQueryResults(null);
+        }
+    }
+
+    private void touchQuery(String query) {
+        if (this.queryUsage.get(query) == null) {
+            this.queryUsage.put(query, 0);
+        }
+    }
+
+    /**
+     * Evicts the least recently used query results that are not in use until the remaining ones fit into the budget,
+     * then releases all threads and emails that are no longer referenced by any query result.
+     *
+     * @param written the query that has just been written. It is never evicted, even if it doesn’t fit into the budget
+     *                on its own, so the budget only limits the other queries
+     */
+    private void trimQueryResults(String written) {
+        final Map<String, Integer> sizes = new HashMap<>();
+        int total = 0;
+        synchronized (this.queryResults) {
+            for (Map.Entry<String, InMemoryQueryResult> entry : this.queryResults.entrySet()) {
+                final int size = entry.getValue().getItems().size();
+                sizes.put(entry.getKey(), size);
+                total += size;
+            }
+        }
+        if (total <= this.queryBudget && this.queryUsage.size() <= MAX_QUERIES) {
+            return;
+        }
+        final List<String> evicted = new ArrayList<>();
+        final Iterator<Map.Entry<String, Integer>> iterator = this.queryUsage.entrySet().iterator();
+        while (iterator.hasNext() && (total > this.queryBudget || this.queryUsage.size() > MAX_QUERIES)) {
+            final Map.Entry<String, Integer> entry = iterator.next();
+            if (entry.getValue() > 0 || entry.getKey().equals(written)) {
+                continue;
+            }
+            final Integer size = sizes.get(entry.getKey());
+            total -= size == null ? 0 : size;
+            evicted.add(entry.getKey());
+            iterator.remove();
+        }
+        if (evicted.isEmpty()) {
+            return;
+        }
+        for (String query : evicted) {
+            invalidateQueryResult(query);
+            synchronized (this.queryResults) {
+                this.queryResults.remove(query);
+            }
+            this.queryViews.remove(query);
+        }
+        releaseUnreferencedEntities();
+    }
+
+    private void releaseUnreferencedEntities() {
+        final Set<String> referenced = new HashSet<>();
+        synchronized (this.queryResults) {
+            for (InMemoryQueryResult queryResult : this.queryResults.values()) {
+                for (QueryResultItem item : queryResult.getItems()) {
+                    referenced.add(item.getThreadId());
+                }
+            }
+        }
+        int releasedEmails = 0;
+        synchronized (this.threads) {
+            synchronized (this.emails) {
+                this.threads.keySet().retainAll(referenced);
+                final Iterator<Email> iterator = this.emails.values().iterator();
+                while (iterator.hasNext()) {
+                    final Email email = iterator.next();
+                    if (!referenced.contains(email.getThreadId())) {
+                        iterator.remove();
+                        this.previews.invalidate(email.getId());
+                        this.bodyValues.invalidate(email.getId());
+                        if (this.indexing) {
+                            this.searchIndex.remove(email.getId());
+                        }
+                        ++releasedEmails;
+                    }
+                }
+            }
+        }
+        this.threadAggregates.keySet().retainAll(referenced);
+        LOGGER.debug("released {} emails no longer referenced by any cached query", releasedEmails);
+    }
 
     public List<QueryViewItem> getQueryViewItems(String query) {
-        ImmutableList.Builder<QueryViewItem> listBuilder = new ImmutableList.Builder<>();
+        return getQueryView(query).getItems();
+    }
+
+    /**
+     * @return the last email of the cached query result or null. Unlike the last query view item this includes hidden
+     * threads, which makes it the anchor for the next page
+     */
+    public String getLastEmailId(String query) {
         synchronized (this.queryResults) {
-            InMemoryQueryResult queryResult = this.queryResults.get(query);
-            if (queryResult != null) {
-                for(QueryResultItem item : queryResult.getItems()) {
-                    Email email;
-                    synchronized (this.emails) {
-                        email = this.emails.get(item.getEmailId());
+            final InMemoryQueryResult queryResult = this.queryResults.get(query);
+            final QueryResultItem last = queryResult == null ? null : Iterables.getLast(queryResult.getItems(), null);
+            return last == null ? null : last.getEmailId();
+        }
+    }
+
+    public QueryViewDiff getQueryViewDiff(String query) {
+        final long start = QUERY_VIEW_DIFF.start();
+        final QueryViewDiff diff = getQueryView(query).drain();
+        QUERY_VIEW_DIFF.stop(start);
+        return diff;
+    }
+
+    private QueryView getQueryView(String query) {
+        final QueryView existing = this.queryViews.get(query);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (this.writeLock) {
+            QueryView queryView = this.queryViews.get(query);
+            if (queryView == null) {
+                queryView = new QueryView(this::buildQueryViewItem);
+                final List<QueryResultItem> items = new ArrayList<>();
+                synchronized (this.queryResults) {
+                    InMemoryQueryResult queryResult = this.queryResults.get(query);
+                    if (queryResult != null) {
+                        for (QueryResultItem item : queryResult.getItems()) {
+                            items.add(item);
+                        }
                     }
-                    Thread thread;
-                    synchronized (this.threads) {
-                        thread = this.threads.get(item.getThreadId());
+                }
+                queryView.reset(items);
+                this.queryViews.put(query, queryView);
+            }
+            return queryView;
+        }
+    }
+
+    /**
+     * Optimistically removes a thread from all query views, for example while an archive request is in flight.
+     */
+    public void hideThread(String threadId) {
+        hideThreads(Collections.singleton(threadId));
+    }
+
+    public void hideThreads(Collection<String> threadIds) {
+        synchronized (this.writeLock) {
+            for (String threadId : threadIds) {
+                this.hiddenThreads.put(threadId, false);
+            }
+            refreshQueryViews(new HashSet<>(threadIds));
+        }
+    }
+
+    /**
+     * The thread stays hidden until the next query update reflects the change.
+     */
+    public void confirmHiddenThread(String threadId) {
+        this.hiddenThreads.replace(threadId, true);
+    }
+
+    public void showThread(String threadId) {
+        showThreads(Collections.singleton(threadId));
+    }
+
+    public void showThreads(Collection<String> threadIds) {
+        synchronized (this.writeLock) {
+            final Set<String> shown = new HashSet<>();
+            for (String threadId : threadIds) {
+                if (this.hiddenThreads.remove(threadId) != null) {
+                    shown.add(threadId);
+                }
+            }
+            if (!shown.isEmpty()) {
+                refreshQueryViews(shown);
+            }
+        }
+    }
+
+    private void releaseConfirmedHiddenThreads() {
+        final Set<String> released = new HashSet<>();
+        for (Map.Entry<String, Boolean> entry : this.hiddenThreads.entrySet()) {
+            if (entry.getValue()) {
+                released.add(entry.getKey());
+            }
+        }
+        if (released.isEmpty()) {
+            return;
+        }
+        this.hiddenThreads.keySet().removeAll(released);
+        refreshQueryViews(released);
+    }
+
+    private QueryViewItem buildQueryViewItem(String emailId, String threadId) {
+        if (this.hiddenThreads.containsKey(threadId)) {
+            return null;
+        }
+        final ThreadAggregate aggregate = this.threadAggregates.get(threadId);
+        if (aggregate == null) {
+            return null;
+        }
+        final Email email = aggregate.emails.get(emailId);
+        if (email == null) {
+            return null;
+        }
+        return new QueryViewItem(threadId, aggregate.count, aggregate.from, email, getPreview(email), aggregate.unread, aggregate.flagged);
+    }
+
+    /**
+     * Searches subjects, senders and bodies of all cached emails.
+     *
+     * @return one item per matching thread, best match first
+     */
+    public List<QueryViewItem> search(String query, int limit) {
+        final long start = SEARCH.start();
+        final List<QueryViewItem> items = new ArrayList<>();
+        for (SearchIndex.Hit hit : this.searchIndex.search(query, limit)) {
+            final QueryViewItem item = buildQueryViewItem(hit.emailId, hit.threadId);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        SEARCH.stop(start);
+        return items;
+    }
+
+    SearchIndex getSearchIndex() {
+        return this.searchIndex;
+    }
+
+    void suspendIndexing() {
+        synchronized (this.writeLock) {
+            this.indexing = false;
+        }
+    }
+
+    /**
+     * Resumes indexing with an index that has been restored from disk or, if that is null or doesn't cover exactly
+     * the cached emails, with a fresh index of all cached emails. The fresh index only covers the bodies that are still
+     * cached; the others have to be added with {@link #addBodyValues(Email[])}.
+     */
+    void resumeIndexing(SearchIndex restored) {
+        synchronized (this.writeLock) {
+            synchronized (this.emails) {
+                if (restored != null && restored.size() == this.emails.size()) {
+                    this.searchIndex = restored;
+                } else {
+                    final SearchIndex searchIndex = new SearchIndex();
+                    for (Email email : this.emails.values()) {
+                        searchIndex.add(email, this.bodyValues.getIfPresent(email.getId()));
                     }
-                    final Set<EmailAddress> from = new HashSet<>();
-                    synchronized (this.emails) {
-                        for(String id : thread.getEmailIds()) {
-                            Email mail = this.emails.get(id);
-                            if (mail != null && mail.getFrom() != null) {
-                                from.addAll(mail.getFrom());
-                            }
-                        }
+                    this.searchIndex = searchIndex;
+                }
+            }
+            this.indexing = true;
+        }
+    }
+
+    private void index(Email[] emails) {
+        if (this.indexing) {
+            for (Email email : emails) {
+                this.searchIndex.add(email);
+            }
+        }
+    }
+
+    private String getPreview(Email email) {
+        final String cached = this.previews.getIfPresent(email.getId());
+        if (cached != null) {
+            return cached;
+        }
+        final String preview = Previews.of(email, this.bodyValues.getIfPresent(email.getId()));
+        this.previews.put(email.getId(), preview);
+        return preview;
+    }
+
+    private void updatePreviews(Email[] emails) {
+        for (Email email : emails) {
+            this.previews.put(email.getId(), Previews.of(email, email.getBodyValues()));
+        }
+    }
+
+    /**
+     * @return the body values of an email or null if they have to be loaded first
+     */
+    public Map<String, EmailBodyValue> getBodyValues(String emailId) {
+        return this.bodyValues.getIfPresent(emailId);
+    }
+
+    /**
+     * Takes body values that have been loaded on demand. Only id and body values of the given emails are looked at.
+     * The previews and the search index of the corresponding cached emails are updated.
+     */
+    public void addBodyValues(Email[] emails) {
+        synchronized (this.writeLock) {
+            final Set<String> threadIds = new HashSet<>();
+            for (Email email : emails) {
+                final Map<String, EmailBodyValue> values = email.getBodyValues() == null ? Collections.emptyMap() : email.getBodyValues();
+                final Email cached;
+                synchronized (this.emails) {
+                    cached = this.emails.get(email.getId());
+                }
+                if (cached == null) {
+                    continue;
+                }
+                this.bodyValues.put(email.getId(), values);
+                this.previews.put(email.getId(), Previews.of(cached, values));
+                if (this.indexing) {
+                    this.searchIndex.add(cached, values);
+                }
+                threadIds.add(cached.getThreadId());
+            }
+            refreshQueryViews(threadIds);
+        }
+    }
+
+    /**
+     * Moves the body values of freshly written emails into the size bounded cache and replaces the cached emails with
+     * their compact form.
+     */
+    private void compact(Email[] emails) {
+        for (Email email : emails) {
+            final Map<String, EmailBodyValue> values = email.getBodyValues();
+            if (values != null && !values.isEmpty()) {
+                this.bodyValues.put(email.getId(), values);
+            }
+            synchronized (this.emails) {
+                final Email cached = this.emails.get(email.getId());
+                if (cached != null) {
+                    this.emails.put(email.getId(), EmailCompactor.compact(cached));
+                }
+            }
+        }
+    }
+
+    private static int weigh(String emailId, Map<String, EmailBodyValue> values) {
+        //rough estimate of the retained size in bytes
+        int weight = 64;
+        for (EmailBodyValue value : values.values()) {
+            weight += 32 + (value.getValue() == null ? 0 : value.getValue().length() * 2);
+        }
+        return weight;
+    }
+
+    private void updateThreadAggregates(Set<String> threadIds) {
+        synchronized (this.threads) {
+            synchronized (this.emails) {
+                for (String threadId : threadIds) {
+                    final Thread thread = this.threads.get(threadId);
+                    if (thread == null) {
+                        this.threadAggregates.remove(threadId);
+                    } else {
+                        this.threadAggregates.put(threadId, ThreadAggregate.of(thread, this.emails));
+                    }
+                }
+            }
+        }
+    }
+
+    private void rebuildThreadAggregates() {
+        synchronized (this.threads) {
+            synchronized (this.emails) {
+                for (Thread thread : this.threads.values()) {
+                    this.threadAggregates.put(thread.getId(), ThreadAggregate.of(thread, this.emails));
+                }
+                this.threadAggregates.keySet().retainAll(this.threads.keySet());
+            }
+        }
+    }
+
+    @Override
+    public void setThreads(TypedState<Thread> typedState, Thread[] threads) {
+        final long start = SET_THREADS.start();
+        synchronized (this.writeLock) {
+            super.setThreads(typedState, threads);
+            rebuildThreadAggregates();
+            invalidateQueryViews();
+            SET_THREADS.stop(start);
+        }
+    }
+
+    @Override
+    public void addThreads(TypedState<Thread> typedState, Thread[] threads) throws CacheConflictException {
+        final long start = ADD_THREADS.start();
+        synchronized (this.writeLock) {
+            super.addThreads(typedState, threads);
+            final Set<String> threadIds = threadIds(threads);
+            updateThreadAggregates(threadIds);
+            refreshQueryViews(threadIds);
+            ADD_THREADS.stop(start);
+        }
+    }
+
+    @Override
+    public void updateThreads(Update<Thread> update) throws CacheWriteException {
+        final long start = UPDATE_THREADS.start();
+        synchronized (this.writeLock) {
+            super.updateThreads(update);
+            final Set<String> threadIds = new HashSet<>();
+            threadIds.addAll(threadIds(update.getCreated()));
+            threadIds.addAll(threadIds(update.getUpdated()));
+            threadIds.addAll(Arrays.asList(update.getDestroyed()));
+            updateThreadAggregates(threadIds);
+            refreshQueryViews(threadIds);
+            UPDATE_THREADS.stop(start);
+        }
+    }
+
+    @Override
+    public void setEmails(TypedState<Email> typedState, Email[] emails) {
+        final long start = SET_EMAILS.start();
+        synchronized (this.writeLock) {
+            super.setEmails(typedState, emails);
+            compact(emails);
+            this.previews.invalidateAll();
+            updatePreviews(emails);
+            if (this.indexing) {
+                this.searchIndex.clear();
+            }
+            index(emails);
+            rebuildThreadAggregates();
+            invalidateQueryViews();
+            SET_EMAILS.stop(start);
+        }
+    }
+
+    @Override
+    public void addEmails(TypedState<Email> typedState, Email[] emails) throws CacheConflictException {
+        final long start = ADD_EMAILS.start();
+        synchronized (this.writeLock) {
+            super.addEmails(typedState, emails);
+            compact(emails);
+            updatePreviews(emails);
+            index(emails);
+            final Set<String> threadIds = threadIdsOf(emails);
+            updateThreadAggregates(threadIds);
+            refreshQueryViews(threadIds);
+            ADD_EMAILS.stop(start);
+        }
+    }
+
+    @Override
+    public void updateEmails(Update<Email> update, String[] updatedProperties) throws CacheWriteException {
+        final long start = UPDATE_EMAILS.start();
+        synchronized (this.writeLock) {
+            final Set<String> threadIds = new HashSet<>();
+            synchronized (this.emails) {
+                for (String id : update.getDestroyed()) {
+                    Email email = this.emails.get(id);
+                    if (email != null) {
+                        threadIds.add(email.getThreadId());
+                    }
+                }
+                for (Email email : update.getUpdated()) {
+                    Email cached = this.emails.get(email.getId());
+                    if (cached != null) {
+                        threadIds.add(cached.getThreadId());
                     }
-                    listBuilder.add(new QueryViewItem(thread.getId(), thread.getEmailIds().size(), from, email));
                 }
             }
+            super.updateEmails(update, updatedProperties);
+            compact(update.getCreated());
+            compact(update.getUpdated());
+            this.previews.invalidateAll(Arrays.asList(update.getDestroyed()));
+            this.bodyValues.invalidateAll(Arrays.asList(update.getDestroyed()));
+            if (updatedProperties == null || Arrays.asList(updatedProperties).contains("bodyValues")) {
+                for (Email email : update.getUpdated()) {
+                    this.previews.invalidate(email.getId());
+                }
+            }
+            updatePreviews(update.getCreated());
+            if (this.indexing) {
+                for (String id : update.getDestroyed()) {
+                    this.searchIndex.remove(id);
+                }
+            }
+            index(update.getCreated());
+            threadIds.addAll(threadIdsOf(update.getCreated()));
+            updateThreadAggregates(threadIds);
+            refreshQueryViews(threadIds);
+            UPDATE_EMAILS.stop(start);
+        }
+    }
 
+    @Override
+    public void setQueryResult(String query, QueryResult queryResult) {
+        final long start = SET_QUERY_RESULT.start();
+        synchronized (this.writeLock) {
+            super.setQueryResult(query, queryResult);
+            touchQuery(query);
+            final QueryView queryView = this.queryViews.get(query);
+            if (queryView != null) {
+                final List<QueryResultItem> items = new ArrayList<>();
+                for (QueryResultItem item : queryResult.getItems()) {
+                    items.add(item);
+                }
+                queryView.reset(items);
+            }
+            releaseConfirmedHiddenThreads();
+            trimQueryResults(query);
+            SET_QUERY_RESULT.stop(start);
+        }
+    }
+
+    @Override
+    public void addQueryResult(String query, String afterEmailId, QueryResult queryResult) throws CacheWriteException, CacheConflictException {
+        final long start = ADD_QUERY_RESULT.start();
+        synchronized (this.writeLock) {
+            super.addQueryResult(query, afterEmailId, queryResult);
+            final QueryView queryView = this.queryViews.get(query);
+            if (queryView != null) {
+                for (QueryResultItem item : queryResult.getItems()) {
+                    queryView.append(item);
+                }
+            }
+            touchQuery(query);
+            trimQueryResults(query);
+            ADD_QUERY_RESULT.stop(start);
+        }
+    }
+
+    @Override
+    public void updateQueryResults(String query, QueryUpdate<Email, QueryResultItem> update, TypedState<Email> emailState) throws CacheWriteException {
+        final long start = UPDATE_QUERY_RESULTS.start();
+        synchronized (this.writeLock) {
+            super.updateQueryResults(query, update, emailState);
+            final QueryView queryView = this.queryViews.get(query);
+            if (queryView != null) {
+                for (String emailId : update.getRemoved()) {
+                    queryView.remove(emailId);
+                }
+                for (AddedItem<QueryResultItem> added : update.getAdded()) {
+                    queryView.insert((int) added.getIndex(), added.getItem());
+                }
+            }
+            releaseConfirmedHiddenThreads();
+            UPDATE_QUERY_RESULTS.stop(start);
         }
-        return listBuilder.build();
+    }
+
+    @Override
+    public void invalidateQueryResult(String query) {
+        synchronized (this.writeLock) {
+            super.invalidateQueryResult(query);
+            final QueryView queryView = this.queryViews.get(query);
+            if (queryView != null) {
+                queryView.reset(Collections.emptyList());
+            }
+        }
+    }
+
+    private void invalidateQueryViews() {
+        for (QueryView queryView : this.queryViews.values()) {
+            queryView.invalidate();
+        }
+    }
+
+    private void refreshQueryViews(Set<String> threadIds) {
+        for (QueryView queryView : this.queryViews.values()) {
+            queryView.refresh(threadIds);
+        }
+    }
+
+    private static Set<String> threadIds(Thread[] threads) {
+        final Set<String> threadIds = new HashSet<>();
+        for (Thread thread : threads) {
+            threadIds.add(thread.getId());
+        }
+        return threadIds;
+    }
+
+    private static Set<String> threadIdsOf(Email[] emails) {
+        final Set<String> threadIds = new HashSet<>();
+        for (Email email : emails) {
+            threadIds.add(email.getThreadId());
+        }
+        return threadIds;
     }
 
     public Collection<Mailbox> getMailboxes() {
@@ -69,21 +723,22 @@ public class MyInMemoryCache extends InMemoryCache {
     }
 
     public Collection<Identity> getIdentities() {
-        return this.identities.values();
+        synchronized (this.identities) {
+            return ImmutableList.copyOf(this.identities.values());
+        }
     }
 
-    public Collection<Email> getEmails(String threadId) {
-        ImmutableList.Builder<Email> builder = new ImmutableList.Builder<>();
-        final List<String> ids;
-        synchronized (this.threads) {
-            Thread thread = this.threads.get(threadId);
-            ids = thread.getEmailIds();
-        }
+    public int getEmailCount() {
         synchronized (this.emails) {
-            for(String id : ids) {
-                builder.add(this.emails.get(id));
-            }
+            return this.emails.size();
+        }
+    }
+
+    public Collection<Email> getEmails(String threadId) {
+        final ThreadAggregate aggregate = this.threadAggregates.get(threadId);
+        if (aggregate == null) {
+            return Collections.emptyList();
         }
-        return builder.build();
+        return aggregate.emails.values();
     }
 }
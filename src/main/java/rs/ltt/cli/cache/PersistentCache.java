@@ -0,0 +1,731 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.cache;
+
+import com.google.common.io.ByteStreams;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.jmap.common.entity.*;
+import rs.ltt.jmap.common.entity.Thread;
+import rs.ltt.jmap.gson.JmapAdapters;
+import rs.ltt.jmap.mua.cache.CacheConflictException;
+import rs.ltt.jmap.mua.cache.CacheWriteException;
+import rs.ltt.jmap.mua.cache.Update;
+import rs.ltt.jmap.mua.util.QueryResult;
+import rs.ltt.jmap.mua.util.QueryResultItem;
+import rs.ltt.jmap.mua.util.QueryUpdate;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * An {@link MyInMemoryCache} that appends every write to a journal on disk. On start up the journal is replayed
+ * which restores the entities as well as the JMAP states, allowing {@link rs.ltt.jmap.mua.Mua} to resume with
+ * Foo/changes and Email/queryChanges instead of a full resync. The journal is compacted on start up and, for long
+ * running sessions, whenever it has grown to twice its compacted size. The latter happens on a background thread from
+ * a snapshot of the cache; entries written in the meantime still go to the old journal and are copied over before the
+ * compacted journal replaces it.
+ * <p>
+ * With {@code -Dlttrs.search.persist=true} the search index is written next to the journal on close and restored on
+ * the next start instead of indexing every email again while the journal is replayed. An index that was written for a
+ * different email state is discarded.
+ * <p>
+ * Body values are only kept in memory for recently written emails. They remain in the journal though and compaction
+ * carries them over as separate entries, so neither the search index nor the previews lose them across restarts.
+ */
+public class PersistentCache extends MyInMemoryCache implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistentCache.class);
+
+    private static final int COMPACTION_THRESHOLD = 512;
+
+    //number of emails per body values entry written during compaction
+    private static final int BODY_VALUES_BATCH_SIZE = 256;
+
+    private static final boolean PERSIST_SEARCH_INDEX = Boolean.getBoolean("lttrs.search.persist");
+
+    private static final Gson GSON;
+
+    static {
+        final GsonBuilder builder = new GsonBuilder();
+        JmapAdapters.register(builder);
+        GSON = builder.create();
+    }
+
+    private static final Type MAILBOX_STATE = new TypeToken<TypedState<Mailbox>>() {
+    }.getType();
+    private static final Type MAILBOX_UPDATE = new TypeToken<Update<Mailbox>>() {
+    }.getType();
+    private static final Type IDENTITY_STATE = new TypeToken<TypedState<Identity>>() {
+    }.getType();
+    private static final Type IDENTITY_UPDATE = new TypeToken<Update<Identity>>() {
+    }.getType();
+    private static final Type THREAD_STATE = new TypeToken<TypedState<Thread>>() {
+    }.getType();
+    private static final Type THREAD_UPDATE = new TypeToken<Update<Thread>>() {
+    }.getType();
+    private static final Type EMAIL_STATE = new TypeToken<TypedState<Email>>() {
+    }.getType();
+    private static final Type EMAIL_UPDATE = new TypeToken<Update<Email>>() {
+    }.getType();
+    private static final Type QUERY_UPDATE = new TypeToken<QueryUpdate<Email, QueryResultItem>>() {
+    }.getType();
+
+    private final Path journal;
+    private final int compactionThreshold;
+    private final Map<String, List<JsonObject>> queryRecords = new HashMap<>();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        final java.lang.Thread thread = new java.lang.Thread(runnable, "journal-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private BufferedWriter writer;
+    private boolean replaying = false;
+    private boolean torn = false;
+    private boolean compacting = false;
+    private int records = 0;
+    //size of the journal right after the last compaction
+    private int compactedRecords = 0;
+
+    private TypedState<Mailbox> mailboxTypedState;
+    private TypedState<Identity> identityTypedState;
+    private TypedState<Thread> threadTypedState;
+    private TypedState<Email> emailTypedState;
+
+    private PersistentCache(Path journal, int compactionThreshold) {
+        this.journal = journal;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public static PersistentCache open(Path journal) throws IOException {
+        return open(journal, COMPACTION_THRESHOLD);
+    }
+
+    static PersistentCache open(Path journal, int compactionThreshold) throws IOException {
+        Files.createDirectories(journal.toAbsolutePath().getParent());
+        final PersistentCache cache = new PersistentCache(journal, compactionThreshold);
+        final SearchIndex.Persisted persisted = PERSIST_SEARCH_INDEX ? readSearchIndex(cache.searchIndexPath()) : null;
+        try {
+            if (persisted != null) {
+                cache.suspendIndexing();
+            }
+            cache.replay();
+            if (persisted != null) {
+                final boolean current = cache.emailTypedState != null && persisted.state.equals(cache.emailTypedState.getState());
+                cache.resumeIndexing(current ? persisted.index : null);
+                if (!current) {
+                    cache.readBodyValues(Long.MAX_VALUE, batch -> cache.addBodyValues(GSON.fromJson(batch, Email[].class)));
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.warn("unable to restore cache from {}. starting with empty cache", journal, e);
+            Files.deleteIfExists(journal);
+            final PersistentCache empty = new PersistentCache(journal, compactionThreshold);
+            empty.openWriter();
+            return empty;
+        }
+        if (cache.torn || cache.needsCompaction()) {
+            cache.compact();
+        }
+        cache.openWriter();
+        return cache;
+    }
+
+    private Path searchIndexPath() {
+        return journal.resolveSibling(journal.getFileName() + ".index");
+    }
+
+    private static SearchIndex.Persisted readSearchIndex(Path path) {
+        try {
+            return SearchIndex.read(path);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("unable to read search index from {}", path, e);
+            return null;
+        }
+    }
+
+    private void writeSearchIndex() {
+        final Path path = searchIndexPath();
+        try {
+            if (emailTypedState == null) {
+                Files.deleteIfExists(path);
+            } else {
+                getSearchIndex().write(path, emailTypedState.getState());
+            }
+        } catch (IOException e) {
+            LOGGER.warn("unable to write search index to {}", path, e);
+        }
+    }
+
+    private void replay() throws IOException, CacheWriteException, CacheConflictException {
+        if (!Files.exists(journal)) {
+            return;
+        }
+        replaying = true;
+        try (final BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final JsonObject record;
+                try {
+                    record = new JsonParser().parse(line).getAsJsonObject();
+                } catch (JsonParseException | IllegalStateException e) {
+                    //a torn write at the end of the journal. everything up until here is consistent
+                    LOGGER.warn("ignoring incomplete journal entry in {}", journal);
+                    torn = true;
+                    break;
+                }
+                apply(record);
+            }
+        } finally {
+            replaying = false;
+        }
+        LOGGER.info("restored {} journal entries from {}", records, journal);
+    }
+
+    private void apply(JsonObject record) throws CacheWriteException, CacheConflictException {
+        final String method = record.get("m").getAsString();
+        final JsonArray a = record.getAsJsonArray("a");
+        switch (method) {
+            case "setMailboxes":
+                setMailboxes(GSON.fromJson(a.get(0), MAILBOX_STATE), GSON.fromJson(a.get(1), Mailbox[].class));
+                break;
+            case "updateMailboxes":
+                updateMailboxes(GSON.fromJson(a.get(0), MAILBOX_UPDATE), GSON.fromJson(a.get(1), String[].class));
+                break;
+            case "setIdentities":
+                setIdentities(GSON.fromJson(a.get(0), IDENTITY_STATE), GSON.fromJson(a.get(1), Identity[].class));
+                break;
+            case "updateIdentities":
+                updateIdentities(GSON.fromJson(a.get(0), IDENTITY_UPDATE));
+                break;
+            case "setThreads":
+                setThreads(GSON.fromJson(a.get(0), THREAD_STATE), GSON.fromJson(a.get(1), Thread[].class));
+                break;
+            case "addThreads":
+                addThreads(GSON.fromJson(a.get(0), THREAD_STATE), GSON.fromJson(a.get(1), Thread[].class));
+                break;
+            case "updateThreads":
+                updateThreads(GSON.fromJson(a.get(0), THREAD_UPDATE));
+                break;
+            case "setEmails":
+                setEmails(GSON.fromJson(a.get(0), EMAIL_STATE), GSON.fromJson(a.get(1), Email[].class));
+                break;
+            case "addEmails":
+                addEmails(GSON.fromJson(a.get(0), EMAIL_STATE), GSON.fromJson(a.get(1), Email[].class));
+                break;
+            case "updateEmails":
+                updateEmails(GSON.fromJson(a.get(0), EMAIL_UPDATE), GSON.fromJson(a.get(1), String[].class));
+                break;
+            case "addBodyValues":
+                addBodyValues(GSON.fromJson(a.get(0), Email[].class));
+                break;
+            case "setQueryResult":
+                setQueryResult(a.get(0).getAsString(), GSON.fromJson(a.get(1), QueryResult.class));
+                break;
+            case "addQueryResult":
+                addQueryResult(a.get(0).getAsString(), a.get(1).getAsString(), GSON.fromJson(a.get(2), QueryResult.class));
+                break;
+            case "updateQueryResults":
+                updateQueryResults(a.get(0).getAsString(), GSON.fromJson(a.get(1), QUERY_UPDATE), GSON.fromJson(a.get(2), EMAIL_STATE));
+                break;
+            case "invalidateQueryResult":
+                invalidateQueryResult(a.get(0).getAsString());
+                break;
+            default:
+                throw new IllegalStateException("unknown journal entry " + method);
+        }
+    }
+
+    @Override
+    public void setMailboxes(TypedState<Mailbox> typedState, Mailbox[] mailboxes) {
+        synchronized (this.writeLock) {
+            super.setMailboxes(typedState, mailboxes);
+            this.mailboxTypedState = typedState;
+            append(record("setMailboxes", tree(typedState, MAILBOX_STATE), tree(mailboxes, Mailbox[].class)));
+        }
+    }
+
+    @Override
+    public void updateMailboxes(Update<Mailbox> update, String[] updatedProperties) throws CacheWriteException {
+        synchronized (this.writeLock) {
+            super.updateMailboxes(update, updatedProperties);
+            this.mailboxTypedState = update.getNewTypedState();
+            append(record("updateMailboxes", tree(update, MAILBOX_UPDATE), tree(updatedProperties, String[].class)));
+        }
+    }
+
+    @Override
+    public void setIdentities(TypedState<Identity> typedState, Identity[] identities) {
+        synchronized (this.writeLock) {
+            super.setIdentities(typedState, identities);
+            this.identityTypedState = typedState;
+            append(record("setIdentities", tree(typedState, IDENTITY_STATE), tree(identities, Identity[].class)));
+        }
+    }
+
+    @Override
+    public void updateIdentities(Update<Identity> update) throws CacheWriteException {
+        synchronized (this.writeLock) {
+            super.updateIdentities(update);
+            this.identityTypedState = update.getNewTypedState();
+            append(record("updateIdentities", tree(update, IDENTITY_UPDATE)));
+        }
+    }
+
+    @Override
+    public void setThreads(TypedState<Thread> typedState, Thread[] threads) {
+        synchronized (this.writeLock) {
+            super.setThreads(typedState, threads);
+            this.threadTypedState = typedState;
+            append(record("setThreads", tree(typedState, THREAD_STATE), tree(threads, Thread[].class)));
+        }
+    }
+
+    @Override
+    public void addThreads(TypedState<Thread> typedState, Thread[] threads) throws CacheConflictException {
+        synchronized (this.writeLock) {
+            super.addThreads(typedState, threads);
+            this.threadTypedState = typedState;
+            append(record("addThreads", tree(typedState, THREAD_STATE), tree(threads, Thread[].class)));
+        }
+    }
+
+    @Override
+    public void updateThreads(Update<Thread> update) throws CacheWriteException {
+        synchronized (this.writeLock) {
+            super.updateThreads(update);
+            this.threadTypedState = update.getNewTypedState();
+            append(record("updateThreads", tree(update, THREAD_UPDATE)));
+        }
+    }
+
+    @Override
+    public void setEmails(TypedState<Email> typedState, Email[] emails) {
+        synchronized (this.writeLock) {
+            super.setEmails(typedState, emails);
+            this.emailTypedState = typedState;
+            append(record("setEmails", tree(typedState, EMAIL_STATE), tree(emails, Email[].class)));
+        }
+    }
+
+    @Override
+    public void addEmails(TypedState<Email> typedState, Email[] emails) throws CacheConflictException {
+        synchronized (this.writeLock) {
+            super.addEmails(typedState, emails);
+            this.emailTypedState = typedState;
+            append(record("addEmails", tree(typedState, EMAIL_STATE), tree(emails, Email[].class)));
+        }
+    }
+
+    @Override
+    public void updateEmails(Update<Email> update, String[] updatedProperties) throws CacheWriteException {
+        synchronized (this.writeLock) {
+            super.updateEmails(update, updatedProperties);
+            this.emailTypedState = update.getNewTypedState();
+            append(record("updateEmails", tree(update, EMAIL_UPDATE), tree(updatedProperties, String[].class)));
+        }
+    }
+
+    @Override
+    public void setQueryResult(String query, QueryResult queryResult) {
+        synchronized (this.writeLock) {
+            super.setQueryResult(query, queryResult);
+            final JsonObject record = record("setQueryResult", tree(query, String.class), tree(queryResult, QueryResult.class));
+            final List<JsonObject> queryRecords = new ArrayList<>();
+            queryRecords.add(record);
+            this.queryRecords.put(query, queryRecords);
+            append(record);
+        }
+    }
+
+    @Override
+    public void addQueryResult(String query, String afterEmailId, QueryResult queryResult) throws CacheWriteException, CacheConflictException {
+        synchronized (this.writeLock) {
+            super.addQueryResult(query, afterEmailId, queryResult);
+            appendQueryRecord(query, record("addQueryResult", tree(query, String.class), tree(afterEmailId, String.class), tree(queryResult, QueryResult.class)));
+        }
+    }
+
+    @Override
+    public void updateQueryResults(String query, QueryUpdate<Email, QueryResultItem> update, TypedState<Email> emailState) throws CacheWriteException {
+        synchronized (this.writeLock) {
+            super.updateQueryResults(query, update, emailState);
+            appendQueryRecord(query, record("updateQueryResults", tree(query, String.class), tree(update, QUERY_UPDATE), tree(emailState, EMAIL_STATE)));
+        }
+    }
+
+    @Override
+    public void invalidateQueryResult(String query) {
+        synchronized (this.writeLock) {
+            super.invalidateQueryResult(query);
+            this.queryRecords.remove(query);
+            append(record("invalidateQueryResult", tree(query, String.class)));
+        }
+    }
+
+    private void appendQueryRecord(String query, JsonObject record) {
+        final List<JsonObject> queryRecords = this.queryRecords.get(query);
+        if (queryRecords != null) {
+            queryRecords.add(record);
+        }
+        append(record);
+    }
+
+    private static JsonElement tree(Object object, Type type) {
+        return GSON.toJsonTree(object, type);
+    }
+
+    private static JsonObject record(String method, JsonElement... arguments) {
+        final JsonObject record = new JsonObject();
+        record.addProperty("m", method);
+        final JsonArray a = new JsonArray();
+        for (JsonElement argument : arguments) {
+            a.add(argument);
+        }
+        record.add("a", a);
+        return record;
+    }
+
+    private void append(JsonObject record) {
+        ++records;
+        if (replaying || writer == null) {
+            return;
+        }
+        try {
+            writer.write(GSON.toJson(record));
+            writer.newLine();
+            writer.flush();
+            if (!compacting && needsCompaction()) {
+                compactInBackground();
+            }
+        } catch (IOException e) {
+            LOGGER.error("unable to append to journal {}. disabling persistence", journal, e);
+            closeQuietly();
+        }
+    }
+
+    /**
+     * The journal is compacted once it has doubled since the last compaction, so a cache whose snapshot alone exceeds
+     * the threshold isn’t rewritten on every append.
+     */
+    private boolean needsCompaction() {
+        return records > Math.max(compactionThreshold, compactedRecords * 2);
+    }
+
+    private void openWriter() throws IOException {
+        this.writer = Files.newBufferedWriter(journal, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Rewrites the journal as one snapshot per entity type followed by the entries needed to restore the query
+     * results that are still cached. Only used while opening the cache, before anything else can write to it.
+     */
+    private void compact() throws IOException {
+        final Snapshot snapshot = snapshot();
+        final Path temporary = journal.resolveSibling(journal.getFileName() + ".tmp");
+        final int compacted = write(snapshot, temporary);
+        Files.move(temporary, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("compacted journal {} from {} to {} entries", journal, records, compacted);
+        this.records = compacted;
+        this.compactedRecords = compacted;
+    }
+
+    /**
+     * Takes a snapshot while holding the write lock and writes the compacted journal on the compaction thread. Only the
+     * final swap, which copies the entries that were appended in the meantime, blocks writes again.
+     */
+    private void compactInBackground() throws IOException {
+        final Snapshot snapshot = snapshot();
+        final Path temporary = journal.resolveSibling(journal.getFileName() + ".tmp");
+        compacting = true;
+        try {
+            compactor.execute(() -> {
+                try {
+                    final int compacted = write(snapshot, temporary);
+                    synchronized (this.writeLock) {
+                        swap(snapshot, temporary, compacted);
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("unable to compact journal {}", journal, e);
+                    try {
+                        Files.deleteIfExists(temporary);
+                    } catch (IOException ignored) {
+                        //overwritten by the next compaction
+                    }
+                } finally {
+                    synchronized (this.writeLock) {
+                        compacting = false;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //closing
+            compacting = false;
+        }
+    }
+
+    /**
+     * Appends what was written to the old journal since the snapshot and replaces the old journal. Called while holding
+     * the write lock.
+     */
+    private void swap(Snapshot snapshot, Path temporary, int compacted) throws IOException {
+        try (final FileChannel source = FileChannel.open(journal, StandardOpenOption.READ);
+             final FileChannel destination = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            final long size = source.size();
+            long position = snapshot.length;
+            while (position < size) {
+                position += source.transferTo(position, size - position, destination);
+            }
+        }
+        final boolean open = writer != null;
+        if (open) {
+            writer.close();
+            writer = null;
+        }
+        try {
+            Files.move(temporary, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (open) {
+                openWriter();
+            }
+        }
+        final int appended = records - snapshot.journalRecords;
+        LOGGER.info("compacted journal {} from {} to {} entries", journal, records, compacted + appended);
+        this.records = compacted + appended;
+        this.compactedRecords = compacted;
+    }
+
+    /**
+     * Copies what the compacted journal is made of. The entities themselves are immutable so copying the references
+     * is enough; converting them to JSON is left to the compaction thread. Has to be called while holding the write
+     * lock or while opening the cache.
+     */
+    private Snapshot snapshot() throws IOException {
+        final Snapshot snapshot = new Snapshot(records, Files.exists(journal) ? Files.size(journal) : 0);
+        if (mailboxTypedState != null) {
+            final TypedState<Mailbox> typedState = mailboxTypedState;
+            final Mailbox[] mailboxes;
+            synchronized (this.mailboxes) {
+                mailboxes = this.mailboxes.values().toArray(new Mailbox[0]);
+            }
+            snapshot.records.add(() -> record("setMailboxes", tree(typedState, MAILBOX_STATE), tree(mailboxes, Mailbox[].class)));
+        }
+        if (identityTypedState != null) {
+            final TypedState<Identity> typedState = identityTypedState;
+            final Identity[] identities;
+            synchronized (this.identities) {
+                identities = this.identities.values().toArray(new Identity[0]);
+            }
+            snapshot.records.add(() -> record("setIdentities", tree(typedState, IDENTITY_STATE), tree(identities, Identity[].class)));
+        }
+        if (threadTypedState != null) {
+            final TypedState<Thread> typedState = threadTypedState;
+            final Thread[] threads;
+            synchronized (this.threads) {
+                threads = this.threads.values().toArray(new Thread[0]);
+            }
+            snapshot.records.add(() -> record("setThreads", tree(typedState, THREAD_STATE), tree(threads, Thread[].class)));
+        }
+        if (emailTypedState != null) {
+            final TypedState<Email> typedState = emailTypedState;
+            final Email[] emails;
+            synchronized (this.emails) {
+                emails = this.emails.values().toArray(new Email[0]);
+            }
+            snapshot.records.add(() -> record("setEmails", tree(typedState, EMAIL_STATE), tree(emails, Email[].class)));
+        }
+        for (List<JsonObject> queryRecords : this.queryRecords.values()) {
+            //the records are never modified, only the lists they are in
+            for (JsonObject record : queryRecords) {
+                snapshot.records.add(() -> record);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the number of entries written
+     */
+    private int write(Snapshot snapshot, Path temporary) throws IOException {
+        int compacted = 0;
+        try (final BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Supplier<JsonObject> record : snapshot.records) {
+                out.write(GSON.toJson(record.get()));
+                out.newLine();
+                ++compacted;
+            }
+            final int[] bodyValueRecords = {0};
+            readBodyValues(snapshot.length, batch -> {
+                out.write(GSON.toJson(record("addBodyValues", batch)));
+                out.newLine();
+                ++bodyValueRecords[0];
+            });
+            compacted += bodyValueRecords[0];
+        }
+        return compacted;
+    }
+
+    private static final class Snapshot {
+
+        private final List<Supplier<JsonObject>> records = new ArrayList<>();
+        //number of entries and bytes in the journal when the snapshot was taken
+        private final int journalRecords;
+        private final long length;
+
+        private Snapshot(int journalRecords, long length) {
+            this.journalRecords = journalRecords;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Streams the body values of all emails that are still cached out of the journal in batches of id and body values.
+     * Email contents are immutable, so the first body values found for an id are the only ones.
+     *
+     * @param length how much of the journal to read. entries after that are still being appended
+     */
+    private void readBodyValues(long length, BodyValuesConsumer consumer) throws IOException {
+        if (!Files.exists(journal)) {
+            return;
+        }
+        final Set<String> seen = new HashSet<>();
+        JsonArray batch = new JsonArray();
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(ByteStreams.limit(Files.newInputStream(journal), length), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final JsonObject record;
+                try {
+                    record = new JsonParser().parse(line).getAsJsonObject();
+                } catch (JsonParseException | IllegalStateException e) {
+                    break;
+                }
+                final JsonArray a = record.getAsJsonArray("a");
+                final List<JsonElement> emails = new ArrayList<>();
+                switch (record.get("m").getAsString()) {
+                    case "setEmails":
+                    case "addEmails":
+                        addAll(a.get(1), emails);
+                        break;
+                    case "updateEmails":
+                        addAll(a.get(0).getAsJsonObject().get("created"), emails);
+                        addAll(a.get(0).getAsJsonObject().get("updated"), emails);
+                        break;
+                    case "addBodyValues":
+                        addAll(a.get(0), emails);
+                        break;
+                    default:
+                        continue;
+                }
+                for (JsonElement element : emails) {
+                    final JsonObject email = element.getAsJsonObject();
+                    final JsonElement id = email.get("id");
+                    final JsonElement bodyValues = email.get("bodyValues");
+                    if (id == null || bodyValues == null || !bodyValues.isJsonObject() || !isCached(id.getAsString()) || !seen.add(id.getAsString())) {
+                        continue;
+                    }
+                    final JsonObject partial = new JsonObject();
+                    partial.add("id", id);
+                    partial.add("bodyValues", bodyValues);
+                    batch.add(partial);
+                    if (batch.size() == BODY_VALUES_BATCH_SIZE) {
+                        consumer.accept(batch);
+                        batch = new JsonArray();
+                    }
+                }
+            }
+        }
+        if (batch.size() > 0) {
+            consumer.accept(batch);
+        }
+    }
+
+    private boolean isCached(String emailId) {
+        synchronized (this.emails) {
+            return this.emails.containsKey(emailId);
+        }
+    }
+
+    private static void addAll(JsonElement array, List<JsonElement> elements) {
+        if (array != null && array.isJsonArray()) {
+            for (JsonElement element : array.getAsJsonArray()) {
+                elements.add(element);
+            }
+        }
+    }
+
+    private interface BodyValuesConsumer {
+        void accept(JsonArray batch) throws IOException;
+    }
+
+    private void closeQuietly() {
+        try {
+            closeWriter();
+        } catch (IOException e) {
+            LOGGER.warn("unable to close journal {}", journal, e);
+        }
+    }
+
+    /**
+     * Waits for a compaction that is still running before the journal is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            java.lang.Thread.currentThread().interrupt();
+        }
+        closeWriter();
+    }
+
+    private void closeWriter() throws IOException {
+        synchronized (this.writeLock) {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+                if (PERSIST_SEARCH_INDEX) {
+                    writeSearchIndex();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.cache;
+
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.EmailBodyPart;
+import rs.ltt.jmap.common.entity.EmailBodyValue;
+
+import java.util.List;
+import java.util.Map;
+
+final class Previews {
+
+    static final int MAX_LENGTH = 256;
+
+    //upper bound of characters looked at per body part even if they are mostly white space
+    private static final int MAX_SCAN = MAX_LENGTH * 16;
+
+    private Previews() {
+
+    }
+
+    /**
+     * Joins the text bodies of an email with all runs of white space collapsed into a single space. Only the first
+     * {@link #MAX_LENGTH} characters of the result are computed. Without body values the preview the server has
+     * generated is used instead.
+     */
+    static String of(Email email, Map<String, EmailBodyValue> bodyValues) {
+        final List<EmailBodyPart> textBodies = email.getTextBody();
+        final StringBuilder builder = new StringBuilder(MAX_LENGTH);
+        if (textBodies == null || bodyValues == null) {
+            if (email.getPreview() != null) {
+                append(email.getPreview(), builder);
+            }
+            return builder.toString();
+        }
+        for (EmailBodyPart bodyPart : textBodies) {
+            final EmailBodyValue bodyValue = bodyValues.get(bodyPart.getPartId());
+            if (bodyValue == null || bodyValue.getValue() == null) {
+                continue;
+            }
+            append(bodyValue.getValue(), builder);
+            if (builder.length() >= MAX_LENGTH) {
+                break;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void append(String value, StringBuilder builder) {
+        final int end = Math.min(value.length(), MAX_SCAN);
+        boolean whitespace = false;
+        for (int i = 0; i < end && builder.length() < MAX_LENGTH; ++i) {
+            final char c = value.charAt(i);
+            if (Character.isWhitespace(c)) {
+                whitespace = true;
+            } else {
+                if (whitespace) {
+                    builder.append(' ');
+                    whitespace = false;
+                    if (builder.length() == MAX_LENGTH) {
+                        break;
+                    }
+                }
+                builder.append(c);
+            }
+        }
+        if (whitespace && builder.length() < MAX_LENGTH) {
+            builder.append(' ');
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.cache;
+
+import com.google.common.collect.ImmutableList;
+import rs.ltt.cli.model.QueryViewChange;
+import rs.ltt.cli.model.QueryViewDiff;
+import rs.ltt.cli.model.QueryViewItem;
+import rs.ltt.jmap.mua.util.QueryResultItem;
+
+import java.util.*;
+import java.util.function.BiFunction;
+
+/**
+ * Live list of {@link QueryViewItem} for a single query. The view mirrors the query result of the cache and records
+ * the changes that have been made since the last call to {@link #drain()}. Rows that reference emails or threads not
+ * yet in the cache are kept but hidden until they can be resolved.
+ */
+class QueryView {
+
+    private final BiFunction<String, String, QueryViewItem> resolver;
+
+    private final ArrayList<Row> rows = new ArrayList<>();
+
+    private final List<QueryViewChange> changes = new ArrayList<>();
+
+    private boolean reset = true;
+
+    QueryView(BiFunction<String, String, QueryViewItem> resolver) {
+        this.resolver = resolver;
+    }
+
+    synchronized void reset(Collection<QueryResultItem> items) {
+        rows.clear();
+        rows.ensureCapacity(items.size());
+        for (QueryResultItem item : items) {
+            rows.add(new Row(item.getEmailId(), item.getThreadId(), resolver.apply(item.getEmailId(), item.getThreadId())));
+        }
+        changes.clear();
+        reset = true;
+    }
+
+    synchronized void invalidate() {
+        for (Row row : rows) {
+            row.item = resolver.apply(row.emailId, row.threadId);
+        }
+        changes.clear();
+        reset = true;
+    }
+
+    synchronized void append(QueryResultItem item) {
+        insert(rows.size(), item);
+    }
+
+    synchronized void insert(int index, QueryResultItem item) {
+        final int rowIndex = Math.max(0, Math.min(index, rows.size()));
+        final Row row = new Row(item.getEmailId(), item.getThreadId(), resolver.apply(item.getEmailId(), item.getThreadId()));
+        rows.add(rowIndex, row);
+        if (row.item != null) {
+            record(QueryViewChange.Type.INSERT, visiblePosition(rowIndex), row.item);
+        }
+    }
+
+    synchronized void remove(String emailId) {
+        int position = 0;
+        final Iterator<Row> iterator = rows.iterator();
+        while (iterator.hasNext()) {
+            final Row row = iterator.next();
+            if (row.emailId.equals(emailId)) {
+                iterator.remove();
+                if (row.item != null) {
+                    record(QueryViewChange.Type.REMOVE, position, null);
+                }
+                return;
+            }
+            if (row.item != null) {
+                ++position;
+            }
+        }
+    }
+
+    synchronized void refresh(Set<String> threadIds) {
+        if (threadIds.isEmpty()) {
+            return;
+        }
+        int position = 0;
+        for (Row row : rows) {
+            if (threadIds.contains(row.threadId)) {
+                final QueryViewItem item = resolver.apply(row.emailId, row.threadId);
+                if (row.item != null && item != null) {
+                    record(QueryViewChange.Type.CHANGE, position, item);
+                } else if (item != null) {
+                    record(QueryViewChange.Type.INSERT, position, item);
+                } else if (row.item != null) {
+                    record(QueryViewChange.Type.REMOVE, position, null);
+                }
+                row.item = item;
+            }
+            if (row.item != null) {
+                ++position;
+            }
+        }
+    }
+
+    synchronized List<QueryViewItem> getItems() {
+        final ImmutableList.Builder<QueryViewItem> builder = new ImmutableList.Builder<>();
+        for (Row row : rows) {
+            if (row.item != null) {
+                builder.add(row.item);
+            }
+        }
+        return builder.build();
+    }
+
+    synchronized QueryViewDiff drain() {
+        final QueryViewDiff diff;
+        if (reset) {
+            diff = QueryViewDiff.reset(getItems());
+        } else {
+            diff = QueryViewDiff.of(ImmutableList.copyOf(changes));
+        }
+        reset = false;
+        changes.clear();
+        return diff;
+    }
+
+    private void record(QueryViewChange.Type type, int position, QueryViewItem item) {
+        if (!reset) {
+            changes.add(new QueryViewChange(type, position, item));
+        }
+    }
+
+    private int visiblePosition(int rowIndex) {
+        int position = 0;
+        for (int i = 0; i < rowIndex; ++i) {
+            if (rows.get(i).item != null) {
+                ++position;
+            }
+        }
+        return position;
+    }
+
+    private static class Row {
+        private final String emailId;
+        private final String threadId;
+        private QueryViewItem item;
+
+        private Row(String emailId, String threadId, QueryViewItem item) {
+            this.emailId = emailId;
+            this.threadId = threadId;
+            this.item = item;
+        }
+    }
+}
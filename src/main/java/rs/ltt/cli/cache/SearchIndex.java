@@ -0,0 +1,502 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.cache;
+
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.EmailAddress;
+import rs.ltt.jmap.common.entity.EmailBodyPart;
+import rs.ltt.jmap.common.entity.EmailBodyValue;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over subject, senders and the beginning of the text body of every cached email. The content of an
+ * email never changes in JMAP so emails are indexed once when they arrive and removed when they are destroyed or
+ * evicted from the cache.
+ * <p>
+ * Every email gets a document number in the order it was indexed. A posting stores the document number together with
+ * the fields the term occurred in, which keeps posting lists sorted without ever sorting them.
+ */
+class SearchIndex {
+
+    static final int FIELD_SUBJECT = 1;
+    static final int FIELD_FROM = 2;
+    static final int FIELD_BODY = 4;
+
+    private static final int FIELD_BITS = 3;
+    private static final int FIELD_MASK = (1 << FIELD_BITS) - 1;
+
+    //characters of the text body that are indexed per email
+    private static final int MAX_BODY_LENGTH = 8192;
+
+    private static final int MAX_TERM_LENGTH = 32;
+
+    private static final int MAX_QUERY_TERMS = 16;
+
+    //number of terms an incomplete query term is expanded to
+    private static final int MAX_EXPANSIONS = 256;
+
+    private static final int MIN_COMPACTION = 1024;
+
+    private static final int MAGIC = 0x6c747273;
+    private static final int VERSION = 1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+
+    private final Map<String, Integer> documentIds = new HashMap<>();
+
+    private String[] emailIds = new String[1024];
+    private String[] threadIds = new String[1024];
+    private long[] receivedAt = new long[1024];
+    private int documents = 0;
+    private int deleted = 0;
+
+    void add(Email email) {
+        add(email, email.getBodyValues());
+    }
+
+    /**
+     * @param bodyValues the body values of the email which are usually no longer attached to a cached email
+     */
+    void add(Email email, Map<String, EmailBodyValue> bodyValues) {
+        final Map<String, Integer> fields = new HashMap<>();
+        collect(email.getSubject(), FIELD_SUBJECT, fields);
+        if (email.getFrom() != null) {
+            for (EmailAddress address : email.getFrom()) {
+                collect(address.getName(), FIELD_FROM, fields);
+                collect(address.getEmail(), FIELD_FROM, fields);
+            }
+        }
+        collectBody(email.getTextBody(), bodyValues, fields);
+        final long time = email.getReceivedAt() == null ? 0 : email.getReceivedAt().getTime();
+        lock.writeLock().lock();
+        try {
+            //emails get indexed again once their body values arrive
+            removeLocked(email.getId());
+            compactIfNeeded();
+            final int document = documents++;
+            ensureCapacity(documents);
+            emailIds[document] = email.getId();
+            threadIds[document] = email.getThreadId();
+            receivedAt[document] = time;
+            documentIds.put(email.getId(), document);
+            for (Map.Entry<String, Integer> entry : fields.entrySet()) {
+                Postings postings = terms.get(entry.getKey());
+                if (postings == null) {
+                    postings = new Postings();
+                    terms.put(entry.getKey(), postings);
+                }
+                postings.add(document << FIELD_BITS | entry.getValue());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(String emailId) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(emailId);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            terms.clear();
+            documentIds.clear();
+            Arrays.fill(emailIds, 0, documents, null);
+            Arrays.fill(threadIds, 0, documents, null);
+            documents = 0;
+            deleted = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return documentIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void removeLocked(String emailId) {
+        final Integer document = documentIds.remove(emailId);
+        if (document != null) {
+            //postings of deleted documents are skipped during search and dropped on compaction
+            emailIds[document] = null;
+            threadIds[document] = null;
+            ++deleted;
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (deleted > MIN_COMPACTION && deleted > documents - deleted) {
+            compact();
+        }
+    }
+
+    /**
+     * Renumbers the remaining documents and rewrites the posting lists without the deleted ones.
+     */
+    private void compact() {
+        final int[] renumbered = new int[documents];
+        int next = 0;
+        for (int document = 0; document < documents; ++document) {
+            if (emailIds[document] == null) {
+                renumbered[document] = -1;
+            } else {
+                renumbered[document] = next;
+                emailIds[next] = emailIds[document];
+                threadIds[next] = threadIds[document];
+                receivedAt[next] = receivedAt[document];
+                documentIds.put(emailIds[next], next);
+                ++next;
+            }
+        }
+        Arrays.fill(emailIds, next, documents, null);
+        Arrays.fill(threadIds, next, documents, null);
+        final Iterator<Postings> iterator = terms.values().iterator();
+        while (iterator.hasNext()) {
+            final Postings postings = iterator.next();
+            int size = 0;
+            for (int i = 0; i < postings.size; ++i) {
+                final int posting = postings.values[i];
+                final int document = renumbered[posting >>> FIELD_BITS];
+                if (document >= 0) {
+                    postings.values[size++] = document << FIELD_BITS | posting & FIELD_MASK;
+                }
+            }
+            if (size == 0) {
+                iterator.remove();
+            } else {
+                postings.size = size;
+                postings.trim();
+            }
+        }
+        documents = next;
+        deleted = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > emailIds.length) {
+            final int length = Math.max(capacity, emailIds.length * 2);
+            emailIds = Arrays.copyOf(emailIds, length);
+            threadIds = Arrays.copyOf(threadIds, length);
+            receivedAt = Arrays.copyOf(receivedAt, length);
+        }
+    }
+
+    /**
+     * Finds the emails that contain all terms of the query. Unless the query ends with white space its last term is
+     * treated as a prefix so results can be shown while the user is still typing. Only the best matching email of
+     * each thread is returned. Matches in the subject weigh more than matches in the senders which in turn weigh
+     * more than matches in the body; rare terms weigh more than common ones. Ties are broken by date.
+     */
+    List<Hit> search(String query, int limit) {
+        final List<String> tokens = new ArrayList<>();
+        tokenize(query, 0, tokens);
+        final boolean typing = !query.isEmpty() && !Character.isWhitespace(query.charAt(query.length() - 1));
+        final List<String> queryTerms = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); ++i) {
+            //single characters are not indexed. only the term that is still being typed may be one
+            if (tokens.get(i).length() > 1 || (typing && i == tokens.size() - 1)) {
+                queryTerms.add(tokens.get(i));
+            }
+        }
+        if (queryTerms.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final int count = Math.min(queryTerms.size(), MAX_QUERY_TERMS);
+        final boolean prefix = typing && count == queryTerms.size();
+        lock.readLock().lock();
+        try {
+            final byte[] matched = new byte[documents];
+            final float[] scores = new float[documents];
+            final int live = Math.max(1, documents - deleted);
+            for (int t = 0; t < count; ++t) {
+                final String term = queryTerms.get(t);
+                final Collection<Postings> candidates;
+                if (prefix && t == count - 1) {
+                    candidates = expand(term);
+                } else {
+                    final Postings postings = terms.get(term);
+                    candidates = postings == null ? Collections.emptyList() : Collections.singletonList(postings);
+                }
+                if (candidates.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                for (Postings postings : candidates) {
+                    final float idf = (float) Math.log(1 + (double) live / postings.size);
+                    for (int i = 0; i < postings.size; ++i) {
+                        final int posting = postings.values[i];
+                        final int document = posting >>> FIELD_BITS;
+                        //a document has to match every previous term. several expansions may match the same document
+                        if (matched[document] == t) {
+                            matched[document] = (byte) (t + 1);
+                        } else if (matched[document] != t + 1) {
+                            continue;
+                        }
+                        scores[document] += idf * weight(posting & FIELD_MASK);
+                    }
+                }
+            }
+            final Map<String, Hit> best = new HashMap<>();
+            for (int document = 0; document < documents; ++document) {
+                if (matched[document] != count || emailIds[document] == null) {
+                    continue;
+                }
+                final Hit hit = new Hit(emailIds[document], threadIds[document], scores[document], receivedAt[document]);
+                final Hit previous = best.get(hit.threadId);
+                if (previous == null || Hit.ORDER.compare(hit, previous) < 0) {
+                    best.put(hit.threadId, hit);
+                }
+            }
+            final List<Hit> hits = new ArrayList<>(best.values());
+            hits.sort(Hit.ORDER);
+            return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Collection<Postings> expand(String prefix) {
+        final List<Postings> expansions = new ArrayList<>();
+        for (Postings postings : terms.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+            expansions.add(postings);
+            if (expansions.size() >= MAX_EXPANSIONS) {
+                break;
+            }
+        }
+        return expansions;
+    }
+
+    private static int weight(int fields) {
+        int weight = 0;
+        if ((fields & FIELD_SUBJECT) != 0) {
+            weight += 3;
+        }
+        if ((fields & FIELD_FROM) != 0) {
+            weight += 2;
+        }
+        if ((fields & FIELD_BODY) != 0) {
+            weight += 1;
+        }
+        return weight;
+    }
+
+    private static void collectBody(List<EmailBodyPart> textBodies, Map<String, EmailBodyValue> bodyValues, Map<String, Integer> fields) {
+        if (textBodies == null || bodyValues == null) {
+            return;
+        }
+        int remaining = MAX_BODY_LENGTH;
+        for (EmailBodyPart bodyPart : textBodies) {
+            final EmailBodyValue bodyValue = bodyValues.get(bodyPart.getPartId());
+            if (bodyValue == null || bodyValue.getValue() == null) {
+                continue;
+            }
+            final String value = bodyValue.getValue();
+            final int length = Math.min(value.length(), remaining);
+            collect(value.subSequence(0, length), FIELD_BODY, fields);
+            remaining -= length;
+            if (remaining <= 0) {
+                break;
+            }
+        }
+    }
+
+    private static void collect(CharSequence text, int field, Map<String, Integer> fields) {
+        if (text == null) {
+            return;
+        }
+        final List<String> tokens = new ArrayList<>();
+        tokenize(text, field, tokens);
+        for (String token : tokens) {
+            final Integer existing = fields.get(token);
+            fields.put(token, existing == null ? field : existing | field);
+        }
+    }
+
+    /**
+     * Splits text into lower case runs of letters and digits. Single characters are dropped from documents but kept
+     * in queries where the last one may serve as prefix.
+     */
+    private static void tokenize(CharSequence text, int field, List<String> tokens) {
+        final StringBuilder token = new StringBuilder(MAX_TERM_LENGTH);
+        for (int i = 0; i <= text.length(); ++i) {
+            final char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (token.length() < MAX_TERM_LENGTH) {
+                    token.append(Character.toLowerCase(c));
+                }
+            } else if (token.length() > 0) {
+                if (token.length() > 1 || field == 0) {
+                    tokens.add(token.toString());
+                }
+                token.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file next to the target and moves it into place. The state is stored alongside
+     * so a stale index can be recognized when it is read back.
+     */
+    void write(Path path, String state) throws IOException {
+        final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        lock.readLock().lock();
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(state);
+            out.writeInt(documents);
+            for (int document = 0; document < documents; ++document) {
+                final boolean present = emailIds[document] != null;
+                out.writeBoolean(present);
+                if (present) {
+                    out.writeUTF(emailIds[document]);
+                    out.writeUTF(threadIds[document]);
+                    out.writeLong(receivedAt[document]);
+                }
+            }
+            out.writeInt(terms.size());
+            for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                out.writeUTF(entry.getKey());
+                final Postings postings = entry.getValue();
+                out.writeInt(postings.size);
+                for (int i = 0; i < postings.size; ++i) {
+                    out.writeInt(postings.values[i]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the index stored at path and the state it was written with or null if there is no readable index
+     */
+    static Persisted read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            final String state = in.readUTF();
+            final SearchIndex index = new SearchIndex();
+            final int documents = in.readInt();
+            index.ensureCapacity(documents);
+            for (int document = 0; document < documents; ++document) {
+                if (in.readBoolean()) {
+                    index.emailIds[document] = in.readUTF();
+                    index.threadIds[document] = in.readUTF();
+                    index.receivedAt[document] = in.readLong();
+                    index.documentIds.put(index.emailIds[document], document);
+                } else {
+                    ++index.deleted;
+                }
+            }
+            index.documents = documents;
+            final int terms = in.readInt();
+            for (int t = 0; t < terms; ++t) {
+                final String term = in.readUTF();
+                final int size = in.readInt();
+                final Postings postings = new Postings(size);
+                for (int i = 0; i < size; ++i) {
+                    postings.add(in.readInt());
+                }
+                index.terms.put(term, postings);
+            }
+            return new Persisted(index, state);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    static class Persisted {
+        final SearchIndex index;
+        final String state;
+
+        private Persisted(SearchIndex index, String state) {
+            this.index = index;
+            this.state = state;
+        }
+    }
+
+    static class Hit {
+
+        private static final Comparator<Hit> ORDER = (a, b) -> {
+            final int score = Float.compare(b.score, a.score);
+            return score != 0 ? score : Long.compare(b.receivedAt, a.receivedAt);
+        };
+
+        final String emailId;
+        final String threadId;
+        final float score;
+        final long receivedAt;
+
+        private Hit(String emailId, String threadId, float score, long receivedAt) {
+            this.emailId = emailId;
+            this.threadId = threadId;
+            this.score = score;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    private static class Postings {
+        private int[] values;
+        private int size = 0;
+
+        private Postings() {
+            this(2);
+        }
+
+        private Postings(int capacity) {
+            this.values = new int[Math.max(1, capacity)];
+        }
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private void trim() {
+            if (size < values.length / 2) {
+                values = Arrays.copyOf(values, size);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.cache;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.EmailAddress;
+import rs.ltt.jmap.common.entity.Keyword;
+import rs.ltt.jmap.common.entity.Thread;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of a thread and the values that would otherwise require a walk over all of its emails.
+ * Aggregates are recomputed whenever an email or the thread itself changes and can be read without locking.
+ */
+class ThreadAggregate {
+
+    //threads started by the same people share one set of senders
+    private static final Interner<ImmutableSet<EmailAddress>> FROM = Interners.newWeakInterner();
+
+    final int count;
+
+    final ImmutableMap<String, Email> emails;
+
+    final ImmutableSet<EmailAddress> from;
+
+    final boolean unread;
+
+    final boolean flagged;
+
+    private ThreadAggregate(int count, ImmutableMap<String, Email> emails, ImmutableSet<EmailAddress> from, boolean unread, boolean flagged) {
+        this.count = count;
+        this.emails = emails;
+        this.from = from;
+        this.unread = unread;
+        this.flagged = flagged;
+    }
+
+    static ThreadAggregate of(Thread thread, Map<String, Email> emails) {
+        final List<String> emailIds = thread.getEmailIds();
+        final ImmutableMap.Builder<String, Email> threadEmails = new ImmutableMap.Builder<>();
+        final ImmutableSet.Builder<EmailAddress> from = new ImmutableSet.Builder<>();
+        boolean unread = false;
+        boolean flagged = false;
+        for (String id : emailIds) {
+            final Email email = emails.get(id);
+            if (email == null) {
+                continue;
+            }
+            threadEmails.put(id, email);
+            if (email.getFrom() != null) {
+                from.addAll(email.getFrom());
+            }
+            final Map<String, Boolean> keywords = email.getKeywords();
+            if (keywords != null) {
+                unread |= !keywords.containsKey(Keyword.SEEN);
+                flagged |= keywords.containsKey(Keyword.FLAGGED);
+            }
+        }
+        return new ThreadAggregate(emailIds.size(), threadEmails.build(), FROM.intern(from.build()), unread, flagged);
+    }
+}
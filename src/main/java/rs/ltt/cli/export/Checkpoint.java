@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.export;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Remembers which emails have been exported, one line per email with its id and the length of the target after the
+ * email was filed. A line is only written once the message is complete on disk, so an interrupted export continues
+ * with the first email that is missing and an mbox can be cut back to the end of the last complete message. The
+ * checkpoint is kept after the export has finished which makes the next run with the same target incremental.
+ */
+final class Checkpoint implements Closeable {
+
+    private final Map<String, Long> exported = new HashMap<>();
+    private final long length;
+    private final Writer writer;
+
+    private Checkpoint(Path file, long available) throws IOException {
+        boolean dropped = false;
+        if (Files.exists(file)) {
+            try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final int space = line.indexOf(' ');
+                    //a line without length was cut off by the interruption
+                    if (space < 0) {
+                        continue;
+                    }
+                    final long length;
+                    try {
+                        length = Long.parseLong(line.substring(space + 1));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    exported.put(line.substring(0, space), length);
+                }
+            }
+            //messages that are not (completely) in the target anymore have to be exported again
+            final Iterator<Long> iterator = exported.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() > available) {
+                    iterator.remove();
+                    dropped = true;
+                }
+            }
+        }
+        long length = 0;
+        for (long value : exported.values()) {
+            length = Math.max(length, value);
+        }
+        this.length = length;
+        if (dropped) {
+            //otherwise the dropped ids would look exported again once the target has grown past their length
+            final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (final BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Long> entry : exported.entrySet()) {
+                    out.write(entry.getKey() + ' ' + entry.getValue() + '\n');
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        //terminates a line that was cut off
+        this.writer.write('\n');
+    }
+
+    /**
+     * @param available the current length of the target. Emails recorded beyond it are forgotten
+     */
+    static Checkpoint open(Path file, long available) throws IOException {
+        return new Checkpoint(file, available);
+    }
+
+    synchronized boolean contains(String emailId) {
+        return exported.containsKey(emailId);
+    }
+
+    synchronized int size() {
+        return exported.size();
+    }
+
+    /**
+     * @return where the last complete message that was recorded ends
+     */
+    long getLength() {
+        return length;
+    }
+
+    synchronized void add(String emailId, long length) throws IOException {
+        writer.write(emailId + ' ' + length + '\n');
+        writer.flush();
+        exported.put(emailId, length);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A Maildir or mbox that downloaded messages are filed into. Messages are downloaded to a temporary file first so
+ * several downloads can run at the same time without holding a message in memory.
+ */
+interface ExportTarget extends Closeable {
+
+    /**
+     * @return a new empty file on the same file system as the target
+     */
+    Path newTemporaryFile() throws IOException;
+
+    /**
+     * Moves or appends the downloaded message into the target. The temporary file is gone afterwards.
+     *
+     * @return the length of the target to record in the checkpoint. 0 if it doesn’t matter
+     */
+    long commit(Message message, Path file) throws IOException;
+}
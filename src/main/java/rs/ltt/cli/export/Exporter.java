@@ -0,0 +1,443 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.export;
+
+import com.google.gson.*;
+import okhttp3.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.cli.sync.EventSourceMonitor;
+import rs.ltt.jmap.client.api.HttpJmapApiClient;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exports all emails of an account or of one mailbox to a Maildir or an mbox. The query is walked page by page,
+ * oldest email first, with Email/query and a back referenced Email/get that only asks for the blob id and what is
+ * needed to file the message. Raw messages are downloaded by a fixed number of threads and streamed from the socket to
+ * disk with file channels, so no message is ever held in memory. While downloads are running the next page is
+ * already being requested; the number of messages queued for download is bounded.
+ * <p>
+ * Progress is printed as one JSON line every few seconds and once more at the end.
+ */
+public class Exporter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Exporter.class);
+
+    private static final Gson GSON = new Gson();
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final String MAIL = "urn:ietf:params:jmap:mail";
+    private static final String[] USING = {"urn:ietf:params:jmap:core", MAIL};
+    private static final String[] PROPERTIES = {"id", "blobId", "receivedAt", "size", "keywords"};
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 1000;
+    private static final long REPORT_INTERVAL = 5000;
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
+    private final OkHttpClient okHttpClient;
+    private final HttpUrl sessionResource;
+    private final int parallel;
+    private final int pageSize;
+
+    private final AtomicLong exported = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final long start = System.nanoTime();
+
+    private HttpUrl apiUrl;
+    private String downloadUrl;
+    private HttpUrl sessionUrl;
+    private String accountId;
+
+    public Exporter(String username, String password, HttpUrl sessionResource, int parallel, int pageSize) {
+        final String credentials = Credentials.basic(username, password);
+        //sent with every request so downloads don’t need an extra round trip for the challenge
+        this.okHttpClient = HttpJmapApiClient.OK_HTTP_CLIENT.newBuilder()
+                .addInterceptor(chain -> chain.proceed(chain.request().newBuilder().header("Authorization", credentials).build()))
+                .build();
+        this.sessionResource = sessionResource != null ? sessionResource : EventSourceMonitor.wellKnown(username);
+        this.parallel = Math.max(1, parallel);
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    /**
+     * @param format  maildir or mbox
+     * @param target  the Maildir directory or the mbox file
+     * @param mailbox name or role of the mailbox to export or null to export the whole account
+     * @return the number of emails that could not be exported. those are retried by the next run
+     */
+    public long export(String format, Path target, String mailbox) throws IOException, InterruptedException {
+        discoverSession();
+        final JsonObject filter = mailbox == null ? null : inMailbox(mailbox);
+        final Path checkpointFile;
+        final long available;
+        if ("maildir".equals(format)) {
+            checkpointFile = target.resolve(".lttrs-checkpoint");
+            available = Long.MAX_VALUE;
+            Files.createDirectories(target);
+        } else if ("mbox".equals(format)) {
+            checkpointFile = target.resolveSibling(target.getFileName() + ".checkpoint");
+            available = Files.exists(target) ? Files.size(target) : 0;
+            if (!Files.exists(checkpointFile) && Files.exists(target) && Files.size(target) > 0) {
+                throw new IllegalArgumentException(target + " already exists and has no checkpoint");
+            }
+            Files.createDirectories(target.toAbsolutePath().getParent());
+        } else {
+            throw new IllegalArgumentException("unknown format " + format);
+        }
+        final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(daemon("export-progress"));
+        final ExecutorService downloader = Executors.newFixedThreadPool(parallel, daemon("export"));
+        //downloads that are running or waiting for a thread
+        final Semaphore queued = new Semaphore(parallel * 2);
+        try (final Checkpoint checkpoint = Checkpoint.open(checkpointFile, available);
+             final ExportTarget exportTarget = "maildir".equals(format) ? new Maildir(target) : new Mbox(target, checkpoint.getLength())) {
+            try {
+                LOGGER.info("{} emails have been exported before", checkpoint.size());
+                reporter.scheduleAtFixedRate(() -> report("progress"), REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+                int position = 0;
+                while (true) {
+                    final Page page = page(filter, position);
+                    for (Message message : page.messages) {
+                        if (checkpoint.contains(message.id)) {
+                            skipped.incrementAndGet();
+                            continue;
+                        }
+                        queued.acquire();
+                        downloader.execute(() -> {
+                            try {
+                                export(message, exportTarget, checkpoint);
+                            } finally {
+                                queued.release();
+                            }
+                        });
+                    }
+                    //servers may return fewer ids than asked for, so only an empty page ends the query
+                    if (page.size == 0) {
+                        break;
+                    }
+                    position += page.size;
+                }
+                downloader.shutdown();
+                downloader.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } finally {
+                //the downloads have to be done with the checkpoint and the target before those get closed
+                stop(downloader);
+            }
+        } finally {
+            //in case the checkpoint or the target couldn’t be opened
+            downloader.shutdownNow();
+            reporter.shutdownNow();
+        }
+        report("total");
+        return failed.get();
+    }
+
+    /**
+     * Interrupts the downloads that are still running and waits for them to finish. Being interrupted while waiting
+     * doesn’t end the wait; the interrupt is restored afterwards.
+     */
+    private static void stop(ExecutorService executor) {
+        executor.shutdownNow();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void export(Message message, ExportTarget target, Checkpoint checkpoint) {
+        for (int attempt = 1; ; ++attempt) {
+            Path file = null;
+            try {
+                file = target.newTemporaryFile();
+                final long size = download(message.blobId, file);
+                //recorded in the same critical section as the append so checkpoint lines are in the order of the mbox
+                synchronized (target) {
+                    final long length = target.commit(message, file);
+                    checkpoint.add(message.id, length);
+                }
+                exported.incrementAndGet();
+                bytes.addAndGet(size);
+                return;
+            } catch (IOException e) {
+                deleteQuietly(file);
+                if (attempt >= MAX_ATTEMPTS) {
+                    failed.incrementAndGet();
+                    LOGGER.warn("unable to export email {}", message.id, e);
+                    return;
+                }
+                LOGGER.info("unable to export email {}. retrying", message.id, e);
+                try {
+                    Thread.sleep(RETRY_DELAY << (attempt - 1));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private long download(String blobId, Path file) throws IOException {
+        final Request request = new Request.Builder().url(downloadUrl(blobId)).get().build();
+        try (final Response response = okHttpClient.newCall(request).execute()) {
+            final ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("unable to download " + blobId + ". status " + response.code());
+            }
+            try (final ReadableByteChannel source = Channels.newChannel(body.byteStream());
+                 final FileChannel destination = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                long transferred;
+                while ((transferred = destination.transferFrom(source, position, TRANSFER_SIZE)) > 0) {
+                    position += transferred;
+                }
+                return position;
+            }
+        }
+    }
+
+    private HttpUrl downloadUrl(String blobId) throws IOException {
+        final String url = downloadUrl
+                .replace("{accountId}", encode(accountId))
+                .replace("{blobId}", encode(blobId))
+                .replace("{name}", "message.eml")
+                .replace("{type}", encode("message/rfc822"));
+        final HttpUrl resolved = sessionUrl.resolve(url);
+        if (resolved == null) {
+            throw new IOException("invalid download url " + url);
+        }
+        return resolved;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void discoverSession() throws IOException {
+        final Request request = new Request.Builder().url(sessionResource).get().build();
+        try (final Response response = okHttpClient.newCall(request).execute()) {
+            final ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("unable to fetch session resource. status " + response.code());
+            }
+            final JsonObject session = new JsonParser().parse(body.charStream()).getAsJsonObject();
+            this.sessionUrl = response.request().url();
+            this.apiUrl = sessionUrl.resolve(session.get("apiUrl").getAsString());
+            this.downloadUrl = session.get("downloadUrl").getAsString();
+            this.accountId = session.getAsJsonObject("primaryAccounts").get(MAIL).getAsString();
+        } catch (JsonParseException | IllegalStateException | NullPointerException | ClassCastException e) {
+            throw new IOException("invalid session resource", e);
+        }
+        if (apiUrl == null) {
+            throw new IOException("invalid api url");
+        }
+    }
+
+    private JsonObject inMailbox(String mailbox) throws IOException {
+        final JsonObject arguments = new JsonObject();
+        arguments.addProperty("accountId", accountId);
+        arguments.add("properties", GSON.toJsonTree(new String[]{"id", "name", "role"}));
+        final JsonObject response = call(methodCall("Mailbox/get", arguments, "0")).get(0);
+        for (JsonElement element : response.getAsJsonArray("list")) {
+            final JsonObject candidate = element.getAsJsonObject();
+            final JsonElement role = candidate.get("role");
+            if (mailbox.equalsIgnoreCase(candidate.get("name").getAsString()) || (role != null && !role.isJsonNull() && mailbox.equalsIgnoreCase(role.getAsString()))) {
+                final JsonObject filter = new JsonObject();
+                filter.addProperty("inMailbox", candidate.get("id").getAsString());
+                return filter;
+            }
+        }
+        throw new IllegalArgumentException("mailbox " + mailbox + " not found");
+    }
+
+    private Page page(JsonObject filter, int position) throws IOException {
+        final JsonObject query = new JsonObject();
+        query.addProperty("accountId", accountId);
+        if (filter != null) {
+            query.add("filter", filter);
+        }
+        final JsonObject comparator = new JsonObject();
+        comparator.addProperty("property", "receivedAt");
+        comparator.addProperty("isAscending", true);
+        final JsonArray sort = new JsonArray();
+        sort.add(comparator);
+        query.add("sort", sort);
+        query.addProperty("position", position);
+        query.addProperty("limit", pageSize);
+
+        final JsonObject reference = new JsonObject();
+        reference.addProperty("resultOf", "0");
+        reference.addProperty("name", "Email/query");
+        reference.addProperty("path", "/ids");
+        final JsonObject get = new JsonObject();
+        get.addProperty("accountId", accountId);
+        get.add("#ids", reference);
+        get.add("properties", GSON.toJsonTree(PROPERTIES));
+
+        final List<JsonObject> responses = call(methodCall("Email/query", query, "0"), methodCall("Email/get", get, "1"));
+        final JsonArray ids = responses.get(0).getAsJsonArray("ids");
+        final List<Message> messages = new ArrayList<>();
+        for (JsonElement element : responses.get(1).getAsJsonArray("list")) {
+            messages.add(message(element.getAsJsonObject()));
+        }
+        //emails deleted between query and get are simply missing
+        return new Page(messages, ids.size());
+    }
+
+    private static Message message(JsonObject email) throws IOException {
+        try {
+            final JsonElement receivedAt = email.get("receivedAt");
+            final JsonElement size = email.get("size");
+            final JsonElement keywords = email.get("keywords");
+            final Set<String> set = new HashSet<>();
+            if (keywords != null && keywords.isJsonObject()) {
+                for (Map.Entry<String, JsonElement> keyword : keywords.getAsJsonObject().entrySet()) {
+                    if (keyword.getValue().getAsBoolean()) {
+                        set.add(keyword.getKey().toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+            return new Message(
+                    email.get("id").getAsString(),
+                    email.get("blobId").getAsString(),
+                    receivedAt == null || receivedAt.isJsonNull() ? Instant.EPOCH : Instant.parse(receivedAt.getAsString()),
+                    size == null || size.isJsonNull() ? 0 : size.getAsLong(),
+                    set
+            );
+        } catch (DateTimeParseException | IllegalStateException | NullPointerException | ClassCastException | UnsupportedOperationException e) {
+            throw new IOException("invalid email " + email, e);
+        }
+    }
+
+    private static JsonArray methodCall(String name, JsonObject arguments, String id) {
+        final JsonArray methodCall = new JsonArray();
+        methodCall.add(name);
+        methodCall.add(arguments);
+        methodCall.add(id);
+        return methodCall;
+    }
+
+    /**
+     * @return the arguments of the responses in the order of the method calls
+     */
+    private List<JsonObject> call(JsonArray... methodCalls) throws IOException {
+        final JsonObject request = new JsonObject();
+        request.add("using", GSON.toJsonTree(USING));
+        final JsonArray calls = new JsonArray();
+        for (JsonArray methodCall : methodCalls) {
+            calls.add(methodCall);
+        }
+        request.add("methodCalls", calls);
+        final Request httpRequest = new Request.Builder()
+                .url(apiUrl)
+                .post(RequestBody.create(JSON, GSON.toJson(request)))
+                .build();
+        try (final Response response = okHttpClient.newCall(httpRequest).execute()) {
+            final ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("api request failed. status " + response.code());
+            }
+            final List<JsonObject> results = new ArrayList<>();
+            for (JsonElement element : new JsonParser().parse(body.charStream()).getAsJsonObject().getAsJsonArray("methodResponses")) {
+                final JsonArray methodResponse = element.getAsJsonArray();
+                final JsonObject arguments = methodResponse.get(1).getAsJsonObject();
+                if ("error".equals(methodResponse.get(0).getAsString())) {
+                    throw new IOException("method error " + arguments.get("type"));
+                }
+                results.add(arguments);
+            }
+            if (results.size() != methodCalls.length) {
+                throw new IOException("expected " + methodCalls.length + " method responses but got " + results.size());
+            }
+            return results;
+        } catch (JsonParseException | IllegalStateException | NullPointerException | ClassCastException e) {
+            throw new IOException("invalid api response", e);
+        }
+    }
+
+    private void report(String request) {
+        final double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        final long exported = this.exported.get();
+        final long bytes = this.bytes.get();
+        final JsonObject line = new JsonObject();
+        line.addProperty("request", request);
+        line.addProperty("millis", seconds * 1000);
+        line.addProperty("emails", exported);
+        line.addProperty("bytes", bytes);
+        line.addProperty("skipped", skipped.get());
+        line.addProperty("failed", failed.get());
+        line.addProperty("emailsPerSecond", exported / seconds);
+        line.addProperty("megabytesPerSecond", bytes / seconds / (1024 * 1024));
+        System.out.println(GSON.toJson(line));
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.debug("unable to delete {}", file, e);
+        }
+    }
+
+    private static class Page {
+        private final List<Message> messages;
+        //number of ids the query returned which can be more than there are messages
+        private final int size;
+
+        private Page(List<Message> messages, int size) {
+            this.messages = messages;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.export;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+
+/**
+ * Files every message into cur/ with its keywords as Maildir flags. Messages are downloaded to tmp/ and renamed once
+ * complete. The file name is derived from the email id, so a message that is exported a second time replaces the
+ * first copy.
+ */
+final class Maildir implements ExportTarget {
+
+    private static final String PREFIX = "lttrs-";
+
+    private final Path tmp;
+    private final Path cur;
+
+    Maildir(Path directory) throws IOException {
+        this.tmp = Files.createDirectories(directory.resolve("tmp"));
+        Files.createDirectories(directory.resolve("new"));
+        this.cur = Files.createDirectories(directory.resolve("cur"));
+        //left behind by an interrupted export
+        try (final DirectoryStream<Path> leftovers = Files.newDirectoryStream(tmp, PREFIX + "*")) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+    }
+
+    @Override
+    public Path newTemporaryFile() throws IOException {
+        return Files.createTempFile(tmp, PREFIX, ".part");
+    }
+
+    @Override
+    public long commit(Message message, Path file) throws IOException {
+        Files.move(file, cur.resolve(name(message)), StandardCopyOption.ATOMIC_MOVE);
+        return 0;
+    }
+
+    private static String name(Message message) {
+        final StringBuilder name = new StringBuilder();
+        name.append(message.receivedAt.getEpochSecond()).append('.');
+        for (char c : message.id.toCharArray()) {
+            name.append(Character.isLetterOrDigit(c) || c == '-' || c == '_' ? c : '_');
+        }
+        name.append(".lttrs:2,");
+        //flags have to be in ASCII order
+        final Set<String> keywords = message.keywords;
+        if (keywords.contains("$draft")) {
+            name.append('D');
+        }
+        if (keywords.contains("$flagged")) {
+            name.append('F');
+        }
+        if (keywords.contains("$answered")) {
+            name.append('R');
+        }
+        if (keywords.contains("$seen")) {
+            name.append('S');
+        }
+        return name.toString();
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Appends messages to a single file in mboxrd format: every message starts with a From line, lines that start with
+ * any number of {@code >} followed by {@code From } get one more {@code >}, and line endings are converted to LF.
+ * Messages are downloaded to a spool directory next to the mbox and then streamed through the quoting one buffer
+ * at a time.
+ */
+final class Mbox implements ExportTarget {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] FROM = "From ".getBytes(StandardCharsets.US_ASCII);
+    private static final DateTimeFormatter ASCTIME = DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+
+    private final FileChannel channel;
+    private final Path spool;
+    private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] output = new byte[BUFFER_SIZE];
+    private int count = 0;
+
+    //state of the quoting at the start of a line
+    private boolean lineStart = true;
+    private int quotes = 0;
+    private int matched = 0;
+    private int last = '\n';
+
+    /**
+     * @param length where the last complete message ends. anything after that is cut off
+     */
+    Mbox(Path file, long length) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.channel.truncate(length);
+        this.channel.position(length);
+        this.spool = Files.createDirectories(file.resolveSibling(file.getFileName() + ".spool"));
+        //left behind by an interrupted export
+        try (final DirectoryStream<Path> leftovers = Files.newDirectoryStream(spool)) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+    }
+
+    @Override
+    public Path newTemporaryFile() throws IOException {
+        return Files.createTempFile(spool, "lttrs-", ".eml");
+    }
+
+    @Override
+    public synchronized long commit(Message message, Path file) throws IOException {
+        final long start = channel.position();
+        try {
+            append(message, file);
+        } catch (IOException e) {
+            //don’t leave half a message in front of the next one
+            channel.truncate(start);
+            channel.position(start);
+            throw e;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        return channel.position();
+    }
+
+    private void append(Message message, Path file) throws IOException {
+        count = 0;
+        lineStart = false;
+        write(("From MAILER-DAEMON " + ASCTIME.format(message.receivedAt) + '\n').getBytes(StandardCharsets.US_ASCII));
+        lineStart = true;
+        quotes = 0;
+        matched = 0;
+        boolean carriageReturn = false;
+        try (final FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            input.clear();
+            while (source.read(input) >= 0) {
+                input.flip();
+                final byte[] array = input.array();
+                for (int i = input.position(); i < input.limit(); ++i) {
+                    final int b = array[i] & 0xff;
+                    if (b == '\r') {
+                        if (carriageReturn) {
+                            quote(b);
+                        }
+                        carriageReturn = true;
+                        continue;
+                    }
+                    if (carriageReturn && b != '\n') {
+                        quote('\r');
+                    }
+                    carriageReturn = false;
+                    quote(b);
+                }
+                input.clear();
+            }
+        }
+        if (carriageReturn) {
+            quote('\r');
+        }
+        endOfPrefix();
+        if (last != '\n') {
+            put('\n');
+        }
+        //blank line between messages
+        put('\n');
+        flush();
+    }
+
+    private void quote(int b) throws IOException {
+        if (lineStart) {
+            if (matched == 0 && b == '>') {
+                ++quotes;
+                return;
+            }
+            if (b == FROM[matched]) {
+                if (++matched == FROM.length) {
+                    put('>');
+                    endOfPrefix();
+                }
+                return;
+            }
+            endOfPrefix();
+        }
+        put(b);
+        if (b == '\n') {
+            lineStart = true;
+            quotes = 0;
+            matched = 0;
+        }
+    }
+
+    /**
+     * Writes the quotes and the part of {@code From } that have been held back at the start of the line.
+     */
+    private void endOfPrefix() throws IOException {
+        for (int i = 0; i < quotes; ++i) {
+            put('>');
+        }
+        for (int i = 0; i < matched; ++i) {
+            put(FROM[i]);
+        }
+        lineStart = false;
+        quotes = 0;
+        matched = 0;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            put(b & 0xff);
+        }
+    }
+
+    private void put(int b) throws IOException {
+        if (count == output.length) {
+            flush();
+        }
+        output[count++] = (byte) b;
+        last = b;
+    }
+
+    private void flush() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(output, 0, count);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        count = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        try {
+            Files.deleteIfExists(spool);
+        } catch (IOException e) {
+            //not empty. nothing to worry about
+        }
+    }
+}
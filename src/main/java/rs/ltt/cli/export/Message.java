@@ -0,0 +1,39 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.export;
+
+import java.time.Instant;
+import java.util.Set;
+
+/**
+ * The properties of an email that are needed to download and file it.
+ */
+final class Message {
+
+    final String id;
+    final String blobId;
+    final Instant receivedAt;
+    final long size;
+    final Set<String> keywords;
+
+    Message(String id, String blobId, Instant receivedAt, long size, Set<String> keywords) {
+        this.id = id;
+        this.blobId = blobId;
+        this.receivedAt = receivedAt;
+        this.size = size;
+        this.keywords = keywords;
+    }
+}
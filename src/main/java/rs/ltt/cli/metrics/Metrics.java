@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.metrics;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of named timers and counters. Metrics are collected with {@code -Dlttrs.metrics=true} only; otherwise
+ * recording is a branch on a constant. Every metric is registered as an MXBean under {@code rs.ltt.cli:type=Timer} or
+ * {@code rs.ltt.cli:type=Counter}. A snapshot of all metrics is written every {@code -Dlttrs.metrics.interval} seconds
+ * (default 60) as one JSON line to {@code -Dlttrs.metrics.file}, or to the log if no file is configured.
+ */
+public final class Metrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("lttrs.metrics");
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+
+    private static final Gson GSON = new Gson();
+
+    private static final ConcurrentMap<String, Timer> TIMERS = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService reporter;
+
+    private Metrics() {
+
+    }
+
+    public static Timer timer(String name) {
+        return TIMERS.computeIfAbsent(name, key -> register("Timer", key, new Timer()));
+    }
+
+    public static Counter counter(String name) {
+        return COUNTERS.computeIfAbsent(name, key -> register("Counter", key, new Counter()));
+    }
+
+    private static <T> T register(String type, String name, T metric) {
+        if (!ENABLED) {
+            return metric;
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final Hashtable<String, String> properties = new Hashtable<>();
+        properties.put("type", type);
+        properties.put("name", ObjectName.quote(name));
+        try {
+            server.registerMBean(metric, new ObjectName("rs.ltt.cli", properties));
+        } catch (JMException e) {
+            LOGGER.warn("unable to register {} {} with JMX", type, name, e);
+        }
+        return metric;
+    }
+
+    public static synchronized void startReporting() {
+        if (!ENABLED || reporter != null) {
+            return;
+        }
+        final long interval = Long.getLong("lttrs.metrics.interval", 60);
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(Metrics::report, interval, interval, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+            report();
+        }
+    }
+
+    public static JsonObject snapshot() {
+        final JsonObject snapshot = new JsonObject();
+        snapshot.addProperty("timestamp", System.currentTimeMillis());
+        for (Map.Entry<String, Timer> entry : new TreeMap<>(TIMERS).entrySet()) {
+            final Timer timer = entry.getValue();
+            final JsonObject json = new JsonObject();
+            json.addProperty("count", timer.getCount());
+            json.addProperty("mean", timer.getMeanMillis());
+            json.addProperty("p50", timer.get50thPercentileMillis());
+            json.addProperty("p90", timer.get90thPercentileMillis());
+            json.addProperty("p99", timer.get99thPercentileMillis());
+            json.addProperty("max", timer.getMaxMillis());
+            snapshot.add(entry.getKey(), json);
+        }
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(COUNTERS).entrySet()) {
+            snapshot.addProperty(entry.getKey(), entry.getValue().getCount());
+        }
+        return snapshot;
+    }
+
+    private static void report() {
+        final String line = GSON.toJson(snapshot());
+        final String file = System.getProperty("lttrs.metrics.file");
+        if (file == null) {
+            LOGGER.info(line);
+            return;
+        }
+        try (final BufferedWriter writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(line);
+            writer.newLine();
+        } catch (IOException e) {
+            LOGGER.warn("unable to write metrics to {}", file, e);
+        }
+    }
+}
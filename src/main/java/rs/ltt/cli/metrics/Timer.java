@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.metrics;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with one bucket per power of two microseconds. Recording is lock free and allocation free. While
+ * metrics are disabled {@link #start()} returns 0 and {@link #stop(long)} returns right away without reading the clock.
+ */
+public final class Timer implements TimerMXBean {
+
+    //bucket 31 starts at roughly 36 minutes
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    private volatile long last = 0;
+
+    Timer() {
+
+    }
+
+    public long start() {
+        return Metrics.ENABLED ? System.nanoTime() : 0;
+    }
+
+    public void stop(long start) {
+        if (start != 0) {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records the time until the future completes, successfully or not.
+     */
+    public <T> ListenableFuture<T> time(ListenableFuture<T> future) {
+        final long start = start();
+        if (start != 0) {
+            future.addListener(() -> stop(start), MoreExecutors.directExecutor());
+        }
+        return future;
+    }
+
+    public void record(long nanos) {
+        if (!Metrics.ENABLED) {
+            return;
+        }
+        final long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+        final int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        total.add(nanos);
+        last = nanos;
+        long current;
+        while ((current = max.get()) < nanos && !max.compareAndSet(current, nanos)) {
+            //retry
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        final long count = this.count.sum();
+        return count == 0 ? 0 : millis(total.sum()) / count;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return millis(max.get());
+    }
+
+    @Override
+    public double getLastMillis() {
+        return millis(last);
+    }
+
+    @Override
+    public double get50thPercentileMillis() {
+        return getPercentileMillis(0.5);
+    }
+
+    @Override
+    public double get90thPercentileMillis() {
+        return getPercentileMillis(0.9);
+    }
+
+    @Override
+    public double get99thPercentileMillis() {
+        return getPercentileMillis(0.99);
+    }
+
+    /**
+     * @return the upper bound of the bucket the percentile falls into, capped at the maximum recorded value
+     */
+    public double getPercentileMillis(double percentile) {
+        long total = 0;
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(getMaxMillis(), (1L << (i + 1)) / 1000.0);
+            }
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.set(0);
+        last = 0;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.model;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+public class QueryViewDiff {
+
+    private final List<QueryViewItem> items;
+
+    private final List<QueryViewChange> changes;
+
+    private QueryViewDiff(List<QueryViewItem> items, List<QueryViewChange> changes) {
+        this.items = items;
+        this.changes = changes;
+    }
+
+    public static QueryViewDiff reset(List<QueryViewItem> items) {
+        return new QueryViewDiff(items, ImmutableList.of());
+    }
+
+    public static QueryViewDiff of(List<QueryViewChange> changes) {
+        return new QueryViewDiff(null, changes);
+    }
+
+    public boolean isReset() {
+        return items != null;
+    }
+
+    public boolean isEmpty() {
+        return items == null && changes.isEmpty();
+    }
+
+    public List<QueryViewItem> getItems() {
+        return items;
+    }
+
+    public List<QueryViewChange> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Applies the changes in order. Positions of each change refer to the list after all previous changes have been
+     * applied.
+     */
+    public void applyTo(List<QueryViewItem> target) {
+        if (items != null) {
+            target.clear();
+            target.addAll(items);
+            return;
+        }
+        for (QueryViewChange change : changes) {
+            switch (change.type) {
+                case INSERT:
+                    target.add(change.position, change.item);
+                    break;
+                case REMOVE:
+                    target.remove(change.position);
+                    break;
+                case CHANGE:
+                    target.set(change.position, change.item);
+                    break;
+            }
+        }
+    }
+}
@@ -21,6 +21,10 @@ import rs.ltt.jmap.common.entity.EmailAddress;
 
 import java.util.Set;
 
+/**
+ * A row of the thread list. Senders and the most recent email are shared with the cache and with every other row that
+ * refers to them, so they must not be modified.
+ */
 public class QueryViewItem {
 
     public final String threadId;
@@ -31,10 +35,19 @@ public class QueryViewItem {
 
     public final Email mostRecent;
 
-    public QueryViewItem(String threadId, int count, Set<EmailAddress> from, Email mostRecent) {
+    public final String preview;
+
+    public final boolean unread;
+
+    public final boolean flagged;
+
+    public QueryViewItem(String threadId, int count, Set<EmailAddress> from, Email mostRecent, String preview, boolean unread, boolean flagged) {
         this.threadId = threadId;
         this.count = count;
         this.from = from;
         this.mostRecent = mostRecent;
+        this.preview = preview;
+        this.unread = unread;
+        this.flagged = flagged;
     }
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.sync;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.cli.cache.MyInMemoryCache;
+import rs.ltt.cli.metrics.Metrics;
+import rs.ltt.cli.metrics.Timer;
+import rs.ltt.cli.model.QueryViewItem;
+import rs.ltt.jmap.client.MethodResponses;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.method.call.email.GetEmailMethodCall;
+import rs.ltt.jmap.common.method.response.email.GetEmailMethodResponse;
+import rs.ltt.jmap.mua.Mua;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Loads the body values of emails whose bodies have been evicted from the cache, for example for visible rows that
+ * have no preview or for a thread that is opened. Only id and body values are requested. Ids that are already being
+ * loaded are not requested again, and neither are ids the server did not return, since the redraw after every load
+ * would otherwise ask for them over and over.
+ */
+public class BodyLoader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BodyLoader.class);
+
+    private static final String[] PROPERTIES = {"id", "bodyValues"};
+
+    private static final int MAX_UNAVAILABLE = 4096;
+
+    private static final Timer GET_BODY_VALUES = Metrics.timer("jmap.getBodyValues");
+
+    private final Mua mua;
+    private final String accountId;
+    private final MyInMemoryCache cache;
+    private final Runnable onLoaded;
+    private final Set<String> inFlight = new HashSet<>();
+    private final Cache<String, Boolean> unavailable = CacheBuilder.newBuilder().maximumSize(MAX_UNAVAILABLE).build();
+
+    public BodyLoader(Mua mua, String accountId, MyInMemoryCache cache, Runnable onLoaded) {
+        this.mua = mua;
+        this.accountId = accountId;
+        this.cache = cache;
+        this.onLoaded = onLoaded;
+    }
+
+    /**
+     * Loads the bodies of the rows that neither have a preview nor cached body values.
+     */
+    public void loadMissing(List<QueryViewItem> rows) {
+        final List<String> emailIds = new ArrayList<>();
+        for (QueryViewItem row : rows) {
+            if (row.preview == null || row.preview.isEmpty()) {
+                emailIds.add(row.mostRecent.getId());
+            }
+        }
+        load(emailIds);
+    }
+
+    public void load(Collection<String> emailIds) {
+        final List<String> missing = new ArrayList<>();
+        synchronized (this) {
+            for (String emailId : emailIds) {
+                if (cache.getBodyValues(emailId) == null && unavailable.getIfPresent(emailId) == null && inFlight.add(emailId)) {
+                    missing.add(emailId);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        final String[] ids = missing.toArray(new String[0]);
+        final ListenableFuture<MethodResponses> future = GET_BODY_VALUES.time(mua.getJmapClient().call(new GetEmailMethodCall(accountId, ids, PROPERTIES, true)));
+        Futures.addCallback(future, new FutureCallback<MethodResponses>() {
+            @Override
+            public void onSuccess(MethodResponses methodResponses) {
+                final Email[] emails = methodResponses.getMain(GetEmailMethodResponse.class).getList();
+                cache.addBodyValues(emails);
+                //not found or destroyed in the meantime
+                final Set<String> returned = new HashSet<>();
+                for (Email email : emails) {
+                    returned.add(email.getId());
+                }
+                for (String emailId : missing) {
+                    if (!returned.contains(emailId)) {
+                        unavailable.put(emailId, Boolean.TRUE);
+                    }
+                }
+                done(missing);
+                onLoaded.run();
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                done(missing);
+                LOGGER.warn("unable to load body values of {} emails", ids.length, throwable);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private synchronized void done(Collection<String> emailIds) {
+        inFlight.removeAll(emailIds);
+    }
+}
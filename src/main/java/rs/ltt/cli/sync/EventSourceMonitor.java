@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.sync;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import okhttp3.*;
+import okio.BufferedSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.jmap.client.JmapClient;
+import rs.ltt.jmap.client.api.HttpJmapApiClient;
+import rs.ltt.jmap.common.Session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscribes to the JMAP EventSource (RFC 8620 section 7.3) and triggers the {@link RefreshScheduler} whenever a
+ * StateChange for Email, Thread or Mailbox arrives. While the event source is unavailable the scheduler falls back
+ * to polling. The URL of the event source comes from the session the {@link JmapClient} has cached, so connecting
+ * doesn’t cost an extra request for the session resource.
+ */
+public class EventSourceMonitor implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventSourceMonitor.class);
+
+    private static final String TYPES = "Email,Thread,Mailbox";
+    private static final int PING = 30;
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(5);
+
+    private final OkHttpClient okHttpClient;
+    private final JmapClient jmapClient;
+    private final HttpUrl sessionResource;
+    private final String accountId;
+    private final RefreshScheduler refreshScheduler;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    private volatile Call call;
+
+    /**
+     * @param jmapClient the client of the {@link rs.ltt.jmap.mua.Mua} of the account. its session is reused
+     */
+    public EventSourceMonitor(JmapClient jmapClient, String username, String password, HttpUrl sessionResource, String accountId, RefreshScheduler refreshScheduler) {
+        final String credentials = Credentials.basic(username, password);
+        this.okHttpClient = HttpJmapApiClient.OK_HTTP_CLIENT.newBuilder()
+                .readTimeout(PING * 3, TimeUnit.SECONDS)
+                .authenticator((route, response) -> {
+                    if (credentials.equals(response.request().header("Authorization"))) {
+                        return null;
+                    }
+                    return response.request().newBuilder().header("Authorization", credentials).build();
+                })
+                .build();
+        this.jmapClient = jmapClient;
+        this.sessionResource = sessionResource != null ? sessionResource : wellKnown(username);
+        this.accountId = accountId;
+        this.refreshScheduler = refreshScheduler;
+        this.thread = new Thread(this::run, "event-source");
+        this.thread.setDaemon(true);
+    }
+
+    public static HttpUrl wellKnown(String username) {
+        final String domain = username.substring(username.lastIndexOf('@') + 1);
+        return new HttpUrl.Builder().scheme("https").host(domain).addPathSegments(".well-known/jmap").build();
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    private void run() {
+        long backoff = 0;
+        while (running) {
+            try {
+                final HttpUrl eventSource = discoverEventSource();
+                if (eventSource == null) {
+                    LOGGER.info("server does not advertise an event source. using polling");
+                    refreshScheduler.setPushActive(false);
+                    return;
+                }
+                listen(eventSource);
+                backoff = 0;
+            } catch (IOException | JsonParseException | IllegalStateException e) {
+                if (!running) {
+                    return;
+                }
+                LOGGER.warn("event source unavailable. falling back to polling", e);
+            }
+            refreshScheduler.setPushActive(false);
+            backoff = Math.min(MAX_BACKOFF, Math.max(TimeUnit.SECONDS.toMillis(5), backoff * 2));
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private HttpUrl discoverEventSource() throws IOException {
+        final Session session;
+        try {
+            session = jmapClient.getSession().get();
+        } catch (ExecutionException e) {
+            throw new IOException("unable to fetch session resource", e.getCause());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while fetching session resource");
+        }
+        final String template = session.getEventSourceUrl();
+        if (template == null) {
+            return null;
+        }
+        final String url = template
+                .replace("{types}", TYPES)
+                .replace("{closeafter}", "no")
+                .replace("{ping}", String.valueOf(PING));
+        final HttpUrl eventSource = sessionResource.resolve(url);
+        if (eventSource == null) {
+            throw new IOException("invalid event source url " + url);
+        }
+        return eventSource;
+    }
+
+    private void listen(HttpUrl eventSource) throws IOException {
+        final Request request = new Request.Builder()
+                .url(eventSource)
+                .header("Accept", "text/event-stream")
+                .get()
+                .build();
+        try (final Response response = execute(request)) {
+            final ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("unable to connect to event source. status " + response.code());
+            }
+            LOGGER.info("connected to event source {}", eventSource);
+            refreshScheduler.setPushActive(true);
+            //catch up on anything we might have missed while not connected
+            refreshScheduler.trigger();
+            final BufferedSource source = body.source();
+            String event = null;
+            final StringBuilder data = new StringBuilder();
+            String line;
+            while (running && (line = source.readUtf8Line()) != null) {
+                if (line.isEmpty()) {
+                    if ("state".equals(event) && data.length() > 0) {
+                        onStateChange(data.toString());
+                    }
+                    event = null;
+                    data.setLength(0);
+                } else if (line.startsWith("event:")) {
+                    event = line.substring(6).trim();
+                } else if (line.startsWith("data:")) {
+                    if (data.length() > 0) {
+                        data.append('\n');
+                    }
+                    data.append(line.substring(5).trim());
+                }
+            }
+        }
+    }
+
+    private void onStateChange(String data) {
+        try {
+            final JsonObject stateChange = new JsonParser().parse(data).getAsJsonObject();
+            final JsonObject changed = stateChange.getAsJsonObject("changed");
+            final JsonObject account = changed == null ? null : changed.getAsJsonObject(accountId);
+            if (account == null) {
+                return;
+            }
+            if (account.has("Email") || account.has("Thread") || account.has("Mailbox")) {
+                LOGGER.debug("received state change {}", account);
+                refreshScheduler.trigger();
+            }
+        } catch (JsonParseException | IllegalStateException | ClassCastException e) {
+            LOGGER.warn("unable to parse state change {}", data, e);
+        }
+    }
+
+    private Response execute(Request request) throws IOException {
+        final Call call = okHttpClient.newCall(request);
+        this.call = call;
+        return call.execute();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        final Call call = this.call;
+        if (call != null) {
+            call.cancel();
+        }
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.sync;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.cli.model.QueryViewItem;
+import rs.ltt.jmap.common.entity.query.EmailQuery;
+import rs.ltt.jmap.mua.Status;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Requests the next page of a query in the background once the cursor comes close to the end of the list. The
+ * distance at which that happens grows with the measured round trip time and with the speed the user is scrolling at
+ * so the page usually arrives before the cursor reaches the last row. There is at most one page request per query in
+ * flight.
+ */
+public class PagePrefetcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PagePrefetcher.class);
+
+    private static final int MIN_PAGE_SIZE = 20;
+    private static final int MAX_PAGE_SIZE = 200;
+    private static final long IDLE_THRESHOLD = 1000;
+    private static final double SMOOTHING = 0.3;
+
+    private final QueryCoordinator queryCoordinator;
+    private final int minimumDistance;
+    private final Runnable onUpdated;
+    private final Set<String> inFlight = new HashSet<>();
+    private final Map<String, String> exhausted = new HashMap<>();
+
+    private double latency = 0;
+    private double rowsPerMilli = 0;
+    private long lastCursorMove = 0;
+
+    public PagePrefetcher(QueryCoordinator queryCoordinator, int minimumDistance, Runnable onUpdated) {
+        this.queryCoordinator = queryCoordinator;
+        this.minimumDistance = minimumDistance;
+        this.onUpdated = onUpdated;
+    }
+
+    /**
+     * A page should cover a couple of screens so that a single round trip keeps the user busy for a while.
+     */
+    public static int pageSize(int rows) {
+        return Math.max(MIN_PAGE_SIZE, Math.min(MAX_PAGE_SIZE, rows * 2));
+    }
+
+    public synchronized void onCursorMoved() {
+        final long now = System.currentTimeMillis();
+        final long interval = now - lastCursorMove;
+        if (lastCursorMove == 0 || interval > IDLE_THRESHOLD) {
+            rowsPerMilli = 0;
+        } else {
+            rowsPerMilli = smooth(rowsPerMilli, 1.0 / Math.max(1, interval));
+        }
+        lastCursorMove = now;
+    }
+
+    public synchronized int getDistance() {
+        return Math.max(minimumDistance, (int) Math.ceil(2 * latency * rowsPerMilli));
+    }
+
+    /**
+     * @param afterEmailId the last email of the cached query result. The last item can't be used since hidden threads
+     *                     have no item
+     */
+    public void maybeFetch(EmailQuery query, String afterEmailId, List<QueryViewItem> items, int cursorPosition) {
+        if (query == null || afterEmailId == null || items == null) {
+            return;
+        }
+        if (items.size() - 1 - cursorPosition > getDistance()) {
+            return;
+        }
+        final String queryString = query.toQueryString();
+        synchronized (this) {
+            if (afterEmailId.equals(exhausted.get(queryString)) || !inFlight.add(queryString)) {
+                return;
+            }
+        }
+        LOGGER.debug("prefetching page after {} (cursor={}, items={})", afterEmailId, cursorPosition, items.size());
+        final long start = System.currentTimeMillis();
+        final ListenableFuture<Status> future = queryCoordinator.query(query, afterEmailId);
+        Futures.addCallback(future, new FutureCallback<Status>() {
+            @Override
+            public void onSuccess(Status status) {
+                synchronized (PagePrefetcher.this) {
+                    latency = latency == 0 ? System.currentTimeMillis() - start : smooth(latency, System.currentTimeMillis() - start);
+                    inFlight.remove(queryString);
+                    if (status != Status.UPDATED) {
+                        exhausted.put(queryString, afterEmailId);
+                    }
+                }
+                if (status == Status.UPDATED) {
+                    onUpdated.run();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                synchronized (PagePrefetcher.this) {
+                    inFlight.remove(queryString);
+                }
+                LOGGER.warn("unable to fetch page after {}", afterEmailId, throwable);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private static double smooth(double average, double sample) {
+        return SMOOTHING * sample + (1 - SMOOTHING) * average;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.sync;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import rs.ltt.cli.metrics.Counter;
+import rs.ltt.cli.metrics.Metrics;
+import rs.ltt.cli.metrics.Timer;
+import rs.ltt.jmap.common.entity.query.EmailQuery;
+import rs.ltt.jmap.mua.Mua;
+import rs.ltt.jmap.mua.Status;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sends at most one request per query and page at a time. The refresh cycle, the page prefetcher and select all may
+ * ask for the same query concurrently; whoever comes second gets the pending request instead of sending another one,
+ * so the result is written to the cache once and every caller sees the same status.
+ * <p>
+ * Only requests that are actually sent are recorded by the jmap.query and jmap.queryPage timers. Callers that joined a
+ * pending request are counted as query.coalesced.
+ */
+public class QueryCoordinator {
+
+    private static final Timer QUERY = Metrics.timer("jmap.query");
+    private static final Timer QUERY_PAGE = Metrics.timer("jmap.queryPage");
+    private static final Counter COALESCED = Metrics.counter("query.coalesced");
+
+    private final Mua mua;
+    private final Map<String, ListenableFuture<Status>> inFlight = new HashMap<>();
+
+    public QueryCoordinator(Mua mua) {
+        this.mua = mua;
+    }
+
+    public ListenableFuture<Status> query(EmailQuery query) {
+        return query(query, null);
+    }
+
+    /**
+     * @param afterEmailId the last email of the cached result to load the next page or null to refresh the query
+     */
+    public ListenableFuture<Status> query(EmailQuery query, String afterEmailId) {
+        final String key = query.toQueryString() + '\n' + (afterEmailId == null ? "" : afterEmailId);
+        final SettableFuture<Status> pending;
+        synchronized (inFlight) {
+            final ListenableFuture<Status> existing = inFlight.get(key);
+            if (existing != null) {
+                COALESCED.increment();
+                return Futures.nonCancellationPropagating(existing);
+            }
+            //registered before the request is sent so nobody else can send the same one in the meantime
+            pending = SettableFuture.create();
+            inFlight.put(key, pending);
+        }
+        final ListenableFuture<Status> future;
+        try {
+            future = afterEmailId == null ? QUERY.time(mua.query(query)) : QUERY_PAGE.time(mua.query(query, afterEmailId));
+        } catch (RuntimeException e) {
+            done(key, pending);
+            pending.setException(e);
+            return pending;
+        }
+        //runs before the listeners of the callers so that a caller reacting to the result can send a new request
+        future.addListener(() -> done(key, pending), MoreExecutors.directExecutor());
+        pending.setFuture(future);
+        return Futures.nonCancellationPropagating(pending);
+    }
+
+    private void done(String key, ListenableFuture<Status> pending) {
+        synchronized (inFlight) {
+            inFlight.remove(key, pending);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.sync;
+
+import rs.ltt.jmap.mua.Status;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the refresh cycle of an account runs next. Without push the interval doubles while nothing changes and
+ * snaps back to the minimum as soon as something does. While push is active the cycle only runs on {@link #trigger()}
+ * or after a long safety interval in case an event got lost.
+ */
+public class RefreshScheduler {
+
+    private static final long MIN_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_INTERVAL = TimeUnit.SECONDS.toMillis(60);
+    private static final long PUSH_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+
+    private long interval = MIN_INTERVAL;
+    private boolean pushActive = false;
+    private Runnable listener;
+
+    public synchronized void onResult(Status status) {
+        if (status == Status.UNCHANGED) {
+            interval = Math.min(MAX_INTERVAL, interval * 2);
+        } else {
+            interval = MIN_INTERVAL;
+        }
+    }
+
+    public void setPushActive(boolean pushActive) {
+        synchronized (this) {
+            this.pushActive = pushActive;
+            if (!pushActive) {
+                interval = MIN_INTERVAL;
+            }
+        }
+        trigger();
+    }
+
+    /**
+     * Asks for the next cycle to run right away.
+     */
+    public void trigger() {
+        final Runnable listener;
+        synchronized (this) {
+            listener = this.listener;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    public synchronized void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    public synchronized long getDelay() {
+        return pushActive ? PUSH_INTERVAL : interval;
+    }
+}
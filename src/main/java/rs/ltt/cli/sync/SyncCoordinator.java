@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.sync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.jmap.mua.Status;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs the refresh cycles of all accounts on a small shared pool instead of one sleeping thread per account. After a
+ * cycle the account is rescheduled with the delay its {@link RefreshScheduler} asks for; a trigger runs it right away.
+ * There is at most one cycle per account in flight. A trigger that arrives during a cycle runs another one right after.
+ */
+public class SyncCoordinator implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SyncCoordinator.class);
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    public SyncCoordinator(int threads) {
+        this.executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @param cycle    performs the refresh. runs on one of the pool threads and may block
+     * @param onResult called on the pool thread after a successful cycle
+     */
+    public void register(String name, RefreshScheduler scheduler, Callable<Status> cycle, Consumer<Status> onResult) {
+        final Job job = new Job(name, scheduler, cycle, onResult);
+        scheduler.setListener(() -> job.schedule(0));
+        job.schedule(0);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private class Job implements Runnable {
+
+        private final String name;
+        private final RefreshScheduler scheduler;
+        private final Callable<Status> cycle;
+        private final Consumer<Status> onResult;
+
+        private ScheduledFuture<?> next;
+        private boolean running = false;
+        private boolean rerun = false;
+
+        private Job(String name, RefreshScheduler scheduler, Callable<Status> cycle, Consumer<Status> onResult) {
+            this.name = name;
+            this.scheduler = scheduler;
+            this.cycle = cycle;
+            this.onResult = onResult;
+        }
+
+        private synchronized void schedule(long delay) {
+            if (executor.isShutdown()) {
+                return;
+            }
+            if (running) {
+                rerun |= delay == 0;
+                return;
+            }
+            if (next != null) {
+                if (next.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+                    return;
+                }
+                next.cancel(false);
+            }
+            next = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                next = null;
+                running = true;
+                rerun = false;
+            }
+            try {
+                final Status status = cycle.call();
+                scheduler.onResult(status);
+                onResult.accept(status);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                LOGGER.warn("refresh of {} failed", name, e);
+            } finally {
+                final boolean again;
+                synchronized (this) {
+                    running = false;
+                    again = rerun;
+                }
+                schedule(again ? 0 : scheduler.getDelay());
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.ui;
+
+import com.googlecode.lanterna.TerminalTextUtils;
+
+/**
+ * Wraps text one line at a time directly from the body value without creating intermediate strings. Plain text lines
+ * end at line breaks; HTML is reduced to its text with white space collapsed and block level elements starting a new
+ * line. The width is measured in terminal columns; CJK and other double width characters take up two.
+ * <p>
+ * No line spans a multiple of {@link #SEGMENT} characters. That way the start of the previous line can always be found
+ * by wrapping forward from a point at most one segment back, regardless of how long a paragraph is. The only exception
+ * is markup that crosses the end of a segment: it is skipped as a whole and the next line starts after it.
+ */
+final class LineWrapper {
+
+    static final int SEGMENT = 4096;
+
+    //longest entity that gets decoded, including ampersand and semicolon
+    private static final int MAX_ENTITY = 8;
+
+    private static final String[] BLOCK_ELEMENTS = {"br", "p", "div", "li", "tr", "h1", "h2", "h3", "h4", "h5", "h6", "blockquote", "table"};
+
+    //elements whose content is not text
+    private static final String[] RAW_TEXT_ELEMENTS = {"style", "script"};
+
+    private char[] buffer = new char[0];
+    private int length = 0;
+
+    char[] getBuffer() {
+        return buffer;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Puts the line starting at start into the buffer.
+     *
+     * @return the start of the next line. always greater than start unless start is the end of the text
+     */
+    int wrap(CharSequence text, int start, int width, boolean html) {
+        width = Math.max(1, width);
+        if (buffer.length < width) {
+            buffer = new char[width];
+        }
+        length = 0;
+        int columns = 0;
+        final int end = Math.min(text.length(), (start / SEGMENT + 1) * SEGMENT);
+        //where the line ends and the next one starts when wrapped at the last space
+        int breakLength = -1;
+        int breakNext = -1;
+        boolean pendingSpace = false;
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i);
+            int next = i + 1;
+            if (html && c == '<' && isTagStart(text, i)) {
+                final int afterTag = skipTag(text, i);
+                if (length > 0 && isBlockElement(text, i + 1, afterTag)) {
+                    return afterTag;
+                }
+                i = afterTag;
+                continue;
+            }
+            if (html && c == '&') {
+                final int semicolon = indexOf(text, ';', i + 1, Math.min(end, i + MAX_ENTITY));
+                final char decoded = semicolon < 0 ? 0 : decode(text, i + 1, semicolon);
+                if (decoded != 0) {
+                    c = decoded;
+                    next = semicolon + 1;
+                }
+            }
+            if (c == '\n' && !html) {
+                return next;
+            }
+            if (c == '\r') {
+                i = next;
+                continue;
+            }
+            if (Character.isWhitespace(c) || c == '\u00a0') {
+                if (html) {
+                    pendingSpace = length > 0;
+                } else {
+                    if (columns == width) {
+                        return next;
+                    }
+                    buffer[length++] = ' ';
+                    ++columns;
+                    breakLength = length - 1;
+                    breakNext = next;
+                }
+                i = next;
+                continue;
+            }
+            if (pendingSpace) {
+                if (columns == width) {
+                    return i;
+                }
+                breakLength = length;
+                breakNext = i;
+                buffer[length++] = ' ';
+                ++columns;
+                pendingSpace = false;
+            }
+            final int charWidth = TerminalTextUtils.isCharDoubleWidth(c) ? 2 : 1;
+            //a double width character that doesn’t fit on a line of its own is still put there to make progress
+            if (length > 0 && columns + charWidth > width) {
+                if (breakLength > 0) {
+                    length = breakLength;
+                    return breakNext;
+                }
+                return i;
+            }
+            buffer[length++] = c;
+            columns += charWidth;
+            i = next;
+        }
+        //beyond end if a tag crossed it
+        return i;
+    }
+
+    /**
+     * @return the start of the line that ends at position or -1 if position is the start of the text
+     */
+    int previous(CharSequence text, int position, int width, boolean html) {
+        if (position <= 0) {
+            return -1;
+        }
+        int segmentStart = (position - 1) / SEGMENT * SEGMENT;
+        int line = segmentStart;
+        if (html) {
+            //wrapping forward skips markup that crosses into the segment, so the segment starts after it
+            line = skipMarkup(text, segmentStart);
+            while (line >= position) {
+                segmentStart -= SEGMENT;
+                line = skipMarkup(text, segmentStart);
+            }
+        } else {
+            for (int i = position - 2; i >= segmentStart; --i) {
+                if (text.charAt(i) == '\n') {
+                    line = i + 1;
+                    break;
+                }
+            }
+        }
+        while (true) {
+            final int next = wrap(text, line, width, html);
+            if (next >= position) {
+                return line;
+            }
+            line = next;
+        }
+    }
+
+    /**
+     * @return position or, if position lies within a tag or within the content of a style sheet or script, the end
+     * of that markup
+     */
+    private static int skipMarkup(CharSequence text, int position) {
+        for (int i = position - 1; i >= 0; --i) {
+            if (text.charAt(i) == '<' && isTagStart(text, i)) {
+                return Math.max(position, skipTag(text, i));
+            }
+        }
+        return position;
+    }
+
+    private static boolean isTagStart(CharSequence text, int position) {
+        if (position + 1 >= text.length()) {
+            return false;
+        }
+        final char c = text.charAt(position + 1);
+        return Character.isLetter(c) || c == '/' || c == '!' || c == '?';
+    }
+
+    /**
+     * @return the end of the tag starting at start. For style sheets and scripts the end of their closing tag
+     */
+    private static int skipTag(CharSequence text, int start) {
+        final int close = indexOf(text, '>', start + 1, text.length());
+        if (close < 0) {
+            return text.length();
+        }
+        final int afterTag = close + 1;
+        if (text.charAt(start + 1) == '/') {
+            return afterTag;
+        }
+        for (String element : RAW_TEXT_ELEMENTS) {
+            if (isElement(text, start + 1, afterTag, element)) {
+                final int closingTag = indexOfClosingTag(text, element, afterTag);
+                if (closingTag < 0) {
+                    return text.length();
+                }
+                final int closingEnd = indexOf(text, '>', closingTag + 2, text.length());
+                return closingEnd < 0 ? text.length() : closingEnd + 1;
+            }
+        }
+        return afterTag;
+    }
+
+    private static int indexOfClosingTag(CharSequence text, String element, int from) {
+        for (int i = from; i + 2 + element.length() <= text.length(); ++i) {
+            if (text.charAt(i) == '<' && text.charAt(i + 1) == '/' && isElement(text, i + 2, text.length(), element)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(CharSequence text, char c, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isBlockElement(CharSequence text, int start, int end) {
+        int nameStart = start;
+        if (nameStart < end && text.charAt(nameStart) == '/') {
+            ++nameStart;
+        }
+        for (String element : BLOCK_ELEMENTS) {
+            if (isElement(text, nameStart, end, element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isElement(CharSequence text, int nameStart, int end, String element) {
+        int nameEnd = nameStart;
+        while (nameEnd < end && Character.isLetterOrDigit(text.charAt(nameEnd))) {
+            ++nameEnd;
+        }
+        return regionMatches(text, nameStart, nameEnd, element);
+    }
+
+    private static char decode(CharSequence text, int start, int end) {
+        if (regionMatches(text, start, end, "amp")) {
+            return '&';
+        } else if (regionMatches(text, start, end, "lt")) {
+            return '<';
+        } else if (regionMatches(text, start, end, "gt")) {
+            return '>';
+        } else if (regionMatches(text, start, end, "quot")) {
+            return '"';
+        } else if (regionMatches(text, start, end, "#39") || regionMatches(text, start, end, "apos")) {
+            return '\'';
+        } else if (regionMatches(text, start, end, "nbsp")) {
+            return ' ';
+        }
+        return 0;
+    }
+
+    private static boolean regionMatches(CharSequence text, int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); ++i) {
+            if (Character.toLowerCase(text.charAt(start + i)) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
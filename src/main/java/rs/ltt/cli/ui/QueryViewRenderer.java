@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.ui;
+
+import com.google.common.base.Strings;
+import com.googlecode.lanterna.SGR;
+import com.googlecode.lanterna.TerminalSize;
+import com.googlecode.lanterna.TextColor;
+import com.googlecode.lanterna.graphics.TextGraphics;
+import com.googlecode.lanterna.screen.Screen;
+import rs.ltt.cli.metrics.Metrics;
+import rs.ltt.cli.metrics.Timer;
+import rs.ltt.cli.model.QueryViewItem;
+import rs.ltt.jmap.common.entity.Keyword;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Draws the list of threads. The renderer remembers what it has drawn on each row and only redraws rows whose item,
+ * selection or width has changed. When the list is scrolled by a single row the screen is scrolled instead of being
+ * repainted.
+ */
+public class QueryViewRenderer {
+
+    private static final Object BLANK = new Object();
+
+    private static final Timer FRAME = Metrics.timer("render.frame");
+
+    private static final EnumSet<SGR> NONE = EnumSet.noneOf(SGR.class);
+    private static final EnumSet<SGR> BOLD = EnumSet.of(SGR.BOLD);
+    private static final EnumSet<SGR> ITALIC = EnumSet.of(SGR.ITALIC);
+
+    private final RowFormatter rowFormatter = new RowFormatter();
+
+    private Object[] drawn = new Object[0];
+    private boolean[] drawnSelected = new boolean[0];
+    private boolean[] drawnMarked = new boolean[0];
+    private int drawnWidth = -1;
+    private int drawnOffset = -1;
+    private String drawnStatus = null;
+
+    public void invalidate() {
+        Arrays.fill(drawn, null);
+        drawnWidth = -1;
+        drawnOffset = -1;
+        drawnStatus = null;
+    }
+
+    public void render(Screen screen, TerminalSize terminalSize, List<QueryViewItem> items, int offset, int cursorPosition, String status) throws IOException {
+        render(screen, terminalSize, items, offset, cursorPosition, Collections.emptySet(), status);
+    }
+
+    /**
+     * @param marked ids of the threads that are part of the multi-selection
+     */
+    public void render(Screen screen, TerminalSize terminalSize, List<QueryViewItem> items, int offset, int cursorPosition, Set<String> marked, String status) throws IOException {
+        final long start = FRAME.start();
+        final int availableWidth = terminalSize.getColumns();
+        final int availableRows = terminalSize.getRows();
+        if (drawn.length != availableRows || drawnWidth != availableWidth) {
+            drawn = new Object[availableRows];
+            drawnSelected = new boolean[availableRows];
+            drawnMarked = new boolean[availableRows];
+            drawnWidth = availableWidth;
+            drawnOffset = -1;
+            drawnStatus = null;
+        }
+        final int distance = offset - drawnOffset;
+        if (drawnOffset >= 0 && Math.abs(distance) == 1 && availableRows > 1) {
+            scroll(screen, distance);
+        } else if (distance != 0) {
+            Arrays.fill(drawn, null);
+        }
+        drawnOffset = offset;
+
+        final TextGraphics textGraphics = screen.newTextGraphics();
+        rowFormatter.beginFrame(System.currentTimeMillis());
+        for (int row = 0; row < availableRows; ++row) {
+            final int i = offset + row;
+            if (i >= items.size()) {
+                if (drawn[row] != BLANK) {
+                    textGraphics.setForegroundColor(TextColor.ANSI.WHITE);
+                    textGraphics.setBackgroundColor(TextColor.ANSI.BLACK);
+                    textGraphics.putString(0, row, Strings.repeat(" ", availableWidth));
+                    drawn[row] = BLANK;
+                }
+                continue;
+            }
+            final QueryViewItem item = items.get(i);
+            final boolean selected = i == cursorPosition;
+            final boolean isMarked = marked.contains(item.threadId);
+            if (drawn[row] == item && drawnSelected[row] == selected && drawnMarked[row] == isMarked) {
+                continue;
+            }
+            drawRow(textGraphics, row, item, selected, isMarked, availableWidth);
+            drawn[row] = item;
+            drawnSelected[row] = selected;
+            drawnMarked[row] = isMarked;
+        }
+        if (status != null) {
+            textGraphics.setForegroundColor(TextColor.ANSI.BLACK);
+            textGraphics.setBackgroundColor(TextColor.ANSI.YELLOW);
+            textGraphics.putString(0, availableRows - 1, Strings.padEnd(status, availableWidth, ' '));
+            drawn[availableRows - 1] = null;
+        }
+        drawnStatus = status;
+        screen.refresh(Screen.RefreshType.DELTA);
+        FRAME.stop(start);
+    }
+
+    private void scroll(Screen screen, int distance) {
+        final int rows = drawn.length;
+        screen.scrollLines(0, rows - 1, distance);
+        if (distance > 0) {
+            System.arraycopy(drawn, 1, drawn, 0, rows - 1);
+            System.arraycopy(drawnSelected, 1, drawnSelected, 0, rows - 1);
+            System.arraycopy(drawnMarked, 1, drawnMarked, 0, rows - 1);
+            drawn[rows - 1] = null;
+        } else {
+            System.arraycopy(drawn, 0, drawn, 1, rows - 1);
+            System.arraycopy(drawnSelected, 0, drawnSelected, 1, rows - 1);
+            System.arraycopy(drawnMarked, 0, drawnMarked, 1, rows - 1);
+            drawn[0] = null;
+        }
+        if (drawnStatus != null) {
+            //the status line has been scrolled along with the list
+            drawn[rows - 1] = null;
+            drawn[Math.max(0, rows - 1 - distance)] = null;
+        }
+    }
+
+    private void drawRow(TextGraphics textGraphics, int row, QueryViewItem item, boolean selected, boolean marked, int availableWidth) {
+        rowFormatter.format(item, availableWidth, marked);
+        final char[] buffer = rowFormatter.getBuffer();
+        final boolean draft = item.mostRecent.getKeywords().containsKey(Keyword.DRAFT);
+        final EnumSet<SGR> sgr;
+        if (draft) {
+            sgr = ITALIC;
+        } else if (!item.unread) {
+            sgr = NONE;
+        } else {
+            sgr = BOLD;
+        }
+        final int previewStart = rowFormatter.getPreviewStart();
+        final int dateStart = rowFormatter.getDateStart();
+        textGraphics.setForegroundColor(selected ? TextColor.ANSI.BLACK : TextColor.ANSI.WHITE);
+        textGraphics.setBackgroundColor(selected ? TextColor.ANSI.CYAN : TextColor.ANSI.BLACK);
+        textGraphics.setModifiers(NONE);
+        put(textGraphics, row, buffer, 0, Math.min(2, availableWidth));
+        textGraphics.setModifiers(sgr);
+        put(textGraphics, row, buffer, 2, previewStart);
+        textGraphics.setForegroundColor(selected ? TextColor.ANSI.BLACK : TextColor.ANSI.CYAN);
+        put(textGraphics, row, buffer, previewStart, dateStart);
+        textGraphics.setForegroundColor(selected ? TextColor.ANSI.BLACK : TextColor.ANSI.WHITE);
+        put(textGraphics, row, buffer, dateStart, availableWidth);
+        textGraphics.setModifiers(NONE);
+    }
+
+    private static void put(TextGraphics textGraphics, int row, char[] buffer, int start, int end) {
+        for (int column = start; column < end; ++column) {
+            textGraphics.setCharacter(column, row, buffer[column]);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.ui;
+
+import rs.ltt.cli.model.QueryViewItem;
+import rs.ltt.jmap.common.entity.EmailAddress;
+
+import java.text.DateFormatSymbols;
+import java.util.*;
+
+/**
+ * Formats a {@link QueryViewItem} into a reusable character buffer. Sender names are cached per address and the start
+ * of the current day is computed once per frame in {@link #beginFrame(long)}. A formatter keeps per frame state and
+ * is meant to be owned by a single renderer; it does not share any mutable state with other instances.
+ */
+public class RowFormatter {
+
+    public static final int FROM_WIDTH = 20;
+    public static final int DATE_WIDTH = 7;
+    public static final int THREAD_SIZE_WIDTH = 8;
+
+    private static final int FROM_START = 2;
+    private static final int THREAD_SIZE_START = FROM_START + FROM_WIDTH;
+    private static final int SUBJECT_START = THREAD_SIZE_START + THREAD_SIZE_WIDTH;
+
+    private static final int MAX_CACHED_SENDERS = 4096;
+
+    private static final String[] MONTHS = new DateFormatSymbols().getShortMonths();
+
+    private final Calendar calendar = Calendar.getInstance();
+    private final Map<EmailAddress, SenderName> senderNames = new HashMap<>();
+
+    private char[] buffer = new char[0];
+    private int width;
+    private int previewStart;
+    private int dateStart;
+    private long startOfToday;
+    private long startOfTomorrow;
+
+    public void beginFrame(long now) {
+        calendar.setTimeInMillis(now);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        startOfToday = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        startOfTomorrow = calendar.getTimeInMillis();
+    }
+
+    public void format(QueryViewItem item, int width) {
+        format(item, width, false);
+    }
+
+    /**
+     * @param marked whether the thread is part of the multi-selection
+     */
+    public void format(QueryViewItem item, int width, boolean marked) {
+        if (buffer.length < width) {
+            buffer = new char[width];
+        }
+        this.width = width;
+        Arrays.fill(buffer, 0, width, ' ');
+        if (item.flagged) {
+            put(0, '\u2605');
+        }
+        if (marked) {
+            put(1, '\u25cf');
+        }
+        from(item.from);
+        threadSize(item.count);
+        final int subjectPreviewWidth = Math.max(0, width - FROM_WIDTH - DATE_WIDTH - THREAD_SIZE_WIDTH);
+        final String subject = item.mostRecent.getSubject() == null ? "" : item.mostRecent.getSubject();
+        final int subjectEnd = put(SUBJECT_START, subject, Math.min(subject.length(), subjectPreviewWidth));
+        dateStart = Math.max(0, width - DATE_WIDTH);
+        previewStart = subjectEnd;
+        if (subject.length() <= subjectPreviewWidth) {
+            final String preview = item.preview == null ? "" : item.preview;
+            put(subjectEnd + 1, preview, preview.length());
+        }
+        receivedAt(item.mostRecent.getReceivedAt());
+    }
+
+    public char[] getBuffer() {
+        return buffer;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the column at which the preview (including its leading separator) starts
+     */
+    public int getPreviewStart() {
+        return Math.min(previewStart, dateStart);
+    }
+
+    public int getDateStart() {
+        return dateStart;
+    }
+
+    private void from(Set<EmailAddress> from) {
+        final boolean multiple = from.size() > 1;
+        final int end = FROM_START + FROM_WIDTH;
+        int position = FROM_START;
+        for (EmailAddress emailAddress : from) {
+            if (position >= end) {
+                break;
+            }
+            if (position != FROM_START) {
+                position = put(position, ", ", 2, end);
+            }
+            final SenderName senderName = senderName(emailAddress);
+            final String name = multiple ? senderName.shortName : senderName.fullName;
+            position = put(position, name, name.length(), end);
+        }
+    }
+
+    private SenderName senderName(EmailAddress emailAddress) {
+        SenderName senderName = senderNames.get(emailAddress);
+        if (senderName == null) {
+            if (senderNames.size() >= MAX_CACHED_SENDERS) {
+                senderNames.clear();
+            }
+            senderName = SenderName.of(emailAddress);
+            senderNames.put(emailAddress, senderName);
+        }
+        return senderName;
+    }
+
+    private void threadSize(int threadSize) {
+        if (threadSize <= 1) {
+            return;
+        }
+        int value = Math.min(threadSize, 999);
+        put(THREAD_SIZE_START + 1, '(');
+        int position = THREAD_SIZE_START + 4;
+        do {
+            put(position--, (char) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+        put(THREAD_SIZE_START + 5, ')');
+    }
+
+    private void receivedAt(Date date) {
+        //the date field is padded over its whole width so subject and preview never run into it
+        Arrays.fill(buffer, Math.max(0, width - DATE_WIDTH), width, ' ');
+        if (date == null) {
+            return;
+        }
+        final long time = date.getTime();
+        calendar.setTimeInMillis(time);
+        final int end = width;
+        if (time >= startOfToday && time < startOfTomorrow) {
+            twoDigits(end - 5, calendar.get(Calendar.HOUR_OF_DAY));
+            put(end - 3, ':');
+            twoDigits(end - 2, calendar.get(Calendar.MINUTE));
+        } else {
+            final String month = MONTHS[calendar.get(Calendar.MONTH)];
+            final int start = end - 3 - month.length();
+            put(start, month, month.length());
+            twoDigits(end - 2, calendar.get(Calendar.DAY_OF_MONTH));
+        }
+    }
+
+    private void twoDigits(int position, int value) {
+        put(position, (char) ('0' + value / 10 % 10));
+        put(position + 1, (char) ('0' + value % 10));
+    }
+
+    private void put(int position, char c) {
+        if (position >= 0 && position < width) {
+            buffer[position] = c;
+        }
+    }
+
+    private int put(int position, String value, int length) {
+        return put(position, value, length, width);
+    }
+
+    private int put(int position, String value, int length, int end) {
+        int i = 0;
+        while (i < length && position < end) {
+            put(position++, value.charAt(i++));
+        }
+        return position;
+    }
+
+    private static class SenderName {
+        private final String fullName;
+        private final String shortName;
+
+        private SenderName(String fullName, String shortName) {
+            this.fullName = fullName;
+            this.shortName = shortName;
+        }
+
+        private static SenderName of(EmailAddress emailAddress) {
+            final String name = emailAddress.getName();
+            if (name != null) {
+                return new SenderName(name, firstWord(name));
+            }
+            final String email = emailAddress.getEmail();
+            if (email != null) {
+                final int at = email.indexOf('@');
+                final String localPart = at >= 0 ? email.substring(0, at) : email;
+                return new SenderName(localPart, localPart);
+            }
+            return new SenderName("", "");
+        }
+
+        private static String firstWord(String name) {
+            int start = 0;
+            while (start < name.length() && Character.isWhitespace(name.charAt(start))) {
+                ++start;
+            }
+            int end = start;
+            while (end < name.length() && !Character.isWhitespace(name.charAt(end))) {
+                ++end;
+            }
+            return name.substring(start, end);
+        }
+    }
+}
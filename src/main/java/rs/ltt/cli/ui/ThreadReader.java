@@ -0,0 +1,264 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.ui;
+
+import com.google.common.base.Strings;
+import com.googlecode.lanterna.SGR;
+import com.googlecode.lanterna.TerminalSize;
+import com.googlecode.lanterna.TerminalTextUtils;
+import com.googlecode.lanterna.TextColor;
+import com.googlecode.lanterna.graphics.TextGraphics;
+import com.googlecode.lanterna.screen.Screen;
+import rs.ltt.cli.metrics.Metrics;
+import rs.ltt.cli.metrics.Timer;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.EmailAddress;
+import rs.ltt.jmap.common.entity.EmailBodyPart;
+import rs.ltt.jmap.common.entity.EmailBodyValue;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Shows all emails of a thread one after another. The reader only remembers the position of the first visible line
+ * (a part of an email and an offset into it). Every frame wraps just the lines that fit on the screen, straight from the
+ * cached body values, so scrolling takes the same time and memory no matter how long a body is.
+ * <p>
+ * Bodies that are not cached are shown as loading and reported by {@link #getMissingBodies()} once they scroll into
+ * view.
+ */
+public class ThreadReader {
+
+    private static final Timer FRAME = Metrics.timer("render.reader");
+
+    private static final String LOADING = "Loading…\n";
+
+    private final List<Part> parts = new ArrayList<>();
+    private final Function<String, Map<String, EmailBodyValue>> bodyValues;
+    private final LineWrapper lineWrapper = new LineWrapper();
+    private final Set<String> missingBodies = new HashSet<>();
+
+    private int part = 0;
+    private int offset = 0;
+    private int width = 80;
+    private int rows = 24;
+    private boolean atEnd = false;
+
+    public ThreadReader(Collection<Email> emails, Function<String, Map<String, EmailBodyValue>> bodyValues) {
+        this.bodyValues = bodyValues;
+        final DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+        for (Email email : emails) {
+            parts.add(Part.fixed(header(email, dateFormat), true));
+            final List<EmailBodyPart> textBody = email.getTextBody();
+            if (textBody == null || textBody.isEmpty()) {
+                parts.add(Part.fixed("(no text)\n", false));
+            } else {
+                for (EmailBodyPart bodyPart : textBody) {
+                    parts.add(Part.body(email.getId(), bodyPart.getPartId(), "text/html".equalsIgnoreCase(bodyPart.getType())));
+                }
+            }
+            parts.add(Part.fixed("\n", false));
+        }
+    }
+
+    private static String header(Email email, DateFormat dateFormat) {
+        final StringBuilder header = new StringBuilder();
+        header.append("From: ");
+        if (email.getFrom() != null) {
+            boolean first = true;
+            for (EmailAddress address : email.getFrom()) {
+                if (!first) {
+                    header.append(", ");
+                }
+                first = false;
+                if (address.getName() != null) {
+                    header.append(address.getName()).append(" <").append(address.getEmail()).append('>');
+                } else {
+                    header.append(address.getEmail());
+                }
+            }
+        }
+        header.append('\n');
+        if (email.getReceivedAt() != null) {
+            header.append("Date: ").append(dateFormat.format(email.getReceivedAt())).append('\n');
+        }
+        header.append("Subject: ").append(Strings.nullToEmpty(email.getSubject())).append("\n\n");
+        return header.toString();
+    }
+
+    public void scrollDown(int lines) {
+        for (int i = 0; i < lines && !atEnd; ++i) {
+            final Part current = parts.get(part);
+            final CharSequence text = text(current);
+            final int next = lineWrapper.wrap(text, Math.min(offset, text.length()), width, current.html);
+            if (next < text.length()) {
+                offset = next;
+            } else {
+                final int following = nonEmpty(part + 1, 1);
+                if (following < 0) {
+                    return;
+                }
+                part = following;
+                offset = 0;
+            }
+            atEnd = !hasLines(part, offset, rows - 1);
+        }
+    }
+
+    public void scrollUp(int lines) {
+        for (int i = 0; i < lines; ++i) {
+            final Part current = parts.get(part);
+            final CharSequence text = text(current);
+            if (offset > 0) {
+                offset = Math.max(0, lineWrapper.previous(text, Math.min(offset, text.length()), width, current.html));
+            } else {
+                final int preceding = nonEmpty(part - 1, -1);
+                if (preceding < 0) {
+                    return;
+                }
+                part = preceding;
+                final Part previous = parts.get(part);
+                final CharSequence previousText = text(previous);
+                offset = Math.max(0, lineWrapper.previous(previousText, previousText.length(), width, previous.html));
+            }
+            atEnd = false;
+        }
+    }
+
+    /**
+     * @return ids of the emails whose bodies were visible in the last frame but are not cached
+     */
+    public Set<String> getMissingBodies() {
+        return new HashSet<>(missingBodies);
+    }
+
+    public void render(Screen screen, TerminalSize terminalSize, String status) throws IOException {
+        final long start = FRAME.start();
+        width = terminalSize.getColumns();
+        rows = terminalSize.getRows();
+        missingBodies.clear();
+        final TextGraphics textGraphics = screen.newTextGraphics();
+        textGraphics.setForegroundColor(TextColor.ANSI.WHITE);
+        textGraphics.setBackgroundColor(TextColor.ANSI.BLACK);
+        int p = part;
+        int o = offset;
+        int row = 0;
+        while (row < rows - 1 && p < parts.size()) {
+            final Part current = parts.get(p);
+            final CharSequence text = text(current);
+            if (o >= text.length()) {
+                ++p;
+                o = 0;
+                continue;
+            }
+            o = lineWrapper.wrap(text, o, width, current.html);
+            textGraphics.setModifiers(current.bold ? EnumSet.of(SGR.BOLD) : EnumSet.noneOf(SGR.class));
+            final char[] buffer = lineWrapper.getBuffer();
+            final int length = lineWrapper.getLength();
+            int column = 0;
+            for (int i = 0; i < length && column < width; ++i) {
+                textGraphics.setCharacter(column, row, buffer[i]);
+                column += TerminalTextUtils.isCharDoubleWidth(buffer[i]) ? 2 : 1;
+            }
+            for (; column < width; ++column) {
+                textGraphics.setCharacter(column, row, ' ');
+            }
+            ++row;
+        }
+        textGraphics.setModifiers(EnumSet.noneOf(SGR.class));
+        for (; row < rows - 1; ++row) {
+            textGraphics.putString(0, row, Strings.repeat(" ", width));
+        }
+        atEnd = !hasLines(p, o, 1);
+        textGraphics.setForegroundColor(TextColor.ANSI.BLACK);
+        textGraphics.setBackgroundColor(TextColor.ANSI.YELLOW);
+        final String visibleStatus = status != null ? status : (atEnd ? "(end)" : "");
+        textGraphics.putString(0, rows - 1, Strings.padEnd(visibleStatus, width, ' '));
+        screen.refresh(Screen.RefreshType.DELTA);
+        FRAME.stop(start);
+    }
+
+    /**
+     * @return whether there are at least the given number of lines from the position onwards
+     */
+    private boolean hasLines(int p, int o, int lines) {
+        int count = 0;
+        while (p < parts.size() && count < lines) {
+            final Part current = parts.get(p);
+            final CharSequence text = text(current);
+            if (o >= text.length()) {
+                ++p;
+                o = 0;
+                continue;
+            }
+            o = lineWrapper.wrap(text, o, width, current.html);
+            ++count;
+        }
+        return count >= lines;
+    }
+
+    private int nonEmpty(int from, int direction) {
+        for (int p = from; p >= 0 && p < parts.size(); p += direction) {
+            if (text(parts.get(p)).length() > 0) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    private CharSequence text(Part current) {
+        if (current.emailId == null) {
+            return current.text;
+        }
+        final Map<String, EmailBodyValue> values = bodyValues.apply(current.emailId);
+        if (values == null) {
+            missingBodies.add(current.emailId);
+            return LOADING;
+        }
+        final EmailBodyValue value = values.get(current.partId);
+        return value == null || value.getValue() == null ? "" : value.getValue();
+    }
+
+    /**
+     * Either a fixed text (headers, separators) or a reference to a body value that is looked up on every frame.
+     */
+    private static class Part {
+        private final String text;
+        private final String emailId;
+        private final String partId;
+        private final boolean html;
+        private final boolean bold;
+
+        private Part(String text, String emailId, String partId, boolean html, boolean bold) {
+            this.text = text;
+            this.emailId = emailId;
+            this.partId = partId;
+            this.html = html;
+            this.bold = bold;
+        }
+
+        private static Part fixed(String text, boolean bold) {
+            return new Part(text, null, null, false, bold);
+        }
+
+        private static Part body(String emailId, String partId, boolean html) {
+            return new Part(null, emailId, partId, html, false);
+        }
+    }
+}
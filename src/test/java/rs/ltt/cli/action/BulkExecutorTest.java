@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.action;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rs.ltt.cli.cache.MyInMemoryCache;
+import rs.ltt.cli.model.QueryViewItem;
+import rs.ltt.cli.server.StandInServer;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.filter.EmailFilterCondition;
+import rs.ltt.jmap.common.entity.query.EmailQuery;
+import rs.ltt.jmap.mua.Mua;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkExecutorTest {
+
+    private static final int EMAILS = 120;
+
+    private StandInServer server;
+    private MyInMemoryCache cache;
+    private Mua mua;
+    private BulkExecutor bulkExecutor;
+
+    @Before
+    public void start() throws IOException {
+        final StandInServer.Options options = new StandInServer.Options();
+        options.emails = EMAILS;
+        server = StandInServer.start(options);
+        cache = new MyInMemoryCache();
+        mua = Mua.builder()
+                .username("user@example.com")
+                .password("password")
+                .sessionResource(server.getSessionResource())
+                .cache(cache)
+                .queryPageSize(EMAILS)
+                .build();
+        bulkExecutor = new BulkExecutor(status -> {
+        }, 25);
+    }
+
+    @After
+    public void stop() throws Exception {
+        bulkExecutor.shutdown();
+        mua.close();
+        server.close();
+    }
+
+    @Test
+    public void archiveSeveralChunks() throws Exception {
+        mua.refreshMailboxes().get();
+        final EmailQuery inbox = query("inbox");
+        mua.query(inbox).get();
+        final List<Email> emails = new ArrayList<>();
+        for (QueryViewItem item : cache.getQueryViewItems(inbox.toQueryString())) {
+            emails.addAll(cache.getEmails(item.threadId));
+        }
+        assertEquals(EMAILS, emails.size());
+
+        final SettableFuture<List<Email>> failed = SettableFuture.create();
+        bulkExecutor.submit("Archiving", emails, chunk -> mua.archive(chunk), () -> mua.query(inbox), failed::set);
+        assertTrue(failed.get(30, TimeUnit.SECONDS).isEmpty());
+
+        mua.query(inbox).get();
+        assertTrue(cache.getQueryViewItems(inbox.toQueryString()).isEmpty());
+        final EmailQuery archive = query("archive");
+        mua.query(archive).get();
+        int archived = 0;
+        for (QueryViewItem item : cache.getQueryViewItems(archive.toQueryString())) {
+            archived += item.count;
+        }
+        assertEquals(EMAILS, archived);
+    }
+
+    private static EmailQuery query(String mailboxId) {
+        return EmailQuery.of(EmailFilterCondition.builder().inMailbox(mailboxId).build(), true);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.cache;
+
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import rs.ltt.cli.model.QueryViewItem;
+import rs.ltt.cli.server.StandInServer;
+import rs.ltt.jmap.common.entity.filter.EmailFilterCondition;
+import rs.ltt.jmap.common.entity.query.EmailQuery;
+import rs.ltt.jmap.mua.Mua;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PersistentCacheTest {
+
+    private static final String[] MAILBOXES = {"inbox", "archive", "sent", "trash", "important"};
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private StandInServer server;
+
+    @Before
+    public void start() throws IOException {
+        final StandInServer.Options options = new StandInServer.Options();
+        options.emails = 200;
+        server = StandInServer.start(options);
+    }
+
+    @After
+    public void stop() {
+        server.close();
+    }
+
+    @Test
+    public void replay() throws Exception {
+        final Path journal = folder.getRoot().toPath().resolve("journal");
+        final PersistentCache cache = sync(journal, Integer.MAX_VALUE);
+        try (final PersistentCache restored = PersistentCache.open(journal)) {
+            assertSameContent(cache, restored);
+        }
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        final Path uncompacted = folder.getRoot().toPath().resolve("uncompacted");
+        final Path compacted = folder.getRoot().toPath().resolve("compacted");
+        sync(uncompacted, Integer.MAX_VALUE);
+        //compacts in the background after every few entries while the queries are still being written
+        final PersistentCache cache = sync(compacted, 4);
+        assertTrue(lines(compacted).size() < lines(uncompacted).size());
+        assertFalse(Files.exists(compacted.resolveSibling("compacted.tmp")));
+        try (final PersistentCache restored = PersistentCache.open(compacted)) {
+            assertSameContent(cache, restored);
+        }
+    }
+
+    @Test
+    public void tornLastLine() throws Exception {
+        final Path journal = folder.getRoot().toPath().resolve("journal");
+        final PersistentCache cache = sync(journal, Integer.MAX_VALUE);
+        //interrupted in the middle of appending an entry
+        Files.write(journal, "{\"m\":\"setEmails\",\"a\":[{\"st".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        try (final PersistentCache restored = PersistentCache.open(journal)) {
+            assertSameContent(cache, restored);
+        }
+        //the incomplete entry is gone after the compaction on start up
+        for (String line : lines(journal)) {
+            new JsonParser().parse(line).getAsJsonObject();
+        }
+        try (final PersistentCache restored = PersistentCache.open(journal)) {
+            assertSameContent(cache, restored);
+        }
+    }
+
+    private PersistentCache sync(Path journal, int compactionThreshold) throws Exception {
+        final PersistentCache cache = PersistentCache.open(journal, compactionThreshold);
+        final Mua mua = Mua.builder()
+                .username("user@example.com")
+                .password("password")
+                .sessionResource(server.getSessionResource())
+                .cache(cache)
+                .queryPageSize(20)
+                .build();
+        try {
+            mua.refreshMailboxes().get();
+            for (String mailbox : MAILBOXES) {
+                final EmailQuery query = query(mailbox);
+                mua.query(query).get();
+                //a second page
+                mua.query(query, cache.getLastEmailId(query.toQueryString())).get();
+            }
+        } finally {
+            mua.close();
+        }
+        cache.close();
+        return cache;
+    }
+
+    private static void assertSameContent(MyInMemoryCache expected, MyInMemoryCache actual) {
+        assertEquals(expected.getMailboxes().size(), actual.getMailboxes().size());
+        assertEquals(expected.getEmailCount(), actual.getEmailCount());
+        for (String mailbox : MAILBOXES) {
+            final String query = query(mailbox).toQueryString();
+            assertEquals(threadIds(expected.getQueryViewItems(query)), threadIds(actual.getQueryViewItems(query)));
+            assertEquals(expected.getLastEmailId(query), actual.getLastEmailId(query));
+        }
+    }
+
+    private static List<String> threadIds(List<QueryViewItem> items) {
+        final List<String> threadIds = new ArrayList<>();
+        for (QueryViewItem item : items) {
+            threadIds.add(item.threadId);
+        }
+        return threadIds;
+    }
+
+    private static List<String> lines(Path file) throws IOException {
+        return Files.readAllLines(file, StandardCharsets.UTF_8);
+    }
+
+    private static EmailQuery query(String mailboxId) {
+        return EmailQuery.of(EmailFilterCondition.builder().inMailbox(mailboxId).build(), true);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.cache;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.junit.Test;
+import rs.ltt.cli.model.QueryViewChange;
+import rs.ltt.cli.model.QueryViewDiff;
+import rs.ltt.cli.model.QueryViewItem;
+import rs.ltt.jmap.mua.util.QueryResultItem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class QueryViewTest {
+
+    private static final Gson GSON = new Gson();
+
+    //threads without an entry are not in the cache yet
+    private final Map<String, QueryViewItem> threads = new HashMap<>();
+    private final QueryView queryView = new QueryView((emailId, threadId) -> threads.get(threadId));
+    //what the thread list shows
+    private final List<QueryViewItem> screen = new ArrayList<>();
+
+    @Test
+    public void resetIsDrainedOnce() {
+        queryView.reset(items(0, 5));
+        final QueryViewDiff diff = queryView.drain();
+        assertTrue(diff.isReset());
+        diff.applyTo(screen);
+        assertEquals(queryView.getItems(), screen);
+        assertTrue(queryView.drain().isEmpty());
+    }
+
+    @Test
+    public void insertAtHead() {
+        start(items(0, 5));
+        queryView.insert(0, item(5));
+        final QueryViewDiff diff = drain();
+        assertEquals(1, diff.getChanges().size());
+        assertChange(diff.getChanges().get(0), QueryViewChange.Type.INSERT, 0);
+        assertEquals("T5", screen.get(0).threadId);
+        assertEquals(6, screen.size());
+    }
+
+    @Test
+    public void removeCursorRow() {
+        start(items(0, 10));
+        final int cursor = 4;
+        final QueryViewItem below = screen.get(cursor + 1);
+        queryView.remove("M" + cursor);
+        final QueryViewDiff diff = drain();
+        assertChange(diff.getChanges().get(0), QueryViewChange.Type.REMOVE, cursor);
+        //the cursor stays at its position which is now the row below
+        assertSame(below, screen.get(cursor));
+
+        //the last row
+        queryView.remove("M9");
+        drain();
+        assertEquals(8, screen.size());
+        assertEquals("T8", screen.get(screen.size() - 1).threadId);
+    }
+
+    @Test
+    public void removeUnknownEmail() {
+        start(items(0, 3));
+        queryView.remove("M42");
+        assertTrue(queryView.drain().isEmpty());
+    }
+
+    @Test
+    public void move() {
+        start(items(0, 10));
+        //a new email in thread 6 moves the thread to the top
+        queryView.remove("M6");
+        queryView.insert(0, item("M100", "T6"));
+        final QueryViewDiff diff = drain();
+        assertEquals(2, diff.getChanges().size());
+        assertChange(diff.getChanges().get(0), QueryViewChange.Type.REMOVE, 6);
+        assertChange(diff.getChanges().get(1), QueryViewChange.Type.INSERT, 0);
+        assertEquals("T6", screen.get(0).threadId);
+        assertEquals("T5", screen.get(6).threadId);
+        assertEquals("T7", screen.get(7).threadId);
+    }
+
+    @Test
+    public void hiddenRowsDontCount() {
+        final List<QueryResultItem> items = items(0, 6);
+        threads.remove("T2");
+        start(items);
+        assertEquals(5, screen.size());
+        //index 4 of the query result is the fourth visible row
+        queryView.insert(4, item(6));
+        QueryViewDiff diff = drain();
+        assertChange(diff.getChanges().get(0), QueryViewChange.Type.INSERT, 3);
+
+        //thread 2 made it into the cache
+        threads.put("T2", threadItem("T2"));
+        queryView.refresh(ImmutableSet.of("T2"));
+        diff = drain();
+        assertChange(diff.getChanges().get(0), QueryViewChange.Type.INSERT, 2);
+        assertEquals("T2", screen.get(2).threadId);
+    }
+
+    @Test
+    public void changeOnLaterPage() {
+        start(items(0, 50));
+        //the second page
+        for (QueryResultItem item : items(50, 100)) {
+            queryView.append(item);
+        }
+        QueryViewDiff diff = drain();
+        assertEquals(50, diff.getChanges().size());
+        assertEquals(100, screen.size());
+
+        //the thread on row 80 was marked as read
+        threads.put("T80", threadItem("T80"));
+        queryView.refresh(ImmutableSet.of("T80"));
+        diff = drain();
+        assertEquals(1, diff.getChanges().size());
+        assertChange(diff.getChanges().get(0), QueryViewChange.Type.CHANGE, 80);
+        assertSame(threads.get("T80"), screen.get(80));
+
+        //a thread on the first page is no longer in the cache. rows further down move up
+        threads.remove("T10");
+        queryView.refresh(ImmutableSet.of("T10"));
+        queryView.insert(76, item(100));
+        diff = drain();
+        assertChange(diff.getChanges().get(0), QueryViewChange.Type.REMOVE, 10);
+        assertChange(diff.getChanges().get(1), QueryViewChange.Type.INSERT, 75);
+        assertEquals("T100", screen.get(75).threadId);
+        assertEquals(100, screen.size());
+    }
+
+    @Test
+    public void changesBeforeDrainAfterInvalidate() {
+        start(items(0, 5));
+        queryView.invalidate();
+        queryView.insert(0, item(5));
+        final QueryViewDiff diff = queryView.drain();
+        assertTrue(diff.isReset());
+        diff.applyTo(screen);
+        assertEquals(queryView.getItems(), screen);
+        assertFalse(queryView.drain().isReset());
+    }
+
+    private void start(List<QueryResultItem> items) {
+        queryView.reset(items);
+        screen.clear();
+        queryView.drain().applyTo(screen);
+    }
+
+    /**
+     * Applies the changes the way the thread list does and checks that it ends up with the items of the view.
+     */
+    private QueryViewDiff drain() {
+        final QueryViewDiff diff = queryView.drain();
+        assertFalse(diff.isReset());
+        diff.applyTo(screen);
+        assertEquals(queryView.getItems(), screen);
+        return diff;
+    }
+
+    private static void assertChange(QueryViewChange change, QueryViewChange.Type type, int position) {
+        assertEquals(type, change.type);
+        assertEquals(position, change.position);
+    }
+
+    private List<QueryResultItem> items(int from, int to) {
+        final List<QueryResultItem> items = new ArrayList<>();
+        for (int i = from; i < to; ++i) {
+            items.add(item(i));
+        }
+        return items;
+    }
+
+    private QueryResultItem item(int i) {
+        return item("M" + i, "T" + i);
+    }
+
+    private QueryResultItem item(String emailId, String threadId) {
+        threads.put(threadId, threadItem(threadId));
+        final JsonObject item = new JsonObject();
+        item.addProperty("emailId", emailId);
+        item.addProperty("threadId", threadId);
+        return GSON.fromJson(item, QueryResultItem.class);
+    }
+
+    private static QueryViewItem threadItem(String threadId) {
+        return new QueryViewItem(threadId, 1, Collections.emptySet(), null, "", false, false);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.cache;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.gson.JmapAdapters;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SearchIndexTest {
+
+    private static final Gson GSON;
+
+    static {
+        final GsonBuilder builder = new GsonBuilder();
+        JmapAdapters.register(builder);
+        GSON = builder.create();
+    }
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final SearchIndex searchIndex = new SearchIndex();
+
+    @Test
+    public void tokenize() {
+        searchIndex.add(email("M1", "T1", "Re: JMAP-Release, NOTES!", "Daniel Gultsch", "daniel@example.com", "see the changelog"));
+        assertEquals(Collections.singletonList("M1"), search("jmap "));
+        assertEquals(Collections.singletonList("M1"), search("Release "));
+        assertEquals(Collections.singletonList("M1"), search("notes "));
+        assertEquals(Collections.singletonList("M1"), search("gultsch "));
+        assertEquals(Collections.singletonList("M1"), search("example "));
+        assertEquals(Collections.singletonList("M1"), search("changelog "));
+        assertEquals(Collections.emptyList(), search("jmap-release-notes-draft "));
+    }
+
+    @Test
+    public void severalTerms() {
+        searchIndex.add(email("M1", "T1", "weekly meeting notes", "Alice", "alice@example.com", null));
+        searchIndex.add(email("M2", "T2", "weekly newsletter", "Bob", "bob@example.com", "no meeting this week"));
+        assertEquals(Collections.singletonList("M1"), search("weekly notes "));
+        assertEquals(Collections.singletonList("M2"), search("newsletter meeting "));
+        assertEquals(Collections.emptyList(), search("notes newsletter "));
+        //a match in the subject weighs more than one in the body
+        assertEquals(Arrays.asList("M1", "M2"), search("meeting "));
+    }
+
+    @Test
+    public void prefixWhileTyping() {
+        searchIndex.add(email("M1", "T1", "meeting", "Alice", "alice@example.com", null));
+        assertEquals(Collections.singletonList("M1"), search("meet"));
+        assertEquals(Collections.emptyList(), search("meet "));
+    }
+
+    @Test
+    public void shortTermsAreDropped() {
+        searchIndex.add(email("M1", "T1", "a b meeting", "Alice", "alice@example.com", "x"));
+        //single characters are neither indexed nor required to match
+        assertEquals(Collections.singletonList("M1"), search("a meeting "));
+        assertEquals(Collections.emptyList(), search("x"));
+        assertEquals(Collections.emptyList(), search("a "));
+    }
+
+    @Test
+    public void bestEmailOfThread() {
+        searchIndex.add(email("M1", "T1", "invoice", "Alice", "alice@example.com", null));
+        searchIndex.add(email("M2", "T1", "Re: something else", "Bob", "bob@example.com", "the invoice is attached"));
+        assertEquals(Collections.singletonList("M1"), search("invoice "));
+    }
+
+    @Test
+    public void reindexChangedEmail() {
+        searchIndex.add(email("M1", "T1", "build failed", "CI", "ci@example.com", null));
+        assertEquals(Collections.emptyList(), search("timeout "));
+        //the body values arrived
+        searchIndex.add(email("M1", "T1", "build failed", "CI", "ci@example.com", "timeout in test"));
+        assertEquals(1, searchIndex.size());
+        assertEquals(Collections.singletonList("M1"), search("timeout "));
+        assertEquals(Collections.singletonList("M1"), search("build "));
+        searchIndex.add(email("M1", "T1", "build fixed", "CI", "ci@example.com", null));
+        assertEquals(Collections.emptyList(), search("failed "));
+        assertEquals(Collections.emptyList(), search("timeout "));
+        assertEquals(Collections.singletonList("M1"), search("fixed "));
+        searchIndex.remove("M1");
+        assertEquals(0, searchIndex.size());
+        assertEquals(Collections.emptyList(), search("build "));
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        searchIndex.add(email("M1", "T1", "weekly meeting notes", "Alice", "alice@example.com", null));
+        searchIndex.add(email("M2", "T2", "weekly newsletter", "Bob", "bob@example.com", null));
+        searchIndex.remove("M1");
+        final Path path = folder.getRoot().toPath().resolve("index");
+        searchIndex.write(path, "s1");
+        final SearchIndex.Persisted persisted = SearchIndex.read(path);
+        assertEquals("s1", persisted.state);
+        assertEquals(1, persisted.index.size());
+        assertEquals(Collections.singletonList("M2"), ids(persisted.index.search("weekly ", 10)));
+        assertNull(SearchIndex.read(folder.getRoot().toPath().resolve("missing")));
+        assertTrue(persisted.index.search("notes ", 10).isEmpty());
+    }
+
+    private List<String> search(String query) {
+        return ids(searchIndex.search(query, 10));
+    }
+
+    private static List<String> ids(List<SearchIndex.Hit> hits) {
+        final List<String> ids = new ArrayList<>();
+        for (SearchIndex.Hit hit : hits) {
+            ids.add(hit.emailId);
+        }
+        return ids;
+    }
+
+    private static Email email(String id, String threadId, String subject, String name, String address, String body) {
+        final JsonObject email = new JsonObject();
+        email.addProperty("id", id);
+        email.addProperty("threadId", threadId);
+        email.addProperty("subject", subject);
+        email.addProperty("receivedAt", "2019-10-01T10:00:00Z");
+        final JsonObject from = new JsonObject();
+        from.addProperty("name", name);
+        from.addProperty("email", address);
+        final JsonArray fromList = new JsonArray();
+        fromList.add(from);
+        email.add("from", fromList);
+        if (body != null) {
+            final JsonObject textBody = new JsonObject();
+            textBody.addProperty("partId", "1");
+            textBody.addProperty("type", "text/plain");
+            final JsonArray textBodies = new JsonArray();
+            textBodies.add(textBody);
+            email.add("textBody", textBodies);
+            final JsonObject bodyValue = new JsonObject();
+            bodyValue.addProperty("value", body);
+            final JsonObject bodyValues = new JsonObject();
+            bodyValues.add("1", bodyValue);
+            email.add("bodyValues", bodyValues);
+        }
+        return GSON.fromJson(email, Email.class);
+    }
+}
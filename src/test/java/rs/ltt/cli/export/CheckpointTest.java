@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.export;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void resume() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("export.mbox.checkpoint");
+        try (final Checkpoint checkpoint = Checkpoint.open(file, 0)) {
+            assertEquals(0, checkpoint.size());
+            checkpoint.add("m1", 100);
+            checkpoint.add("m2", 250);
+        }
+        try (final Checkpoint checkpoint = Checkpoint.open(file, 250)) {
+            assertEquals(2, checkpoint.size());
+            assertTrue(checkpoint.contains("m1"));
+            assertTrue(checkpoint.contains("m2"));
+            assertEquals(250, checkpoint.getLength());
+        }
+    }
+
+    @Test
+    public void tornLastLine() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("export.mbox.checkpoint");
+        try (final Checkpoint checkpoint = Checkpoint.open(file, 0)) {
+            checkpoint.add("m1", 100);
+        }
+        //interrupted in the middle of writing the next line
+        Files.write(file, "m2".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        try (final Checkpoint checkpoint = Checkpoint.open(file, 100)) {
+            assertEquals(1, checkpoint.size());
+            assertFalse(checkpoint.contains("m2"));
+            assertEquals(100, checkpoint.getLength());
+            checkpoint.add("m3", 200);
+        }
+        //the line written after the torn one is read back on its own
+        try (final Checkpoint checkpoint = Checkpoint.open(file, 200)) {
+            assertEquals(2, checkpoint.size());
+            assertTrue(checkpoint.contains("m3"));
+            assertFalse(checkpoint.contains("m2"));
+        }
+    }
+
+    @Test
+    public void emailsBeyondTheTargetAreForgotten() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("export.mbox.checkpoint");
+        try (final Checkpoint checkpoint = Checkpoint.open(file, 0)) {
+            checkpoint.add("m1", 100);
+            checkpoint.add("m2", 250);
+        }
+        //the mbox was cut back to the end of the first message
+        try (final Checkpoint checkpoint = Checkpoint.open(file, 100)) {
+            assertEquals(1, checkpoint.size());
+            assertFalse(checkpoint.contains("m2"));
+            assertEquals(100, checkpoint.getLength());
+        }
+        //still forgotten once the target has grown again
+        try (final Checkpoint checkpoint = Checkpoint.open(file, 1000)) {
+            assertFalse(checkpoint.contains("m2"));
+            assertEquals(100, checkpoint.getLength());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.export;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class MboxTest {
+
+    private static final String FROM_LINE = "From MAILER-DAEMON Thu Jan  1 00:00:00 1970\n";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void quoting() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("export.mbox");
+        try (final Mbox mbox = new Mbox(file, 0)) {
+            commit(mbox, "m1", "Subject: quoting\r\n\r\nFrom the start\r\n>From quoted\r\n>>From twice\r\nFromage\r\n> From with a space\r\n>Fro\r\n");
+        }
+        assertEquals(FROM_LINE + "Subject: quoting\n\n>From the start\n>>From quoted\n>>>From twice\nFromage\n> From with a space\n>Fro\n\n", read(file));
+    }
+
+    @Test
+    public void missingLineBreakAtTheEnd() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("export.mbox");
+        try (final Mbox mbox = new Mbox(file, 0)) {
+            commit(mbox, "m1", "Subject: one\r\n\r\nFrom");
+            commit(mbox, "m2", "Subject: two\r\n\r\nbody\r\n");
+        }
+        assertEquals(FROM_LINE + "Subject: one\n\nFrom\n\n" + FROM_LINE + "Subject: two\n\nbody\n\n", read(file));
+    }
+
+    @Test
+    public void resumeCutsOffIncompleteMessage() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("export.mbox");
+        final long length;
+        try (final Mbox mbox = new Mbox(file, 0)) {
+            length = commit(mbox, "m1", "Subject: complete\r\n\r\nbody\r\n");
+        }
+        //what an interrupted append leaves behind
+        Files.write(file, (FROM_LINE + "Subject: incomplete\n").getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+        try (final Mbox mbox = new Mbox(file, length)) {
+            commit(mbox, "m2", "Subject: resumed\r\n\r\nbody\r\n");
+        }
+        assertEquals(FROM_LINE + "Subject: complete\n\nbody\n\n" + FROM_LINE + "Subject: resumed\n\nbody\n\n", read(file));
+        assertFalse(Files.exists(file.resolveSibling("export.mbox.spool")));
+    }
+
+    private static long commit(Mbox mbox, String id, String content) throws IOException {
+        final Path temporary = mbox.newTemporaryFile();
+        Files.write(temporary, content.getBytes(StandardCharsets.US_ASCII));
+        final Message message = new Message(id, id, Instant.EPOCH, content.length(), Collections.emptySet());
+        return mbox.commit(message, temporary);
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process JMAP server on the loopback interface backed by a {@link SyntheticAccount}. It implements the session
+ * resource, Mailbox/get, Mailbox/changes, Mailbox/set (create only), Identity/get, Identity/changes, Thread/get,
+ * Thread/changes, Email/get, Email/changes, Email/query, Email/queryChanges, Email/set, blob downloads and an event
+ * source, including result references. Any credentials are accepted.
+ * <p>
+ * Every API request is delayed by the configured latency. With a change rate the account is mutated in the background
+ * so the refresh loop has something to pick up.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=rs.ltt.cli.server.StandInServer \
+ *     -Dexec.args="--emails 100000 --latency 50 --change-rate 2"
+ * </pre>
+ */
+public class StandInServer implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StandInServer.class);
+
+    private static final Gson GSON = new Gson();
+
+    private static final String CORE = "urn:ietf:params:jmap:core";
+    private static final String MAIL = "urn:ietf:params:jmap:mail";
+    private static final String SUBMISSION = "urn:ietf:params:jmap:submission";
+
+    private final SyntheticAccount account;
+    private final long latency;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "stand-in-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService mutator = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "stand-in-mutator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //number of calls per method
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    //open event source connections
+    private final List<HttpExchange> eventSources = new CopyOnWriteArrayList<>();
+
+    private StandInServer(Options options) throws IOException {
+        this.account = new SyntheticAccount(options.emails, options.bodySize, options.threadShape, options.seed);
+        this.latency = options.latency;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), options.port), 0);
+        this.server.createContext("/.well-known/jmap", this::session);
+        this.server.createContext("/api", this::api);
+        this.server.createContext("/download", this::download);
+        this.server.createContext("/eventsource", this::eventSource);
+        this.server.setExecutor(executor);
+        if (options.changeRate > 0) {
+            final long period = Math.max(1, (long) (1_000_000 / options.changeRate));
+            mutator.scheduleAtFixedRate(this::mutate, period, period, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    public static StandInServer start(Options options) throws IOException {
+        final StandInServer standInServer = new StandInServer(options);
+        standInServer.server.start();
+        LOGGER.info("serving {} synthetic emails at {}", options.emails, standInServer.getSessionResource());
+        return standInServer;
+    }
+
+    public HttpUrl getSessionResource() {
+        return new HttpUrl.Builder()
+                .scheme("http")
+                .host(server.getAddress().getHostString())
+                .port(server.getAddress().getPort())
+                .addPathSegments(".well-known/jmap")
+                .build();
+    }
+
+    private String base() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    private void mutate() {
+        try {
+            account.mutate();
+            pushStateChange();
+        } catch (RuntimeException e) {
+            LOGGER.warn("unable to mutate synthetic account", e);
+        }
+    }
+
+    private void session(HttpExchange exchange) throws IOException {
+        final JsonObject coreCapability = new JsonObject();
+        coreCapability.addProperty("maxSizeUpload", 50_000_000);
+        coreCapability.addProperty("maxConcurrentUpload", 4);
+        coreCapability.addProperty("maxSizeRequest", 10_000_000);
+        coreCapability.addProperty("maxConcurrentRequests", 4);
+        coreCapability.addProperty("maxCallsInRequest", 16);
+        coreCapability.addProperty("maxObjectsInGet", 500);
+        coreCapability.addProperty("maxObjectsInSet", 500);
+        coreCapability.add("collationAlgorithms", new JsonArray());
+        final JsonObject capabilities = new JsonObject();
+        capabilities.add(CORE, coreCapability);
+        capabilities.add(MAIL, new JsonObject());
+        capabilities.add(SUBMISSION, new JsonObject());
+
+        final JsonObject mailCapability = new JsonObject();
+        mailCapability.addProperty("maxSizeMailboxName", 255);
+        mailCapability.addProperty("maxSizeAttachmentsPerEmail", 50_000_000);
+        mailCapability.addProperty("mayCreateTopLevelMailbox", true);
+        mailCapability.add("emailQuerySortOptions", GSON.toJsonTree(Collections.singletonList("receivedAt")));
+        final JsonObject accountCapabilities = new JsonObject();
+        accountCapabilities.add(MAIL, mailCapability);
+        accountCapabilities.add(SUBMISSION, new JsonObject());
+        final JsonObject account = new JsonObject();
+        account.addProperty("name", "user@example.com");
+        account.addProperty("isPersonal", true);
+        account.addProperty("isReadOnly", false);
+        account.add("accountCapabilities", accountCapabilities);
+        final JsonObject accounts = new JsonObject();
+        accounts.add(SyntheticAccount.ACCOUNT_ID, account);
+        final JsonObject primaryAccounts = new JsonObject();
+        primaryAccounts.addProperty(MAIL, SyntheticAccount.ACCOUNT_ID);
+        primaryAccounts.addProperty(SUBMISSION, SyntheticAccount.ACCOUNT_ID);
+
+        final JsonObject session = new JsonObject();
+        session.add("capabilities", capabilities);
+        session.add("accounts", accounts);
+        session.add("primaryAccounts", primaryAccounts);
+        session.addProperty("username", "user@example.com");
+        session.addProperty("apiUrl", base() + "/api/");
+        session.addProperty("downloadUrl", base() + "/download/{accountId}/{blobId}/{name}?accept={type}");
+        session.addProperty("uploadUrl", base() + "/upload/{accountId}/");
+        session.addProperty("eventSourceUrl", base() + "/eventsource/?types={types}&closeafter={closeafter}&ping={ping}");
+        session.addProperty("state", "0");
+        respond(exchange, 200, "application/json", GSON.toJson(session).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void api(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "text/plain", new byte[0]);
+            return;
+        }
+        final JsonObject request;
+        try (final InputStreamReader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            request = new JsonParser().parse(reader).getAsJsonObject();
+        } catch (RuntimeException e) {
+            respond(exchange, 400, "application/json", problem("urn:ietf:params:jmap:error:notRequest"));
+            return;
+        }
+        delay();
+        final JsonArray methodResponses = new JsonArray();
+        for (JsonElement element : request.getAsJsonArray("methodCalls")) {
+            final JsonArray methodCall = element.getAsJsonArray();
+            final String name = methodCall.get(0).getAsString();
+            final String callId = methodCall.get(2).getAsString();
+            JsonArray methodResponse;
+            try {
+                final JsonObject arguments = resolveReferences(methodCall.get(1).getAsJsonObject(), methodResponses);
+                methodResponse = invocation(name, invoke(name, arguments), callId);
+            } catch (SyntheticAccount.MethodException e) {
+                final JsonObject error = new JsonObject();
+                error.addProperty("type", e.type);
+                methodResponse = invocation("error", error, callId);
+            } catch (RuntimeException e) {
+                LOGGER.warn("{} failed", name, e);
+                final JsonObject error = new JsonObject();
+                error.addProperty("type", "serverFail");
+                error.addProperty("description", String.valueOf(e.getMessage()));
+                methodResponse = invocation("error", error, callId);
+            }
+            methodResponses.add(methodResponse);
+        }
+        final JsonObject response = new JsonObject();
+        response.add("methodResponses", methodResponses);
+        response.addProperty("sessionState", "0");
+        respond(exchange, 200, "application/json", GSON.toJson(response).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private JsonObject invoke(String name, JsonObject arguments) throws SyntheticAccount.MethodException {
+        calls.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet();
+        switch (name) {
+            case "Mailbox/get":
+                return account.mailboxGet(arguments);
+            case "Mailbox/changes":
+                return account.changes("Mailbox", arguments);
+            case "Mailbox/set":
+                return account.mailboxSet(arguments);
+            case "Identity/get":
+                return account.identityGet(arguments);
+            case "Identity/changes":
+                return account.changes("Identity", arguments);
+            case "Thread/get":
+                return account.threadGet(arguments);
+            case "Thread/changes":
+                return account.changes("Thread", arguments);
+            case "Email/get":
+                return account.emailGet(arguments);
+            case "Email/changes":
+                return account.changes("Email", arguments);
+            case "Email/query":
+                return account.emailQuery(arguments);
+            case "Email/queryChanges":
+                return account.emailQueryChanges(arguments);
+            case "Email/set":
+                return account.emailSet(arguments);
+            default:
+                throw new SyntheticAccount.MethodException("unknownMethod");
+        }
+    }
+
+    private void download(HttpExchange exchange) throws IOException {
+        //download/{accountId}/{blobId}/{name}
+        final String[] segments = exchange.getRequestURI().getPath().split("/");
+        final byte[] blob = segments.length >= 4 ? account.blob(segments[3]) : null;
+        delay();
+        if (blob == null) {
+            respond(exchange, 404, "text/plain", new byte[0]);
+        } else {
+            respond(exchange, 200, "message/rfc822", blob);
+        }
+    }
+
+    private void eventSource(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        //registered before the client sees the response so an event pushed right after connecting isn’t lost
+        synchronized (exchange) {
+            eventSources.add(exchange);
+            //chunked. the exchange stays open until the client or disconnectEventSources() closes it
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().flush();
+        }
+    }
+
+    /**
+     * Sends a StateChange with the current states of the account to all connected event sources.
+     */
+    public void pushStateChange() {
+        final JsonObject changed = new JsonObject();
+        changed.add(SyntheticAccount.ACCOUNT_ID, account.states());
+        final JsonObject stateChange = new JsonObject();
+        stateChange.addProperty("@type", "StateChange");
+        stateChange.add("changed", changed);
+        final byte[] event = ("event: state\ndata: " + GSON.toJson(stateChange) + "\n\n").getBytes(StandardCharsets.UTF_8);
+        for (HttpExchange exchange : eventSources) {
+            try {
+                synchronized (exchange) {
+                    exchange.getResponseBody().write(event);
+                    exchange.getResponseBody().flush();
+                }
+            } catch (IOException e) {
+                eventSources.remove(exchange);
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Ends all event source connections as if the server had dropped them.
+     */
+    public void disconnectEventSources() {
+        for (HttpExchange exchange : eventSources) {
+            eventSources.remove(exchange);
+            synchronized (exchange) {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * @return how often a method like Email/get has been called
+     */
+    public int getCalls(String method) {
+        final AtomicInteger count = calls.get(method);
+        return count == null ? 0 : count.get();
+    }
+
+    public String getAccountId() {
+        return SyntheticAccount.ACCOUNT_ID;
+    }
+
+    private void delay() {
+        if (latency <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replaces arguments of the form {@code #name: {resultOf, name, path}} with the value the path points to in the
+     * referenced response. A {@code *} in the path maps the rest of the path over an array and flattens the result.
+     */
+    private static JsonObject resolveReferences(JsonObject arguments, JsonArray methodResponses) throws SyntheticAccount.MethodException {
+        final JsonObject resolved = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : arguments.entrySet()) {
+            if (!entry.getKey().startsWith("#")) {
+                resolved.add(entry.getKey(), entry.getValue());
+                continue;
+            }
+            final JsonObject reference = entry.getValue().getAsJsonObject();
+            final String resultOf = reference.get("resultOf").getAsString();
+            final String name = reference.get("name").getAsString();
+            JsonObject result = null;
+            for (JsonElement element : methodResponses) {
+                final JsonArray methodResponse = element.getAsJsonArray();
+                if (resultOf.equals(methodResponse.get(2).getAsString()) && name.equals(methodResponse.get(0).getAsString())) {
+                    result = methodResponse.get(1).getAsJsonObject();
+                }
+            }
+            if (result == null) {
+                throw new SyntheticAccount.MethodException("invalidResultReference");
+            }
+            final String path = reference.get("path").getAsString();
+            resolved.add(entry.getKey().substring(1), evaluate(result, path.isEmpty() ? new String[0] : path.substring(1).split("/"), 0));
+        }
+        return resolved;
+    }
+
+    private static JsonElement evaluate(JsonElement element, String[] path, int index) throws SyntheticAccount.MethodException {
+        if (index == path.length) {
+            return element;
+        }
+        final String segment = path[index].replace("~1", "/").replace("~0", "~");
+        if (element.isJsonArray()) {
+            if ("*".equals(segment)) {
+                final JsonArray flattened = new JsonArray();
+                for (JsonElement item : element.getAsJsonArray()) {
+                    final JsonElement value = evaluate(item, path, index + 1);
+                    if (value.isJsonArray()) {
+                        flattened.addAll(value.getAsJsonArray());
+                    } else {
+                        flattened.add(value);
+                    }
+                }
+                return flattened;
+            }
+            try {
+                return evaluate(element.getAsJsonArray().get(Integer.parseInt(segment)), path, index + 1);
+            } catch (RuntimeException e) {
+                throw new SyntheticAccount.MethodException("invalidResultReference");
+            }
+        }
+        if (element.isJsonObject() && element.getAsJsonObject().has(segment)) {
+            return evaluate(element.getAsJsonObject().get(segment), path, index + 1);
+        }
+        throw new SyntheticAccount.MethodException("invalidResultReference");
+    }
+
+    private static JsonArray invocation(String name, JsonObject arguments, String callId) {
+        final JsonArray invocation = new JsonArray();
+        invocation.add(name);
+        invocation.add(arguments);
+        invocation.add(callId);
+        return invocation;
+    }
+
+    private static byte[] problem(String type) {
+        final JsonObject problem = new JsonObject();
+        problem.addProperty("type", type);
+        problem.addProperty("status", 400);
+        return GSON.toJson(problem).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (final OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        mutator.shutdownNow();
+        disconnectEventSources();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public static void main(String... args) throws IOException {
+        final Options options = Options.parse(Arrays.asList(args));
+        final StandInServer standInServer = start(options);
+        System.out.println("java -jar target/lttrs-cli-0.0.1.jar " + standInServer.getSessionResource() + " user@example.com password");
+    }
+
+    public static class Options {
+        //0 picks a free port
+        public int port = 0;
+        public int emails = 10_000;
+        public int bodySize = 2_000;
+        public SyntheticAccount.ThreadShape threadShape = SyntheticAccount.ThreadShape.MIXED;
+        public long latency = 0;
+        //changes per second
+        public double changeRate = 0;
+        public long seed = 42;
+
+        public static Options parse(List<String> arguments) {
+            final Options options = new Options();
+            for (int i = 0; i + 1 < arguments.size(); i += 2) {
+                final String value = arguments.get(i + 1);
+                switch (arguments.get(i)) {
+                    case "--port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "--emails":
+                        options.emails = Integer.parseInt(value);
+                        break;
+                    case "--body-size":
+                        options.bodySize = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        options.threadShape = SyntheticAccount.ThreadShape.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--latency":
+                        options.latency = Long.parseLong(value);
+                        break;
+                    case "--change-rate":
+                        options.changeRate = Double.parseDouble(value);
+                        break;
+                    case "--seed":
+                        options.seed = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + arguments.get(i));
+                }
+            }
+            return options;
+        }
+    }
+}
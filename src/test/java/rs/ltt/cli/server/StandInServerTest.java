@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import okhttp3.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class StandInServerTest {
+
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    private final OkHttpClient okHttpClient = new OkHttpClient();
+
+    private StandInServer server;
+
+    @Before
+    public void start() throws IOException {
+        final StandInServer.Options options = new StandInServer.Options();
+        options.emails = 100;
+        server = StandInServer.start(options);
+    }
+
+    @After
+    public void stop() {
+        server.close();
+    }
+
+    @Test
+    public void listensOnEphemeralPort() {
+        assertNotEquals(0, server.getSessionResource().port());
+    }
+
+    @Test
+    public void sessionQueryAndGet() throws IOException {
+        final JsonObject session = get(server.getSessionResource());
+        assertTrue(session.getAsJsonObject("accounts").has(SyntheticAccount.ACCOUNT_ID));
+        final HttpUrl apiUrl = server.getSessionResource().resolve(session.get("apiUrl").getAsString());
+        assertNotNull(apiUrl);
+
+        final JsonObject filter = new JsonObject();
+        filter.addProperty("inMailbox", "inbox");
+        final JsonObject query = new JsonObject();
+        query.addProperty("accountId", SyntheticAccount.ACCOUNT_ID);
+        query.add("filter", filter);
+        query.addProperty("limit", 10);
+        query.addProperty("calculateTotal", true);
+        final JsonObject reference = new JsonObject();
+        reference.addProperty("resultOf", "0");
+        reference.addProperty("name", "Email/query");
+        reference.addProperty("path", "/ids");
+        final JsonArray properties = new JsonArray();
+        properties.add("id");
+        properties.add("threadId");
+        properties.add("subject");
+        final JsonObject emailGet = new JsonObject();
+        emailGet.addProperty("accountId", SyntheticAccount.ACCOUNT_ID);
+        emailGet.add("#ids", reference);
+        emailGet.add("properties", properties);
+        final JsonArray methodCalls = new JsonArray();
+        methodCalls.add(invocation("Email/query", query, "0"));
+        methodCalls.add(invocation("Email/get", emailGet, "1"));
+        final JsonObject request = new JsonObject();
+        request.add("using", new JsonArray());
+        request.add("methodCalls", methodCalls);
+
+        final JsonArray methodResponses = post(apiUrl, request).getAsJsonArray("methodResponses");
+        assertEquals(2, methodResponses.size());
+        final JsonArray queryResponse = methodResponses.get(0).getAsJsonArray();
+        assertEquals("Email/query", queryResponse.get(0).getAsString());
+        final JsonArray ids = queryResponse.get(1).getAsJsonObject().getAsJsonArray("ids");
+        assertEquals(10, ids.size());
+        assertEquals(100, queryResponse.get(1).getAsJsonObject().get("total").getAsInt());
+        final JsonArray getResponse = methodResponses.get(1).getAsJsonArray();
+        assertEquals("Email/get", getResponse.get(0).getAsString());
+        final JsonArray list = getResponse.get(1).getAsJsonObject().getAsJsonArray("list");
+        assertEquals(ids.size(), list.size());
+        for (int i = 0; i < ids.size(); ++i) {
+            final JsonObject email = list.get(i).getAsJsonObject();
+            assertEquals(ids.get(i).getAsString(), email.get("id").getAsString());
+            assertTrue(email.has("threadId"));
+            assertTrue(email.has("subject"));
+        }
+    }
+
+    private static JsonArray invocation(String name, JsonObject arguments, String callId) {
+        final JsonArray invocation = new JsonArray();
+        invocation.add(name);
+        invocation.add(arguments);
+        invocation.add(callId);
+        return invocation;
+    }
+
+    private JsonObject get(HttpUrl url) throws IOException {
+        return execute(new Request.Builder().url(url).get().build());
+    }
+
+    private JsonObject post(HttpUrl url, JsonObject body) throws IOException {
+        return execute(new Request.Builder().url(url).post(RequestBody.create(JSON, body.toString())).build());
+    }
+
+    private JsonObject execute(Request request) throws IOException {
+        try (final Response response = okHttpClient.newCall(request).execute()) {
+            assertEquals(200, response.code());
+            final ResponseBody body = response.body();
+            assertNotNull(body);
+            final JsonElement json = new JsonParser().parse(body.charStream());
+            return json.getAsJsonObject();
+        }
+    }
+}
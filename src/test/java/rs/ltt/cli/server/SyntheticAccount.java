@@ -0,0 +1,1048 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.cli.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * A generated mail account and the JMAP methods {@link rs.ltt.jmap.mua.Mua} uses on it. Every change bumps a modseq
+ * that is shared by all types; the state of a type is the modseq of its last change. Changes are kept in a log so
+ * Foo/changes can be answered, and the results of recent queries are kept so Email/queryChanges can be answered.
+ * <p>
+ * Mailbox counts are computed when they are requested and don't change the Mailbox state.
+ * <p>
+ * All methods synchronize on the account. This is a stand-in for tests, not a server.
+ */
+class SyntheticAccount {
+
+    static final String ACCOUNT_ID = "a0";
+
+    private static final String[] WORDS = ("lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod "
+            + "tempor incididunt ut labore et dolore magna aliqua jmap release meeting notes invoice build failed "
+            + "review request weekly newsletter reminder update").split(" ");
+
+    private static final String[][] MAILBOXES = {
+            {"inbox", "Inbox", "inbox"},
+            {"archive", "Archive", "archive"},
+            {"drafts", "Drafts", "drafts"},
+            {"sent", "Sent", "sent"},
+            {"trash", "Trash", "trash"},
+            {"important", "Important", "important"}
+    };
+
+    private static final int MAX_LOG_SIZE = 100_000;
+    private static final int QUERY_SNAPSHOTS = 4;
+    private static final int MAX_OBJECTS_IN_GET = 500;
+
+    enum ThreadShape {
+        SINGLE, MIXED, LONG
+    }
+
+    private final Random random;
+    private final int bodySize;
+    private final ThreadShape threadShape;
+    private final String[][] senders;
+
+    private final Map<String, JsonObject> mailboxes = new LinkedHashMap<>();
+    private final Map<String, JsonObject> identities = new LinkedHashMap<>();
+    private final Map<String, StoredEmail> emails = new HashMap<>();
+    private final Map<String, List<StoredEmail>> threads = new HashMap<>();
+    //threads in order of creation. used to pick threads replies go to
+    private final List<String> threadIds = new ArrayList<>();
+
+    private final Map<String, ChangeLog> changeLogs = new HashMap<>();
+
+    //query -> query state -> ids
+    private final Map<String, LinkedHashMap<Long, List<String>>> querySnapshots = new HashMap<>();
+
+    private long modseq = 0;
+    private long time;
+    private int emailCounter = 0;
+    private int mailboxCounter = 0;
+
+    SyntheticAccount(int numberOfEmails, int bodySize, ThreadShape threadShape, long seed) {
+        this.random = new Random(seed);
+        this.bodySize = bodySize;
+        this.threadShape = threadShape;
+        this.senders = new String[Math.max(1, numberOfEmails / 50)][];
+        for (int i = 0; i < senders.length; ++i) {
+            senders[i] = new String[]{capitalize(word()) + " " + capitalize(word()), "sender" + i + "@example.com"};
+        }
+        for (String[] mailbox : MAILBOXES) {
+            mailboxes.put(mailbox[0], mailbox(mailbox[0], mailbox[1], mailbox[2]));
+        }
+        final JsonObject identity = new JsonObject();
+        identity.addProperty("id", "i0");
+        identity.addProperty("name", "Stand In");
+        identity.addProperty("email", "user@example.com");
+        identity.addProperty("mayDelete", false);
+        identities.put("i0", identity);
+        for (String type : new String[]{"Mailbox", "Identity", "Thread", "Email"}) {
+            changeLogs.put(type, new ChangeLog());
+        }
+        this.time = System.currentTimeMillis() - 730L * 24 * 60 * 60 * 1000;
+        while (emailCounter < numberOfEmails) {
+            final int size = Math.min(threadSize(), numberOfEmails - emailCounter);
+            final String threadId = "T" + threadIds.size();
+            final String subject = sentence(3 + random.nextInt(8));
+            for (int i = 0; i < size; ++i) {
+                time += 1000 + random.nextInt(60 * 60 * 1000);
+                add(newEmail(threadId, i == 0 ? subject : "Re: " + subject, time, "inbox", random.nextDouble() < 0.8));
+            }
+        }
+        //everything generated up until now is the initial state
+        for (ChangeLog changeLog : changeLogs.values()) {
+            changeLog.clear(modseq);
+        }
+    }
+
+    private int threadSize() {
+        switch (threadShape) {
+            case SINGLE:
+                return 1;
+            case LONG:
+                return 20 + random.nextInt(200);
+            default:
+                final double p = random.nextDouble();
+                if (p < 0.6) {
+                    return 1;
+                } else if (p < 0.95) {
+                    return 2 + random.nextInt(6);
+                } else if (p < 0.995) {
+                    return 8 + random.nextInt(40);
+                } else {
+                    return 50 + random.nextInt(450);
+                }
+        }
+    }
+
+    private StoredEmail newEmail(String threadId, String subject, long receivedAt, String mailboxId, boolean seen) {
+        final StoredEmail email = new StoredEmail("M" + emailCounter++, threadId);
+        final String[] sender = senders[random.nextInt(senders.length)];
+        email.subject = subject;
+        email.fromName = sender[0];
+        email.fromEmail = sender[1];
+        email.receivedAt = receivedAt;
+        email.body = body();
+        email.mailboxIds.put(mailboxId, true);
+        if (seen) {
+            email.keywords.put("$seen", true);
+        }
+        if (random.nextDouble() < 0.05) {
+            email.keywords.put("$flagged", true);
+        }
+        return email;
+    }
+
+    private void add(StoredEmail email) {
+        final long modseq = ++this.modseq;
+        emails.put(email.id, email);
+        List<StoredEmail> thread = threads.get(email.threadId);
+        if (thread == null) {
+            thread = new ArrayList<>();
+            threads.put(email.threadId, thread);
+            threadIds.add(email.threadId);
+            changeLogs.get("Thread").created(email.threadId, modseq);
+        } else {
+            changeLogs.get("Thread").updated(email.threadId, modseq);
+        }
+        thread.add(email);
+        thread.sort(Comparator.comparingLong(e -> e.receivedAt));
+        changeLogs.get("Email").created(email.id, modseq);
+    }
+
+    private void destroy(StoredEmail email) {
+        final long modseq = ++this.modseq;
+        emails.remove(email.id);
+        final List<StoredEmail> thread = threads.get(email.threadId);
+        thread.remove(email);
+        if (thread.isEmpty()) {
+            threads.remove(email.threadId);
+            threadIds.remove(email.threadId);
+            changeLogs.get("Thread").destroyed(email.threadId, modseq);
+        } else {
+            changeLogs.get("Thread").updated(email.threadId, modseq);
+        }
+        changeLogs.get("Email").destroyed(email.id, modseq);
+    }
+
+    private void updated(StoredEmail email) {
+        changeLogs.get("Email").updated(email.id, ++modseq);
+    }
+
+    /**
+     * Simulates activity of other clients and incoming mail: new threads, replies, emails that get read and emails
+     * that get archived.
+     */
+    /**
+     * @return the current states of all types as they appear in a StateChange
+     */
+    synchronized JsonObject states() {
+        final JsonObject states = new JsonObject();
+        for (Map.Entry<String, ChangeLog> entry : changeLogs.entrySet()) {
+            states.addProperty(entry.getKey(), String.valueOf(entry.getValue().state));
+        }
+        return states;
+    }
+
+    synchronized void mutate() {
+        final double p = random.nextDouble();
+        if (p < 0.5 || emails.isEmpty()) {
+            time = Math.max(time + 1000, System.currentTimeMillis());
+            if (random.nextBoolean() || threadIds.isEmpty()) {
+                add(newEmail("T" + threadIds.size() + "-" + modseq, sentence(3 + random.nextInt(8)), time, "inbox", false));
+            } else {
+                //replies usually go to recent threads
+                final int index = Math.max(0, threadIds.size() - 1 - random.nextInt(Math.min(threadIds.size(), 50)));
+                final List<StoredEmail> thread = threads.get(threadIds.get(index));
+                add(newEmail(thread.get(0).threadId, "Re: " + thread.get(0).subject, time, "inbox", false));
+            }
+            return;
+        }
+        final StoredEmail email = recentInboxEmail();
+        if (email == null) {
+            return;
+        }
+        if (p < 0.8) {
+            if (email.keywords.remove("$seen") == null) {
+                email.keywords.put("$seen", true);
+            }
+        } else {
+            email.mailboxIds.clear();
+            email.mailboxIds.put("archive", true);
+        }
+        updated(email);
+    }
+
+    private StoredEmail recentInboxEmail() {
+        for (int attempt = 0; attempt < 10 && !threadIds.isEmpty(); ++attempt) {
+            final int index = Math.max(0, threadIds.size() - 1 - random.nextInt(Math.min(threadIds.size(), 200)));
+            final List<StoredEmail> thread = threads.get(threadIds.get(index));
+            final StoredEmail email = thread.get(thread.size() - 1);
+            if (email.mailboxIds.containsKey("inbox")) {
+                return email;
+            }
+        }
+        return null;
+    }
+
+    synchronized JsonObject mailboxGet(JsonObject arguments) {
+        final List<JsonObject> list = new ArrayList<>();
+        for (JsonObject mailbox : mailboxes.values()) {
+            list.add(withCounts(mailbox));
+        }
+        return get("Mailbox", arguments, list);
+    }
+
+    private JsonObject withCounts(JsonObject mailbox) {
+        final String id = mailbox.get("id").getAsString();
+        int total = 0;
+        int unread = 0;
+        final Set<String> totalThreads = new HashSet<>();
+        final Set<String> unreadThreads = new HashSet<>();
+        for (StoredEmail email : emails.values()) {
+            if (email.mailboxIds.containsKey(id)) {
+                ++total;
+                totalThreads.add(email.threadId);
+                if (!email.keywords.containsKey("$seen")) {
+                    ++unread;
+                    unreadThreads.add(email.threadId);
+                }
+            }
+        }
+        final JsonObject copy = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : mailbox.entrySet()) {
+            copy.add(entry.getKey(), entry.getValue());
+        }
+        copy.addProperty("totalEmails", total);
+        copy.addProperty("unreadEmails", unread);
+        copy.addProperty("totalThreads", totalThreads.size());
+        copy.addProperty("unreadThreads", unreadThreads.size());
+        return copy;
+    }
+
+    synchronized JsonObject identityGet(JsonObject arguments) {
+        return get("Identity", arguments, new ArrayList<>(identities.values()));
+    }
+
+    synchronized JsonObject threadGet(JsonObject arguments) {
+        final JsonObject response = response("Thread");
+        final JsonArray list = new JsonArray();
+        final JsonArray notFound = new JsonArray();
+        for (String id : ids(arguments)) {
+            final List<StoredEmail> thread = threads.get(id);
+            if (thread == null) {
+                notFound.add(id);
+                continue;
+            }
+            final JsonObject json = new JsonObject();
+            json.addProperty("id", id);
+            final JsonArray emailIds = new JsonArray();
+            for (StoredEmail email : thread) {
+                emailIds.add(email.id);
+            }
+            json.add("emailIds", emailIds);
+            list.add(json);
+        }
+        response.add("list", list);
+        response.add("notFound", notFound);
+        return response;
+    }
+
+    synchronized JsonObject emailGet(JsonObject arguments) throws MethodException {
+        final JsonObject response = response("Email");
+        final JsonArray list = new JsonArray();
+        final JsonArray notFound = new JsonArray();
+        final List<String> ids = ids(arguments);
+        if (ids.size() > MAX_OBJECTS_IN_GET) {
+            throw new MethodException("requestTooLarge");
+        }
+        final Set<String> properties = strings(arguments.get("properties"));
+        final boolean bodyValues = bool(arguments, "fetchTextBodyValues") || bool(arguments, "fetchAllBodyValues");
+        final int maxBodyValueBytes = arguments.has("maxBodyValueBytes") ? arguments.get("maxBodyValueBytes").getAsInt() : 0;
+        for (String id : ids) {
+            final StoredEmail email = emails.get(id);
+            if (email == null) {
+                notFound.add(id);
+            } else {
+                list.add(email.toJson(properties, bodyValues, maxBodyValueBytes));
+            }
+        }
+        response.add("list", list);
+        response.add("notFound", notFound);
+        return response;
+    }
+
+    synchronized JsonObject changes(String type, JsonObject arguments) throws MethodException {
+        final long since = state(arguments.get("sinceState"));
+        final int maxChanges = arguments.has("maxChanges") && !arguments.get("maxChanges").isJsonNull() ? arguments.get("maxChanges").getAsInt() : Integer.MAX_VALUE;
+        return changeLogs.get(type).changes(since, maxChanges);
+    }
+
+    synchronized JsonObject emailQuery(JsonObject arguments) throws MethodException {
+        final List<String> ids = query(arguments);
+        final long queryState = changeLogs.get("Email").state;
+        snapshot(queryKey(arguments), queryState, ids);
+        int position = arguments.has("position") ? arguments.get("position").getAsInt() : 0;
+        if (arguments.has("anchor") && !arguments.get("anchor").isJsonNull()) {
+            final int anchor = ids.indexOf(arguments.get("anchor").getAsString());
+            if (anchor < 0) {
+                throw new MethodException("anchorNotFound");
+            }
+            position = anchor + (arguments.has("anchorOffset") ? arguments.get("anchorOffset").getAsInt() : 0);
+        }
+        position = Math.max(0, Math.min(position < 0 ? ids.size() + position : position, ids.size()));
+        final int limit = arguments.has("limit") && !arguments.get("limit").isJsonNull() ? arguments.get("limit").getAsInt() : ids.size();
+        final JsonObject response = new JsonObject();
+        response.addProperty("accountId", ACCOUNT_ID);
+        response.addProperty("queryState", String.valueOf(queryState));
+        response.addProperty("canCalculateChanges", true);
+        response.addProperty("position", position);
+        final JsonArray page = new JsonArray();
+        for (String id : ids.subList(position, Math.min(ids.size(), position + limit))) {
+            page.add(id);
+        }
+        response.add("ids", page);
+        if (bool(arguments, "calculateTotal")) {
+            response.addProperty("total", ids.size());
+        }
+        return response;
+    }
+
+    /**
+     * Emails are sorted by receivedAt which never changes, so items that are in the old and in the new result keep
+     * their relative order and it is sufficient to report which ones have been removed and which ones added.
+     */
+    synchronized JsonObject emailQueryChanges(JsonObject arguments) throws MethodException {
+        final long since = state(arguments.get("sinceQueryState"));
+        final String key = queryKey(arguments);
+        final LinkedHashMap<Long, List<String>> snapshots = querySnapshots.get(key);
+        final List<String> old = snapshots == null ? null : snapshots.get(since);
+        if (old == null) {
+            throw new MethodException("cannotCalculateChanges");
+        }
+        final List<String> ids = query(arguments);
+        final long queryState = changeLogs.get("Email").state;
+        snapshot(key, queryState, ids);
+        final Set<String> oldIds = new HashSet<>(old);
+        final Set<String> newIds = new HashSet<>(ids);
+        final JsonArray removed = new JsonArray();
+        for (String id : old) {
+            if (!newIds.contains(id)) {
+                removed.add(id);
+            }
+        }
+        final JsonArray added = new JsonArray();
+        for (int i = 0; i < ids.size(); ++i) {
+            if (!oldIds.contains(ids.get(i))) {
+                final JsonObject item = new JsonObject();
+                item.addProperty("id", ids.get(i));
+                item.addProperty("index", i);
+                added.add(item);
+            }
+        }
+        final int maxChanges = arguments.has("maxChanges") && !arguments.get("maxChanges").isJsonNull() ? arguments.get("maxChanges").getAsInt() : Integer.MAX_VALUE;
+        if (removed.size() + added.size() > maxChanges) {
+            throw new MethodException("tooManyChanges");
+        }
+        final JsonObject response = new JsonObject();
+        response.addProperty("accountId", ACCOUNT_ID);
+        response.addProperty("oldQueryState", String.valueOf(since));
+        response.addProperty("newQueryState", String.valueOf(queryState));
+        response.add("removed", removed);
+        response.add("added", added);
+        if (bool(arguments, "calculateTotal")) {
+            response.addProperty("total", ids.size());
+        }
+        return response;
+    }
+
+    private void snapshot(String key, long queryState, List<String> ids) {
+        final LinkedHashMap<Long, List<String>> snapshots = querySnapshots.computeIfAbsent(key, k -> new LinkedHashMap<Long, List<String>>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, List<String>> eldest) {
+                return size() > QUERY_SNAPSHOTS;
+            }
+        });
+        snapshots.put(queryState, ids);
+    }
+
+    private static String queryKey(JsonObject arguments) {
+        return String.valueOf(arguments.get("filter")) + '|' + arguments.get("sort") + '|' + bool(arguments, "collapseThreads");
+    }
+
+    private List<String> query(JsonObject arguments) throws MethodException {
+        final JsonElement filter = arguments.get("filter");
+        final List<StoredEmail> matches = new ArrayList<>();
+        for (StoredEmail email : emails.values()) {
+            if (filter == null || filter.isJsonNull() || matches(filter.getAsJsonObject(), email)) {
+                matches.add(email);
+            }
+        }
+        boolean ascending = false;
+        final JsonElement sort = arguments.get("sort");
+        if (sort != null && sort.isJsonArray() && sort.getAsJsonArray().size() > 0) {
+            final JsonObject comparator = sort.getAsJsonArray().get(0).getAsJsonObject();
+            if (!"receivedAt".equals(comparator.get("property").getAsString())) {
+                throw new MethodException("unsupportedSort");
+            }
+            ascending = bool(comparator, "isAscending");
+        }
+        final Comparator<StoredEmail> byDate = Comparator.<StoredEmail>comparingLong(e -> e.receivedAt).thenComparing(e -> e.id);
+        matches.sort(ascending ? byDate : byDate.reversed());
+        final boolean collapseThreads = bool(arguments, "collapseThreads");
+        final Set<String> seenThreads = new HashSet<>();
+        final List<String> ids = new ArrayList<>();
+        for (StoredEmail email : matches) {
+            if (!collapseThreads || seenThreads.add(email.threadId)) {
+                ids.add(email.id);
+            }
+        }
+        return ids;
+    }
+
+    private static boolean matches(JsonObject filter, StoredEmail email) throws MethodException {
+        if (filter.has("operator")) {
+            final String operator = filter.get("operator").getAsString();
+            int matching = 0;
+            final JsonArray conditions = filter.getAsJsonArray("conditions");
+            for (JsonElement condition : conditions) {
+                if (matches(condition.getAsJsonObject(), email)) {
+                    ++matching;
+                }
+            }
+            switch (operator) {
+                case "AND":
+                    return matching == conditions.size();
+                case "OR":
+                    return matching > 0;
+                case "NOT":
+                    return matching == 0;
+                default:
+                    throw new MethodException("unsupportedFilter");
+            }
+        }
+        for (Map.Entry<String, JsonElement> entry : filter.entrySet()) {
+            if (entry.getValue().isJsonNull()) {
+                continue;
+            }
+            final String value = entry.getValue().isJsonPrimitive() ? entry.getValue().getAsString() : null;
+            final boolean matches;
+            switch (entry.getKey()) {
+                case "inMailbox":
+                    matches = email.mailboxIds.containsKey(value);
+                    break;
+                case "inMailboxOtherThan":
+                    final Set<String> others = new HashSet<>(email.mailboxIds.keySet());
+                    others.removeAll(strings(entry.getValue()));
+                    matches = !others.isEmpty();
+                    break;
+                case "hasKeyword":
+                    matches = email.keywords.containsKey(value);
+                    break;
+                case "notKeyword":
+                    matches = !email.keywords.containsKey(value);
+                    break;
+                case "text":
+                    matches = contains(email.subject, value) || contains(email.fromName, value) || contains(email.fromEmail, value) || contains(email.body, value);
+                    break;
+                case "subject":
+                    matches = contains(email.subject, value);
+                    break;
+                case "from":
+                    matches = contains(email.fromName, value) || contains(email.fromEmail, value);
+                    break;
+                case "body":
+                    matches = contains(email.body, value);
+                    break;
+                default:
+                    throw new MethodException("unsupportedFilter");
+            }
+            if (!matches) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(String haystack, String needle) {
+        return haystack != null && haystack.toLowerCase(Locale.ROOT).contains(needle.toLowerCase(Locale.ROOT));
+    }
+
+    synchronized JsonObject emailSet(JsonObject arguments) throws MethodException {
+        final String oldState = String.valueOf(changeLogs.get("Email").state);
+        if (arguments.has("ifInState") && !arguments.get("ifInState").isJsonNull() && !oldState.equals(arguments.get("ifInState").getAsString())) {
+            throw new MethodException("stateMismatch");
+        }
+        final JsonObject response = new JsonObject();
+        response.addProperty("accountId", ACCOUNT_ID);
+        response.addProperty("oldState", oldState);
+        if (arguments.has("create") && !arguments.get("create").isJsonNull()) {
+            final JsonObject created = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : arguments.getAsJsonObject("create").entrySet()) {
+                final StoredEmail email = create(entry.getValue().getAsJsonObject());
+                final JsonObject json = new JsonObject();
+                json.addProperty("id", email.id);
+                json.addProperty("threadId", email.threadId);
+                json.addProperty("blobId", email.blobId());
+                json.addProperty("size", email.size());
+                created.add(entry.getKey(), json);
+            }
+            response.add("created", created);
+        }
+        if (arguments.has("update") && !arguments.get("update").isJsonNull()) {
+            final JsonObject updated = new JsonObject();
+            final JsonObject notUpdated = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : arguments.getAsJsonObject("update").entrySet()) {
+                final StoredEmail email = emails.get(entry.getKey());
+                if (email == null) {
+                    notUpdated.add(entry.getKey(), setError("notFound"));
+                    continue;
+                }
+                patch(email, entry.getValue().getAsJsonObject());
+                updated(email);
+                updated.add(entry.getKey(), JsonNull.INSTANCE);
+            }
+            response.add("updated", updated);
+            response.add("notUpdated", notUpdated);
+        }
+        if (arguments.has("destroy") && !arguments.get("destroy").isJsonNull()) {
+            final JsonArray destroyed = new JsonArray();
+            final JsonObject notDestroyed = new JsonObject();
+            for (String id : strings(arguments.get("destroy"))) {
+                final StoredEmail email = emails.get(id);
+                if (email == null) {
+                    notDestroyed.add(id, setError("notFound"));
+                    continue;
+                }
+                destroy(email);
+                destroyed.add(id);
+            }
+            response.add("destroyed", destroyed);
+            response.add("notDestroyed", notDestroyed);
+        }
+        response.addProperty("newState", String.valueOf(changeLogs.get("Email").state));
+        return response;
+    }
+
+    private StoredEmail create(JsonObject properties) {
+        final String threadId = "T" + threadIds.size() + "-" + modseq;
+        final StoredEmail email = new StoredEmail("M" + emailCounter++, threadId);
+        email.subject = properties.has("subject") ? properties.get("subject").getAsString() : "";
+        final JsonElement from = properties.get("from");
+        if (from != null && from.isJsonArray() && from.getAsJsonArray().size() > 0) {
+            final JsonObject address = from.getAsJsonArray().get(0).getAsJsonObject();
+            email.fromName = address.has("name") && !address.get("name").isJsonNull() ? address.get("name").getAsString() : null;
+            email.fromEmail = address.get("email").getAsString();
+        }
+        email.receivedAt = Math.max(time + 1000, System.currentTimeMillis());
+        time = email.receivedAt;
+        final StringBuilder body = new StringBuilder();
+        if (properties.has("bodyValues")) {
+            for (Map.Entry<String, JsonElement> bodyValue : properties.getAsJsonObject("bodyValues").entrySet()) {
+                body.append(bodyValue.getValue().getAsJsonObject().get("value").getAsString());
+            }
+        }
+        email.body = body.toString();
+        patch(email, properties);
+        add(email);
+        return email;
+    }
+
+    private static void patch(StoredEmail email, JsonObject patch) {
+        for (Map.Entry<String, JsonElement> entry : patch.entrySet()) {
+            final String key = entry.getKey();
+            final JsonElement value = entry.getValue();
+            if (key.equals("keywords") || key.equals("mailboxIds")) {
+                final Map<String, Boolean> map = key.equals("keywords") ? email.keywords : email.mailboxIds;
+                map.clear();
+                if (value.isJsonObject()) {
+                    for (Map.Entry<String, JsonElement> item : value.getAsJsonObject().entrySet()) {
+                        map.put(item.getKey(), true);
+                    }
+                }
+            } else if (key.startsWith("keywords/") || key.startsWith("mailboxIds/")) {
+                final int slash = key.indexOf('/');
+                final Map<String, Boolean> map = key.startsWith("keywords/") ? email.keywords : email.mailboxIds;
+                final String item = key.substring(slash + 1).replace("~1", "/").replace("~0", "~");
+                if (value.isJsonNull() || (value.isJsonPrimitive() && !value.getAsBoolean())) {
+                    map.remove(item);
+                } else {
+                    map.put(item, true);
+                }
+            }
+        }
+    }
+
+    synchronized JsonObject mailboxSet(JsonObject arguments) {
+        final JsonObject response = new JsonObject();
+        response.addProperty("accountId", ACCOUNT_ID);
+        response.addProperty("oldState", String.valueOf(changeLogs.get("Mailbox").state));
+        if (arguments.has("create") && !arguments.get("create").isJsonNull()) {
+            final JsonObject created = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : arguments.getAsJsonObject("create").entrySet()) {
+                final JsonObject properties = entry.getValue().getAsJsonObject();
+                final String id = "mb" + mailboxCounter++;
+                final JsonElement role = properties.get("role");
+                mailboxes.put(id, mailbox(id, properties.get("name").getAsString(), role == null || role.isJsonNull() ? null : role.getAsString()));
+                changeLogs.get("Mailbox").created(id, ++modseq);
+                final JsonObject json = new JsonObject();
+                json.addProperty("id", id);
+                created.add(entry.getKey(), json);
+            }
+            response.add("created", created);
+        }
+        for (String operation : new String[]{"update", "destroy"}) {
+            final JsonElement value = arguments.get(operation);
+            if (value == null || value.isJsonNull()) {
+                continue;
+            }
+            final JsonObject rejected = new JsonObject();
+            if (value.isJsonObject()) {
+                for (Map.Entry<String, JsonElement> entry : value.getAsJsonObject().entrySet()) {
+                    rejected.add(entry.getKey(), setError("forbidden"));
+                }
+            } else {
+                for (String id : strings(value)) {
+                    rejected.add(id, setError("forbidden"));
+                }
+            }
+            response.add(operation.equals("update") ? "notUpdated" : "notDestroyed", rejected);
+        }
+        response.addProperty("newState", String.valueOf(changeLogs.get("Mailbox").state));
+        return response;
+    }
+
+    /**
+     * @return a complete RFC 5322 message for the email with the given blob id or null if there is no such email
+     */
+    synchronized byte[] blob(String blobId) {
+        final StoredEmail email = blobId.startsWith("B") ? emails.get(blobId.substring(1)) : null;
+        return email == null ? null : email.message();
+    }
+
+    private JsonObject get(String type, JsonObject arguments, List<JsonObject> all) {
+        final JsonObject response = response(type);
+        final JsonArray list = new JsonArray();
+        final JsonArray notFound = new JsonArray();
+        final JsonElement ids = arguments.get("ids");
+        if (ids == null || ids.isJsonNull()) {
+            for (JsonObject object : all) {
+                list.add(object);
+            }
+        } else {
+            final Map<String, JsonObject> byId = new HashMap<>();
+            for (JsonObject object : all) {
+                byId.put(object.get("id").getAsString(), object);
+            }
+            for (String id : strings(ids)) {
+                final JsonObject object = byId.get(id);
+                if (object == null) {
+                    notFound.add(id);
+                } else {
+                    list.add(object);
+                }
+            }
+        }
+        response.add("list", list);
+        response.add("notFound", notFound);
+        return response;
+    }
+
+    private JsonObject response(String type) {
+        final JsonObject response = new JsonObject();
+        response.addProperty("accountId", ACCOUNT_ID);
+        response.addProperty("state", String.valueOf(changeLogs.get(type).state));
+        return response;
+    }
+
+    private static JsonObject mailbox(String id, String name, String role) {
+        final JsonObject mailbox = new JsonObject();
+        mailbox.addProperty("id", id);
+        mailbox.addProperty("name", name);
+        mailbox.add("parentId", JsonNull.INSTANCE);
+        mailbox.addProperty("role", role);
+        mailbox.addProperty("sortOrder", 0);
+        mailbox.addProperty("isSubscribed", true);
+        final JsonObject rights = new JsonObject();
+        for (String right : new String[]{"mayReadItems", "mayAddItems", "mayRemoveItems", "maySetSeen", "maySetKeywords", "mayCreateChild", "mayRename", "mayDelete", "maySubmit"}) {
+            rights.addProperty(right, true);
+        }
+        mailbox.add("myRights", rights);
+        return mailbox;
+    }
+
+    private static JsonObject setError(String type) {
+        final JsonObject error = new JsonObject();
+        error.addProperty("type", type);
+        return error;
+    }
+
+    private static List<String> ids(JsonObject arguments) {
+        final Set<String> ids = strings(arguments.get("ids"));
+        return ids == null ? Collections.emptyList() : new ArrayList<>(ids);
+    }
+
+    private static Set<String> strings(JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            return null;
+        }
+        final Set<String> strings = new LinkedHashSet<>();
+        for (JsonElement item : element.getAsJsonArray()) {
+            strings.add(item.getAsString());
+        }
+        return strings;
+    }
+
+    private static boolean bool(JsonObject object, String name) {
+        final JsonElement element = object.get(name);
+        return element != null && !element.isJsonNull() && element.getAsBoolean();
+    }
+
+    private static long state(JsonElement element) throws MethodException {
+        try {
+            return Long.parseLong(element.getAsString());
+        } catch (RuntimeException e) {
+            throw new MethodException("cannotCalculateChanges");
+        }
+    }
+
+    private String body() {
+        final int length = Math.max(1, bodySize / 2 + random.nextInt(Math.max(1, bodySize)));
+        final StringBuilder builder = new StringBuilder(length + 16);
+        while (builder.length() < length) {
+            if (builder.length() != 0) {
+                builder.append(random.nextInt(12) == 0 ? "\n\n" : " ");
+            }
+            builder.append(word());
+        }
+        return builder.toString();
+    }
+
+    private String word() {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private String sentence(int words) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < words; ++i) {
+            if (i != 0) {
+                builder.append(' ');
+            }
+            builder.append(word());
+        }
+        return capitalize(builder.toString());
+    }
+
+    private static String capitalize(String word) {
+        return word.isEmpty() ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+
+    private static String date(long time) {
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return dateFormat.format(new Date(time));
+    }
+
+    static class MethodException extends Exception {
+        final String type;
+
+        MethodException(String type) {
+            super(type);
+            this.type = type;
+        }
+    }
+
+    /**
+     * Ids changed per modseq. Only the last {@link #MAX_LOG_SIZE} changes are kept; clients that are further behind
+     * get cannotCalculateChanges and have to resync.
+     */
+    private static class ChangeLog {
+
+        private final ArrayDeque<Change> changes = new ArrayDeque<>();
+        private long oldest = 0;
+        private long state = 0;
+
+        void created(String id, long modseq) {
+            append(new Change(id, modseq, true, false));
+        }
+
+        void updated(String id, long modseq) {
+            append(new Change(id, modseq, false, false));
+        }
+
+        void destroyed(String id, long modseq) {
+            append(new Change(id, modseq, false, true));
+        }
+
+        private void append(Change change) {
+            changes.add(change);
+            state = change.modseq;
+            while (changes.size() > MAX_LOG_SIZE) {
+                oldest = changes.removeFirst().modseq;
+            }
+        }
+
+        void clear(long modseq) {
+            changes.clear();
+            oldest = modseq;
+            state = modseq;
+        }
+
+        JsonObject changes(long since, int maxChanges) throws MethodException {
+            if (since < oldest || since > state) {
+                throw new MethodException("cannotCalculateChanges");
+            }
+            //id -> 0 created, 1 updated, 2 destroyed, -1 created and destroyed
+            final LinkedHashMap<String, Integer> aggregated = new LinkedHashMap<>();
+            long newState = since;
+            boolean hasMoreChanges = false;
+            for (Change change : changes) {
+                if (change.modseq <= since) {
+                    continue;
+                }
+                if (!aggregated.containsKey(change.id) && aggregated.size() >= maxChanges) {
+                    hasMoreChanges = true;
+                    break;
+                }
+                final Integer previous = aggregated.get(change.id);
+                final int kind;
+                if (change.destroyed) {
+                    kind = previous != null && previous == 0 ? -1 : 2;
+                } else if (change.created) {
+                    kind = 0;
+                } else {
+                    kind = previous != null && (previous == 0 || previous == -1) ? 0 : 1;
+                }
+                aggregated.put(change.id, kind);
+                newState = change.modseq;
+            }
+            final JsonArray created = new JsonArray();
+            final JsonArray updated = new JsonArray();
+            final JsonArray destroyed = new JsonArray();
+            for (Map.Entry<String, Integer> entry : aggregated.entrySet()) {
+                switch (entry.getValue()) {
+                    case 0:
+                        created.add(entry.getKey());
+                        break;
+                    case 1:
+                        updated.add(entry.getKey());
+                        break;
+                    case 2:
+                        destroyed.add(entry.getKey());
+                        break;
+                }
+            }
+            final JsonObject response = new JsonObject();
+            response.addProperty("accountId", ACCOUNT_ID);
+            response.addProperty("oldState", String.valueOf(since));
+            response.addProperty("newState", String.valueOf(hasMoreChanges ? newState : state));
+            response.addProperty("hasMoreChanges", hasMoreChanges);
+            response.add("created", created);
+            response.add("updated", updated);
+            response.add("destroyed", destroyed);
+            response.add("updatedProperties", JsonNull.INSTANCE);
+            return response;
+        }
+    }
+
+    private static class Change {
+        private final String id;
+        private final long modseq;
+        private final boolean created;
+        private final boolean destroyed;
+
+        private Change(String id, long modseq, boolean created, boolean destroyed) {
+            this.id = id;
+            this.modseq = modseq;
+            this.created = created;
+            this.destroyed = destroyed;
+        }
+    }
+
+    private static class StoredEmail {
+        private final String id;
+        private final String threadId;
+        private final Map<String, Boolean> keywords = new TreeMap<>();
+        private final Map<String, Boolean> mailboxIds = new TreeMap<>();
+        private String subject;
+        private String fromName;
+        private String fromEmail;
+        private String body;
+        private long receivedAt;
+
+        private StoredEmail(String id, String threadId) {
+            this.id = id;
+            this.threadId = threadId;
+        }
+
+        private String blobId() {
+            return "B" + id;
+        }
+
+        private int size() {
+            return message().length;
+        }
+
+        private JsonObject toJson(Set<String> properties, boolean fetchBodyValues, int maxBodyValueBytes) {
+            final JsonObject json = new JsonObject();
+            json.addProperty("id", id);
+            if (want(properties, "blobId")) {
+                json.addProperty("blobId", blobId());
+            }
+            if (want(properties, "threadId")) {
+                json.addProperty("threadId", threadId);
+            }
+            if (want(properties, "mailboxIds")) {
+                json.add("mailboxIds", map(mailboxIds));
+            }
+            if (want(properties, "keywords")) {
+                json.add("keywords", map(keywords));
+            }
+            if (want(properties, "size")) {
+                json.addProperty("size", size());
+            }
+            if (want(properties, "receivedAt")) {
+                json.addProperty("receivedAt", date(receivedAt));
+            }
+            if (want(properties, "sentAt")) {
+                json.addProperty("sentAt", date(receivedAt));
+            }
+            if (want(properties, "subject")) {
+                json.addProperty("subject", subject);
+            }
+            if (want(properties, "from")) {
+                final JsonObject address = new JsonObject();
+                address.addProperty("name", fromName);
+                address.addProperty("email", fromEmail);
+                final JsonArray from = new JsonArray();
+                from.add(address);
+                json.add("from", from);
+            }
+            if (want(properties, "to")) {
+                final JsonObject address = new JsonObject();
+                address.addProperty("email", "user@example.com");
+                final JsonArray to = new JsonArray();
+                to.add(address);
+                json.add("to", to);
+            }
+            if (want(properties, "preview")) {
+                json.addProperty("preview", body.substring(0, Math.min(body.length(), 256)).replaceAll("\\s+", " "));
+            }
+            if (want(properties, "hasAttachment")) {
+                json.addProperty("hasAttachment", false);
+            }
+            if (want(properties, "textBody")) {
+                final JsonObject part = new JsonObject();
+                part.addProperty("partId", "1");
+                part.addProperty("blobId", blobId() + "-1");
+                part.addProperty("type", "text/plain");
+                part.addProperty("charset", "utf-8");
+                part.addProperty("size", body.length());
+                final JsonArray textBody = new JsonArray();
+                textBody.add(part);
+                json.add("textBody", textBody);
+            }
+            if (want(properties, "bodyValues")) {
+                final JsonObject bodyValues = new JsonObject();
+                if (fetchBodyValues) {
+                    final boolean truncated = maxBodyValueBytes > 0 && body.length() > maxBodyValueBytes;
+                    final JsonObject value = new JsonObject();
+                    value.addProperty("value", truncated ? body.substring(0, maxBodyValueBytes) : body);
+                    value.addProperty("isEncodingProblem", false);
+                    value.addProperty("isTruncated", truncated);
+                    bodyValues.add("1", value);
+                }
+                json.add("bodyValues", bodyValues);
+            }
+            return json;
+        }
+
+        private byte[] message() {
+            final StringBuilder message = new StringBuilder(body.length() + 256);
+            message.append("Message-ID: <").append(id).append("@example.com>\r\n");
+            message.append("Date: ").append(date(receivedAt)).append("\r\n");
+            message.append("From: ").append(fromName == null ? "" : fromName + " ").append('<').append(fromEmail).append(">\r\n");
+            message.append("To: <user@example.com>\r\n");
+            message.append("Subject: ").append(subject).append("\r\n");
+            message.append("MIME-Version: 1.0\r\n");
+            message.append("Content-Type: text/plain; charset=utf-8\r\n");
+            message.append("\r\n");
+            message.append(body.replace("\n", "\r\n")).append("\r\n");
+            return message.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static boolean want(Set<String> properties, String property) {
+            return properties == null || properties.contains(property);
+        }
+
+        private static JsonObject map(Map<String, Boolean> map) {
+            final JsonObject json = new JsonObject();
+            for (String key : map.keySet()) {
+                json.addProperty(key, true);
+            }
+            return json;
+        }
+    }
+}
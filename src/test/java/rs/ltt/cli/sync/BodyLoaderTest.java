@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.sync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rs.ltt.cli.cache.MyInMemoryCache;
+import rs.ltt.cli.server.StandInServer;
+import rs.ltt.jmap.mua.Mua;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BodyLoaderTest {
+
+    private final Semaphore loaded = new Semaphore(0);
+
+    private StandInServer server;
+    private Mua mua;
+    private BodyLoader bodyLoader;
+
+    @Before
+    public void start() throws IOException {
+        final StandInServer.Options options = new StandInServer.Options();
+        options.emails = 10;
+        server = StandInServer.start(options);
+        final MyInMemoryCache cache = new MyInMemoryCache();
+        mua = Mua.builder()
+                .username("user@example.com")
+                .password("password")
+                .sessionResource(server.getSessionResource())
+                .cache(cache)
+                .build();
+        bodyLoader = new BodyLoader(mua, server.getAccountId(), cache, loaded::release);
+    }
+
+    @After
+    public void stop() throws Exception {
+        mua.close();
+        server.close();
+    }
+
+    @Test
+    public void notFoundIsNotRequestedAgain() throws InterruptedException {
+        bodyLoader.load(Collections.singletonList("does-not-exist"));
+        assertTrue(loaded.tryAcquire(10, TimeUnit.SECONDS));
+        assertEquals(1, server.getCalls("Email/get"));
+        //what the redraw after a load does
+        bodyLoader.load(Collections.singletonList("does-not-exist"));
+        assertEquals(1, server.getCalls("Email/get"));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.sync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rs.ltt.cli.cache.MyInMemoryCache;
+import rs.ltt.cli.server.StandInServer;
+import rs.ltt.jmap.mua.Mua;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EventSourceMonitorTest {
+
+    private static final long TIMEOUT = 10;
+
+    private final BlockingQueue<Boolean> pushActive = new LinkedBlockingQueue<>();
+    private final Semaphore triggers = new Semaphore(0);
+    private final RefreshScheduler refreshScheduler = new RefreshScheduler() {
+        @Override
+        public void setPushActive(boolean active) {
+            super.setPushActive(active);
+            pushActive.add(active);
+        }
+    };
+
+    private StandInServer server;
+    private Mua mua;
+    private EventSourceMonitor monitor;
+
+    @Before
+    public void start() throws IOException {
+        final StandInServer.Options options = new StandInServer.Options();
+        options.emails = 100;
+        server = StandInServer.start(options);
+        refreshScheduler.setListener(triggers::release);
+        mua = Mua.builder()
+                .username("user@example.com")
+                .password("password")
+                .sessionResource(server.getSessionResource())
+                .cache(new MyInMemoryCache())
+                .build();
+        monitor = new EventSourceMonitor(mua.getJmapClient(), "user@example.com", "password", server.getSessionResource(), server.getAccountId(), refreshScheduler);
+        monitor.start();
+    }
+
+    @After
+    public void stop() throws Exception {
+        monitor.close();
+        mua.close();
+        server.close();
+    }
+
+    @Test
+    public void stateChangeTriggersRefresh() throws InterruptedException {
+        assertEquals(Boolean.TRUE, pushActive.poll(TIMEOUT, TimeUnit.SECONDS));
+        //setPushActive(true) and the catch up after connecting
+        assertTrue(triggers.tryAcquire(2, TIMEOUT, TimeUnit.SECONDS));
+        server.pushStateChange();
+        assertTrue(triggers.tryAcquire(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void disconnectFallsBackToPolling() throws InterruptedException {
+        assertEquals(Boolean.TRUE, pushActive.poll(TIMEOUT, TimeUnit.SECONDS));
+        server.disconnectEventSources();
+        assertEquals(Boolean.FALSE, pushActive.poll(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(refreshScheduler.getDelay() < TimeUnit.MINUTES.toMillis(5));
+    }
+}
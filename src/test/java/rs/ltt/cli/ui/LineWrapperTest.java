@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package rs.ltt.cli.ui;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LineWrapperTest {
+
+    private final LineWrapper lineWrapper = new LineWrapper();
+
+    @Test
+    public void wrapAtSpaces() {
+        assertEquals(Arrays.asList("the quick", "brown fox", "jumps over", "the lazy", "dog"), lines("the quick brown fox jumps over the lazy dog", 10, false));
+    }
+
+    @Test
+    public void lineBreaks() {
+        assertEquals(Arrays.asList("first", "", "second"), lines("first\r\n\r\nsecond", 10, false));
+    }
+
+    @Test
+    public void wordLongerThanWidth() {
+        assertEquals(Arrays.asList("abcde", "fghij", "kl"), lines("abcdefghijkl", 5, false));
+    }
+
+    @Test
+    public void lineLongerThanSegment() {
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < 3 * LineWrapper.SEGMENT) {
+            text.append("lorem ipsum dolor sit amet ");
+        }
+        final List<String> lines = lines(text, 80, false);
+        for (String line : lines) {
+            assertTrue(line.length() <= 80);
+        }
+        assertEquals(text.toString().replace(" ", ""), String.join("", lines).replace(" ", ""));
+    }
+
+    @Test
+    public void wideCharacters() {
+        assertEquals(Arrays.asList("日本", "語の", "テキ", "スト"), lines("日本語のテキスト", 5, false));
+        assertEquals(Arrays.asList("ab日", "本"), lines("ab日本", 4, false));
+        assertEquals(Arrays.asList("日本", "語"), lines("日本 語", 4, false));
+        //doesn’t fit but still makes progress
+        assertEquals(Arrays.asList("日", "本"), lines("日本", 1, false));
+    }
+
+    @Test
+    public void html() {
+        assertEquals(Arrays.asList("Hello World", "second & last"), lines("<p>Hello   <b>World</b></p>\n<p>second &amp; last</p>", 20, true));
+    }
+
+    @Test
+    public void styleAndScript() {
+        final String text = "<style>p { color: red; }</style><p>Hello</p><script>if (a < b) { document.write('<p>'); }</script><p>World</p>";
+        assertEquals(Arrays.asList("Hello", "World"), lines(text, 20, true));
+    }
+
+    @Test
+    public void tagAcrossSegment() {
+        final String before = Strings.repeat("a ", (LineWrapper.SEGMENT - 10) / 2);
+        final String text = before + "<a href=\"https://example.com/\">link</a> after";
+        assertTrue(text.indexOf('<') < LineWrapper.SEGMENT && text.indexOf('>') > LineWrapper.SEGMENT);
+        final List<String> lines = lines(text, 40, true);
+        for (String line : lines) {
+            assertFalse(line, line.contains("href") || line.contains("<") || line.contains(">"));
+        }
+        assertTrue(String.join(" ", lines).endsWith("after"));
+    }
+
+    @Test
+    public void styleAcrossSegment() {
+        final String before = Strings.repeat("a ", (LineWrapper.SEGMENT - 100) / 2);
+        final String text = before + "<style>" + Strings.repeat("p { color: red; } ", 20) + "</style><p>after</p>";
+        final List<String> lines = lines(text, 40, true);
+        for (String line : lines) {
+            assertFalse(line, line.contains("color"));
+        }
+        assertEquals("after", lines.get(lines.size() - 1));
+    }
+
+    /**
+     * Wraps the whole text and checks that going back from the start of every line leads to the line before.
+     */
+    private List<String> lines(CharSequence text, int width, boolean html) {
+        final List<String> lines = new ArrayList<>();
+        final List<Integer> starts = new ArrayList<>();
+        int position = 0;
+        while (position < text.length()) {
+            starts.add(position);
+            final int next = lineWrapper.wrap(text, position, width, html);
+            assertTrue(next > position);
+            //no line spans a segment boundary unless markup crosses it
+            if (!html) {
+                assertTrue(next - 1 < (position / LineWrapper.SEGMENT + 1) * LineWrapper.SEGMENT);
+            }
+            lines.add(new String(lineWrapper.getBuffer(), 0, lineWrapper.getLength()));
+            position = next;
+        }
+        for (int i = 1; i < starts.size(); ++i) {
+            assertEquals("previous of line " + i, (long) starts.get(i - 1), lineWrapper.previous(text, starts.get(i), width, html));
+        }
+        if (!starts.isEmpty()) {
+            assertEquals(-1, lineWrapper.previous(text, starts.get(0), width, html));
+            assertEquals((long) starts.get(starts.size() - 1), lineWrapper.previous(text, text.length(), width, html));
+        }
+        //html is reduced to text and may end with markup that produces an empty line
+        if (html) {
+            lines.removeIf(String::isEmpty);
+        }
+        return lines;
+    }
+}